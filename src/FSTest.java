@@ -6,15 +6,33 @@ import murlen.util.fscriptME.*;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntUnaryOperator;
 
 public class FSTest {
   static class BasicIO extends FScript {
     private Object[] files;
+    private int hostCount;
 
     BasicIO () {
       super();
       files = new Object[25];
+      // Called through HostFunctions instead of callFunction()
+      getFunctions()
+        .register("hostmax", (IntBinaryOperator) Math::max)
+        .register("hostrepeat", (BiFunction<String, Integer, String>) (s, n) -> new String(new char[n]).replace("\0", s))
+        .register("hostfail", (IntUnaryOperator) n -> {
+          throw new IllegalStateException("hostfail " + n);
+        })
+        .defineInt("hostcount", () -> hostCount, val -> hostCount = val)
+        .defineDouble("hostrate", () -> 2.5, null)
+        .defineString("hostname", () -> "regtest", null);
     }
 
     public Object callFunction (String name, List<Object> param) throws FSException {
@@ -135,6 +153,8 @@ public class FSTest {
         case "abort":
           exit(param.get(0));
           break;
+        case "scriptvar":
+          return getScriptVar((String) param.get(0));
         default:
           super.callFunction(name, param);
           break;
@@ -153,10 +173,129 @@ public class FSTest {
   }
 
 
-  public static void main (String[] args) throws FSException, IOException {
+  // Scripts that have to fail, with the error they have to fail with
+  private static void errorTests (FScript.Engine engine) {
+    System.out.println("Testing errors...");
+    expectError(runner(engine), "Array read bounds", "int a[2]\nreturn a[2]\n", "Array index out of bounds: a[2]");
+    expectError(runner(engine), "Array write bounds", "int a[2]\na[3] = 1\n", "Array index out of bounds: a[3]");
+    expectError(runner(engine), "Negative array size", "int n = -1\nint a[n]\n", "Negative array size: -1");
+    expectError(runner(engine), "Double to int", "int i\ni = 1.5\n", "Incompatible types");
+    expectError(runner(engine), "Host function exception", "int i\ni = hostfail(3)\n", "hostfail 3");
+    expectError(runner(engine), "Read-only external", "hostname = \"x\"\n", "External hostname is read-only");
+    expectError(runner(engine), "External type", "hostcount = \"x\"\n", "Incompatible types");
+    // Runaway recursion fails the same way whether it reaches the limit or the end of the thread's stack
+    String down = "func down(int n)\n return down(n + 1) + 1\nendfunc\ndown(0)\n";
+    BasicIO runner = runner(engine);
+    runner.setMaxCallDepth(50);
+    expectError(runner, "Call depth limit", down, "Call depth limit of 50 exceeded");
+    runner = runner(engine);
+    runner.setMaxCallDepth(100000000);
+    expectError(runner, "Stack overflow", down, "Call depth limit of ");
+    // With strict names, a name only declared as a local of another function is undefined
+    runner = runner(engine);
+    runner.getFunctions().setStrict(true);
+    expectError(runner, "Strict names", "func f()\n int loc\n return loc\nendfunc\nfunc g()\n return loc\nendfunc\n", "Undefined variable: loc");
+  }
+
+  // Lines added after a run are compiled on their own, and cont() runs only them
+  private static void contTests (FScript.Engine engine) throws FSException {
+    System.out.println("Testing cont()...");
+    BasicIO runner = runner(engine);
+    runner.addLines("int total = 1\nfunc twice(int n)\n return n * 2\nendfunc\n");
+    runner.runCode();
+    runner.addLines("total = twice(total) + 1\n");
+    runner.cont();
+    runner.addLines("func thrice(int n)\n return n * 3\nendfunc\ntotal = thrice(total)\nreturn total\n");
+    Object ret = runner.cont();
+    if (Integer.valueOf(9).equals(ret) && Integer.valueOf(9).equals(runner.getScriptVar("total"))) {
+      System.out.println("All is Well");
+    } else {
+      System.out.println("cont() test failed, returned " + ret);
+    }
+  }
+
+  // Host functions called by a CompiledScript run reach the variables and exit of that run
+  private static void compiledTests (FScript.Engine engine) throws FSException {
+    System.out.println("Testing CompiledScript...");
+    CompiledScript script = CompiledScript.compile("int x = 7\nabort(scriptvar(\"x\") + 1)\nreturn 0\n", engine);
+    BasicIO host = runner(engine);
+    Object ret = script.run(host);
+    Object again = script.newContext(host).run();
+    if (Integer.valueOf(8).equals(ret) && Integer.valueOf(8).equals(again)) {
+      System.out.println("All is Well");
+    } else {
+      System.out.println("CompiledScript test failed, returned " + ret + " and " + again);
+    }
+  }
+
+  // Concurrent runs sharing one host each exit with their own value
+  private static void executorTests (FScript.Engine engine) throws FSException {
+    System.out.println("Testing ScriptExecutor...");
+    CompiledScript script = CompiledScript.compile("int i = 0\nwhile i < 1000\n i = i + 1\nendwhile\nabort(n * 10)\nreturn -1\n", engine);
+    BasicIO host = runner(engine);
+    ScriptExecutor executor = ScriptExecutor.newPlatformExecutor(4, 16);
+    List<CompletableFuture<Object>> results = new ArrayList<>();
+    for (int n = 0; n < 16; n++) {
+      results.add(executor.submit(script, host, Collections.singletonMap("n", n), 0, TimeUnit.SECONDS));
+    }
+    String failed = null;
+    for (int n = 0; n < results.size(); n++) {
+      Object ret = results.get(n).join();
+      if (!Integer.valueOf(n * 10).equals(ret)) {
+        failed = "run " + n + " returned " + ret;
+      }
+    }
+    executor.shutdown();
+    System.out.println(failed == null ? "All is Well" : "ScriptExecutor test failed, " + failed);
+  }
+
+  private static BasicIO runner (FScript.Engine engine) {
     BasicIO runner = new BasicIO();
-    runner.addLines(getFile(new File("regtest.script")));
-    Object ret = runner.runCode();
-    System.out.println("Code returned: " + ret);
+    runner.setEngine(engine);
+    return runner;
+  }
+
+  // Runs a script that has to fail with an FSException whose message starts with msg
+  private static void expectError (BasicIO runner, String what, String script, String msg) {
+    runner.addLines(script);
+    try {
+      runner.runCode();
+      System.out.println(what + " test failed, no error");
+    } catch (FSException e) {
+      System.out.println(e.getMessage().startsWith(msg) ? "All is Well" : what + " test failed: " + e.getMessage());
+    }
+  }
+
+  // Runs the script with every engine, each engine's output has to match that of the first
+  public static void main (String[] args) throws FSException, IOException {
+    String script = getFile(new File(args.length > 0 ? args[0] : "regtest.script"));
+    PrintStream out = System.out;
+    String first = null;
+    for (FScript.Engine engine : FScript.Engine.values()) {
+      ByteArrayOutputStream buf = new ByteArrayOutputStream();
+      System.setOut(new PrintStream(buf, true, "UTF-8"));
+      try {
+        BasicIO runner = runner(engine);
+        runner.addLines(script);
+        Object ret = runner.runCode();
+        System.out.println("Code returned: " + ret);
+        errorTests(engine);
+        contTests(engine);
+        compiledTests(engine);
+        executorTests(engine);
+      } finally {
+        System.setOut(out);
+      }
+      String output = buf.toString("UTF-8");
+      if (first == null) {
+        first = output;
+        System.out.print(output);
+      } else if (output.equals(first)) {
+        System.out.println(engine + " output matches");
+      } else {
+        System.out.print(output);
+        System.out.println("!!!!" + engine + " output differs from " + FScript.Engine.values()[0] + "!!!!");
+      }
+    }
   }
 }
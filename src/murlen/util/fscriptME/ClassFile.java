@@ -0,0 +1,493 @@
+package murlen.util.fscriptME;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <b>ClassFile - a minimal JVM class file assembler - used by JitCompiler</b>
+ * <p>
+ * Only supports what JitCompiler needs: a constant pool, static fields and methods
+ * made of int and reference instructions.  Classes are written with class file
+ * version 49 so no StackMapTable is needed, the JVM verifies them by type inference.</p>
+ */
+final class ClassFile {
+  // Opcodes
+  static final int  ACONST_NULL = 0x01, ICONST_0 = 0x03, DCONST_0 = 0x0e, BIPUSH = 0x10, SIPUSH = 0x11, LDC = 0x12, LDC_W = 0x13, LDC2_W = 0x14;
+  static final int  ILOAD = 0x15, DLOAD = 0x18, ALOAD = 0x19, ISTORE = 0x36, DSTORE = 0x39, ASTORE = 0x3a, AALOAD = 0x32, AASTORE = 0x53;
+  static final int  POP = 0x57, DUP = 0x59, SWAP = 0x5f;
+  static final int  IADD = 0x60, ISUB = 0x64, IMUL = 0x68, IDIV = 0x6c, IREM = 0x70, INEG = 0x74, IAND = 0x7e, IOR = 0x80;
+  static final int  DADD = 0x63, DSUB = 0x67, DMUL = 0x6b, DDIV = 0x6f, DREM = 0x73, DNEG = 0x77, I2D = 0x87, DCMPL = 0x97, DCMPG = 0x98;
+  static final int  IFEQ = 0x99, IFNE = 0x9a, IFLT = 0x9b, IFGE = 0x9c, IFGT = 0x9d, IFLE = 0x9e;
+  static final int  IF_ICMPEQ = 0x9f, IF_ICMPNE = 0xa0, IF_ICMPLT = 0xa1, IF_ICMPGE = 0xa2, IF_ICMPGT = 0xa3, IF_ICMPLE = 0xa4;
+  static final int  GOTO = 0xa7, TABLESWITCH = 0xaa, IRETURN = 0xac, ARETURN = 0xb0, RETURN = 0xb1;
+  static final int  GETSTATIC = 0xb2, PUTSTATIC = 0xb3, GETFIELD = 0xb4, PUTFIELD = 0xb5;
+  static final int  INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8;
+  static final int  ANEWARRAY = 0xbd, ATHROW = 0xbf, CHECKCAST = 0xc0, IFNULL = 0xc6, IFNONNULL = 0xc7;
+  // Access flags
+  static final int  ACC_PUBLIC = 0x0001, ACC_STATIC = 0x0008, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+
+  private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+  private final DataOutputStream      poolOut = new DataOutputStream(pool);
+  private final Map<String, Integer>  poolIndex = new HashMap<>();
+  private final ByteArrayOutputStream members = new ByteArrayOutputStream();    // fields
+  private final DataOutputStream      membersOut = new DataOutputStream(members);
+  private final ByteArrayOutputStream methods = new ByteArrayOutputStream();  // written after the fields
+  private final DataOutputStream      methodsOut = new DataOutputStream(methods);
+  private int                         poolCount = 1;
+  private int                         fieldCount;
+  private int                         methodCount;
+  final String                        name;
+  private final int                   thisClass;
+  private final int                   superClass;
+
+  // Thrown when a method can't be encoded (too large, too many locals, etc.)
+  static final class TooLargeException extends RuntimeException {
+    TooLargeException (String msg) {
+      super(msg);
+    }
+  }
+
+  /**
+   * Create a class
+   *
+   * @param name      internal name of the class (such as murlen/util/fscriptME/Foo)
+   * @param superName internal name of the super class
+   */
+  ClassFile (String name, String superName) {
+    this.name = name;
+    thisClass = cls(name);
+    superClass = cls(superName);
+  }
+
+  // Constant pool entries
+
+  int utf8 (String str) {
+    Integer idx = poolIndex.get("U" + str);
+    if (idx == null) {
+      try {
+        poolOut.writeByte(1);
+        poolOut.writeUTF(str);
+      } catch (IOException e) {
+        throw new TooLargeException(e.getMessage());
+      }
+      poolIndex.put("U" + str, idx = poolCount++);
+    }
+    return idx;
+  }
+
+  int cls (String internalName) {
+    return ref("C" + internalName, 7, utf8(internalName), -1);
+  }
+
+  int string (String str) {
+    return ref("S" + str, 8, utf8(str), -1);
+  }
+
+  int integer (int val) {
+    Integer idx = poolIndex.get("I" + val);
+    if (idx == null) {
+      try {
+        poolOut.writeByte(3);
+        poolOut.writeInt(val);
+      } catch (IOException e) {
+        throw new TooLargeException(e.getMessage());
+      }
+      poolIndex.put("I" + val, idx = poolCount++);
+    }
+    return idx;
+  }
+
+  // A double takes two constant pool entries
+  int dbl (double val) {
+    long bits = Double.doubleToRawLongBits(val);
+    Integer idx = poolIndex.get("D" + bits);
+    if (idx == null) {
+      try {
+        poolOut.writeByte(6);
+        poolOut.writeLong(bits);
+      } catch (IOException e) {
+        throw new TooLargeException(e.getMessage());
+      }
+      poolIndex.put("D" + bits, idx = poolCount);
+      poolCount += 2;
+    }
+    return idx;
+  }
+
+  int field (String owner, String name, String desc) {
+    return ref("F" + owner + "." + name + ":" + desc, 9, cls(owner), nameAndType(name, desc));
+  }
+
+  int method (String owner, String name, String desc) {
+    return ref("M" + owner + "." + name + ":" + desc, 10, cls(owner), nameAndType(name, desc));
+  }
+
+  private int nameAndType (String name, String desc) {
+    return ref("N" + name + ":" + desc, 12, utf8(name), utf8(desc));
+  }
+
+  private int ref (String key, int tag, int idx1, int idx2) {
+    Integer idx = poolIndex.get(key);
+    if (idx == null) {
+      try {
+        poolOut.writeByte(tag);
+        poolOut.writeShort(idx1);
+        if (idx2 >= 0) {
+          poolOut.writeShort(idx2);
+        }
+      } catch (IOException e) {
+        throw new TooLargeException(e.getMessage());
+      }
+      poolIndex.put(key, idx = poolCount++);
+    }
+    if (poolCount > 0xFFFF) {
+      throw new TooLargeException("constant pool too large");
+    }
+    return idx;
+  }
+
+  // Members
+
+  void addField (int access, String name, String desc) {
+    try {
+      membersOut.writeShort(access);
+      membersOut.writeShort(utf8(name));
+      membersOut.writeShort(utf8(desc));
+      membersOut.writeShort(0);
+    } catch (IOException e) {
+      throw new TooLargeException(e.getMessage());
+    }
+    fieldCount++;
+  }
+
+  void addMethod (int access, String name, String desc, Code code) {
+    byte[] bytes = code.toBytes();
+    try {
+      methodsOut.writeShort(access);
+      methodsOut.writeShort(utf8(name));
+      methodsOut.writeShort(utf8(desc));
+      methodsOut.writeShort(1);
+      methodsOut.writeShort(utf8("Code"));
+      methodsOut.writeInt(12 + bytes.length + 8 * code.handlers.size());
+      methodsOut.writeShort(code.maxStack);
+      methodsOut.writeShort(code.maxLocals);
+      methodsOut.writeInt(bytes.length);
+      methodsOut.write(bytes);
+      methodsOut.writeShort(code.handlers.size());
+      for (int[] handler : code.handlers) {
+        for (int val : handler) {
+          methodsOut.writeShort(val);
+        }
+      }
+      methodsOut.writeShort(0);         // attributes
+    } catch (IOException e) {
+      throw new TooLargeException(e.getMessage());
+    }
+    methodCount++;
+  }
+
+  byte[] toBytes (int access) {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(buf);
+    try {
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0);
+      out.writeShort(49);
+      out.writeShort(poolCount);
+      out.write(pool.toByteArray());
+      out.writeShort(access);
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      out.writeShort(0);                // interfaces
+      out.writeShort(fieldCount);
+      out.write(members.toByteArray());
+      out.writeShort(methodCount);
+      out.write(methods.toByteArray());
+      out.writeShort(0);                // attributes
+    } catch (IOException e) {
+      throw new TooLargeException(e.getMessage());
+    }
+    return buf.toByteArray();
+  }
+
+  // Number of stack slots taken by the arguments of a method descriptor
+  static int argSize (String desc) {
+    int size = 0;
+    for (int ii = 1; desc.charAt(ii) != ')'; ii++) {
+      char cc = desc.charAt(ii);
+      while (cc == '[') {
+        cc = desc.charAt(++ii);
+      }
+      if (cc == 'L') {
+        ii = desc.indexOf(';', ii);
+      }
+      size += (cc == 'J' || cc == 'D') && desc.charAt(ii - 1) != '[' ? 2 : 1;
+    }
+    return size;
+  }
+
+  // Number of stack slots taken by the return value of a method descriptor
+  static int retSize (String desc) {
+    char cc = desc.charAt(desc.indexOf(')') + 1);
+    return cc == 'V' ? 0 : cc == 'J' || cc == 'D' ? 2 : 1;
+  }
+
+  /**
+   * Branch target inside a Code buffer
+   */
+  static final class Label {
+    int         pos = -1;               // code offset, once placed
+    int         depth = -1;             // stack depth at the label
+    List<int[]> refs = new ArrayList<>(); // {opcode offset, patch offset[, 1 if 32 bit]}
+  }
+
+  /**
+   * Bytecode buffer for one method, which keeps track of the stack depth and locals used
+   */
+  final class Code {
+    private final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    private final List<Label>           labels = new ArrayList<>();
+    private final List<Label[]>         tryBlocks = new ArrayList<>();   // {start, end, handler} of each exception handler
+    private final List<Integer>         catchTypes = new ArrayList<>();  // class caught by each handler
+    List<int[]>                         handlers;                        // exception table, built by toBytes()
+    private int                         depth;
+    private int                         maxStack;
+    private int                         maxLocals;
+    private boolean                     reachable = true;
+
+    Code (int argLocals) {
+      maxLocals = argLocals;
+    }
+
+    // Allocate a new local variable slot
+    int newLocal () {
+      return newLocal(1);
+    }
+
+    // Allocate a local variable taking size slots, 2 for a double
+    int newLocal (int size) {
+      if (maxLocals + size > 255) {
+        throw new TooLargeException("too many locals");
+      }
+      maxLocals += size;
+      return maxLocals - size;
+    }
+
+    private void stack (int delta) {
+      depth += delta;
+      maxStack = Math.max(maxStack, depth);
+    }
+
+    private void u1 (int val) {
+      buf.write(val);
+    }
+
+    private void u2 (int val) {
+      buf.write(val >> 8);
+      buf.write(val);
+    }
+
+    // Simple instruction with a known effect on the stack
+    void op (int opcode, int delta) {
+      u1(opcode);
+      stack(delta);
+      if (opcode == GOTO || opcode == ATHROW || opcode == ARETURN || opcode == IRETURN || opcode == RETURN) {
+        reachable = false;
+      }
+    }
+
+    void iconst (int val) {
+      if (val >= -1 && val <= 5) {
+        u1(ICONST_0 + val);
+      } else if (val >= Byte.MIN_VALUE && val <= Byte.MAX_VALUE) {
+        u1(BIPUSH);
+        u1(val);
+      } else if (val >= Short.MIN_VALUE && val <= Short.MAX_VALUE) {
+        u1(SIPUSH);
+        u2(val);
+      } else {
+        ldc(integer(val));
+      }
+      stack(1);
+    }
+
+    void ldc (String str) {
+      ldc(string(str));
+      stack(1);
+    }
+
+    void dconst (double val) {
+      if (val == 0 && 1 / val > 0 || val == 1) {
+        u1(DCONST_0 + (int) val);
+      } else {
+        u1(LDC2_W);
+        u2(dbl(val));
+      }
+      stack(2);
+    }
+
+    private void ldc (int idx) {
+      if (idx < 256) {
+        u1(LDC);
+        u1(idx);
+      } else {
+        u1(LDC_W);
+        u2(idx);
+      }
+    }
+
+    void load (int opcode, int slot) {
+      u1(opcode);
+      u1(slot);
+      stack(opcode == DLOAD ? 2 : 1);
+    }
+
+    void store (int opcode, int slot) {
+      u1(opcode);
+      u1(slot);
+      stack(opcode == DSTORE ? -2 : -1);
+    }
+
+    void type (int opcode, String internalName) {
+      u1(opcode);
+      u2(cls(internalName));
+    }
+
+    void field (int opcode, String owner, String name, String desc) {
+      u1(opcode);
+      u2(ClassFile.this.field(owner, name, desc));
+      int size = desc.equals("J") || desc.equals("D") ? 2 : 1;
+      switch (opcode) {
+        case GETSTATIC: stack(size); break;
+        case PUTSTATIC: stack(-size); break;
+        case GETFIELD:  stack(size - 1); break;
+        case PUTFIELD:  stack(-size - 1); break;
+      }
+    }
+
+    void invoke (int opcode, String owner, String name, String desc) {
+      u1(opcode);
+      u2(method(owner, name, desc));
+      stack(-argSize(desc) - (opcode == INVOKESTATIC ? 0 : 1) + retSize(desc));
+    }
+
+    void jump (int opcode, Label label) {
+      int pos = buf.size();
+      u1(opcode);
+      u2(0);
+      if (opcode == IFNULL || opcode == IFNONNULL || (opcode >= IFEQ && opcode <= IFLE)) {
+        stack(-1);
+      } else if (opcode >= IF_ICMPEQ && opcode <= 0xa6) {
+        stack(-2);
+      }
+      label.refs.add(new int[] {pos, pos + 1});
+      if (label.depth < 0) {
+        label.depth = depth;
+      }
+      if (!labels.contains(label)) {
+        labels.add(label);
+      }
+      if (opcode == GOTO) {
+        reachable = false;
+      }
+    }
+
+    // Place a label at the current position
+    void mark (Label label) {
+      label.pos = buf.size();
+      if (!reachable && label.depth >= 0) {
+        depth = label.depth;
+      } else if (label.depth < 0) {
+        label.depth = depth;
+      }
+      reachable = true;
+      if (!labels.contains(label)) {
+        labels.add(label);
+      }
+    }
+
+    /*
+     * Catch the exceptions of a class thrown by the code between labels start and end, jumping
+     * to label handler with the exception as the only value on the stack.  The labels must all
+     * be placed before toBytes().
+     */
+    void handler (Label start, Label end, Label handler, String internalName) {
+      handler.depth = 1;
+      tryBlocks.add(new Label[] {start, end, handler});
+      catchTypes.add(cls(internalName));
+    }
+
+    // tableswitch over keys low..low+targets.length-1, consumes the int on the stack
+    void tableswitch (int low, Label dflt, Label[] targets) {
+      int pos = buf.size();
+      u1(TABLESWITCH);
+      while (buf.size() % 4 != 0) {
+        u1(0);
+      }
+      stack(-1);
+      switchRef(pos, dflt);
+      u2(0);
+      u2(0);
+      buf.write(low >> 24);
+      buf.write(low >> 16);
+      buf.write(low >> 8);
+      buf.write(low);
+      int high = low + targets.length - 1;
+      buf.write(high >> 24);
+      buf.write(high >> 16);
+      buf.write(high >> 8);
+      buf.write(high);
+      for (Label target : targets) {
+        switchRef(pos, target);
+        u2(0);
+        u2(0);
+      }
+      reachable = false;
+    }
+
+    private void switchRef (int pos, Label label) {
+      label.refs.add(new int[] {pos, buf.size(), 1});
+      if (label.depth < 0) {
+        label.depth = depth;
+      }
+      if (!labels.contains(label)) {
+        labels.add(label);
+      }
+    }
+
+    byte[] toBytes () {
+      byte[] code = buf.toByteArray();
+      if (code.length > 0xFFFF) {
+        throw new TooLargeException("method too large");
+      }
+      for (Label label : labels) {
+        for (int[] ref : label.refs) {
+          int offset = label.pos - ref[0];
+          if (ref.length > 2) {
+            code[ref[1]] = (byte) (offset >> 24);
+            code[ref[1] + 1] = (byte) (offset >> 16);
+            code[ref[1] + 2] = (byte) (offset >> 8);
+            code[ref[1] + 3] = (byte) offset;
+          } else {
+            if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+              throw new TooLargeException("branch too far");
+            }
+            code[ref[1]] = (byte) (offset >> 8);
+            code[ref[1] + 1] = (byte) offset;
+          }
+        }
+      }
+      handlers = new ArrayList<>();
+      for (int ii = 0; ii < tryBlocks.size(); ii++) {
+        Label[] block = tryBlocks.get(ii);
+        handlers.add(new int[] {block[0].pos, block[1].pos, block[2].pos, catchTypes.get(ii)});
+      }
+      return code;
+    }
+  }
+}
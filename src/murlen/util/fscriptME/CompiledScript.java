@@ -0,0 +1,117 @@
+package murlen.util.fscriptME;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * <b>CompiledScript - a script compiled once, to be run any number of times</b>
+ * <p>
+ * Holds the compiled code of a script and nothing that running it changes, so one
+ * CompiledScript can be shared freely between threads.  Each run gets an ExecutionContext
+ * of its own, holding its globals and call frames, with an FScript host supplying the
+ * external variables and functions as usual:</p>
+ * <pre>
+ *   CompiledScript script = CompiledScript.compile(source, FScript.Engine.VM);
+ *   Object result = script.run(new BasicIO());
+ * </pre>
+ */
+public final class CompiledScript {
+  private final Parser              parser;       // compiled code, with the symbols and source lines
+  private final List<Parser.Segment> program;     // top level code, in line order
+
+  private CompiledScript (Parser parser, List<Parser.Segment> program) {
+    this.parser = parser;
+    this.program = program;
+  }
+
+  /**
+   * Compiles a script to be run with the tree interpreter
+   *
+   * @param source the \n separated lines of the script
+   * @return the compiled script
+   */
+  public static CompiledScript compile (String source) throws FSException {
+    return compile(source, FScript.Engine.INTERPRETER);
+  }
+
+  /**
+   * Compiles a script
+   *
+   * @param source the \n separated lines of the script
+   * @param engine how the script is run
+   * @return the compiled script
+   */
+  public static CompiledScript compile (String source, FScript.Engine engine) throws FSException {
+    return compile(source, engine, new HostFunctions());
+  }
+
+  /**
+   * Compiles a script, linking its calls to host functions
+   *
+   * @param source    the \n separated lines of the script
+   * @param engine    how the script is run
+   * @param functions the host functions calls are linked to, see HostFunctions
+   * @return the compiled script
+   */
+  public static CompiledScript compile (String source, FScript.Engine engine, HostFunctions functions) throws FSException {
+    LineLoader code = new LineLoader();
+    code.addLines(source);
+    return compile(code, engine, functions, null);
+  }
+
+  // Compiles the lines of a LineLoader, which must not change afterwards, see FScript.compile()
+  static CompiledScript compile (LineLoader code, FScript.Engine engine, HostFunctions functions, Path cacheDir) throws FSException {
+    Parser parser = new Parser(engine, functions);
+    parser.cacheDir = cacheDir;
+    parser.setCode(code);
+    List<Parser.Segment> program = parser.segments(null, 0, code.lineCount() - 1);
+    for (Parser.Segment seg : program) {
+      compileLazy(seg.block);
+    }
+    return new CompiledScript(parser, program);
+  }
+
+  // Compiles the top level blocks left to compile when they first run, so running contexts don't have to
+  private static void compileLazy (Stmt stmt) {
+    if (stmt instanceof Stmt.Lazy) {
+      try {
+        compileLazy(((Stmt.Lazy) stmt).body());
+      } catch (FSException e) {
+        // Left to fail when it runs, as it would have
+      }
+    } else if (stmt instanceof Stmt.Block) {
+      for (Stmt child : ((Stmt.Block) stmt).stmts) {
+        compileLazy(child);
+      }
+    } else if (stmt instanceof Stmt.If) {
+      Stmt.If ifStmt = (Stmt.If) stmt;
+      for (Stmt body : ifStmt.bodies) {
+        compileLazy(body);
+      }
+      compileLazy(ifStmt.orElse);
+    } else if (stmt instanceof Stmt.While) {
+      compileLazy(((Stmt.While) stmt).body);
+    }
+  }
+
+  /**
+   * Makes a context to run the script in, with no global variables declared and no
+   * functions defined until the context runs the script
+   *
+   * @param host supplies the external variables and functions, and the call depth limit
+   * @return a new context, to be used by one thread at a time
+   */
+  public ExecutionContext newContext (FScript host) {
+    return new ExecutionContext(parser, host, program);
+  }
+
+  /**
+   * Runs the script in a new context
+   *
+   * @param host supplies the external variables and functions, and the call depth limit
+   * @return the value of the script's 'return' or 'exit', or null if none
+   */
+  public Object run (FScript host) throws FSException {
+    return newContext(host).run();
+  }
+}
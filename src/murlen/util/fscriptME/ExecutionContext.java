@@ -0,0 +1,370 @@
+package murlen.util.fscriptME;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <b>ExecutionContext - one run of compiled script code</b>
+ * <p>
+ * Holds everything running a script changes: the global variables, the functions its 'func'
+ * definitions bound, the call frames, and the state of an 'exit'.  The compiled code itself
+ * is never changed by running it, so any number of contexts can run one CompiledScript at the
+ * same time, each on its own thread.  A context is only used by one thread at a time.  Each
+ * FScript keeps one context of its own for runCode() and cont(), CompiledScript.newContext()
+ * makes new ones.</p>
+ */
+public final class ExecutionContext {
+  final Parser                  parser;                   // compiled code, shared by every context running it
+  final FScript                 host;                     // host variables and functions
+  private final List<Parser.Segment> program;             // code run by run(), or null if the host runs segments
+  Object[]                      globals = new Object[16]; // global variables by symbol id, null if not declared
+  Parser.FuncEntry[]            funcs = new Parser.FuncEntry[16]; // functions by symbol id, null if not defined
+  final Frame                   global = new Frame(this); // scope of the top level code
+  final Frame                   jitFrame = new Frame(this, new Object[0], new int[0], new double[0], new String[0]); // scope passed to compiled functions
+  private Frame[]               frames = new Frame[16];   // call frames, reused by call depth
+  int                           depth;                    // number of script function calls running
+  int                           maxDepth;                 // call depth limit
+  private int                   deepest;                  // deepest call depth reached since the host called in
+  private int                   deepestLine;              // line of the call that reached it
+  int                           curLine;                  // top level line running, where cont() resumes
+  private Object                retVal;                   // value passed to 'exit'
+  private boolean               exiting;                  // set when the script ran 'exit'
+  private final ExitException   exitEx = new ExitException(); // thrown to unwind an 'exit' through function calls
+  String[]                      error;                    // details of the last error, see getError()
+  Map<String, Object>           inputs;                   // see setInputs(), or null
+  private volatile boolean      cancelled;                // set by cancel()
+
+  // Context running on each thread, so FScript.exit(), getScriptVar() and the like called from
+  // a host function reach the run that called it, even when many runs share one host
+  private static final ThreadLocal<ExecutionContext> current = new ThreadLocal<>();
+
+  // exception thrown by call to exit, preallocated and without a stack trace since it is
+  // control flow rather than an error
+  static final class ExitException extends FSException {
+    public Throwable fillInStackTrace () {
+      return this;
+    }
+  }
+
+  ExecutionContext (Parser parser, FScript host, List<Parser.Segment> program) {
+    this.parser = parser;
+    this.host = host;
+    this.program = program;
+    maxDepth = host.maxDepth;
+    reserve();
+  }
+
+  /**
+   * Runs the compiled script from the start, with no global variables declared.  Functions
+   * defined by an earlier run stay defined, as they do for FScript.runCode().
+   *
+   * @return the value of the script's 'return' or 'exit', or null if none
+   */
+  public Object run () throws FSException {
+    reset();
+    try {
+      return run(program);
+    } catch (ExitException e) {
+      return retVal;
+    }
+  }
+
+  /**
+   * Calls a function defined by the script, or else one of the host
+   *
+   * @param name   the name of the function
+   * @param params the parameters to pass (must be correct type and number)
+   * @return the return value of the function (String,Integer)
+   */
+  public Object callFunction (String name, List<Object> params) throws FSException {
+    Symbol sym = parser.symbols.intern(name);
+    reserve();
+    boolean outer = depth == 0;
+    if (outer) {
+      deepest = 0;
+    }
+    ExecutionContext caller = current.get();
+    current.set(this);
+    try {
+      return callFunction(sym, params, global, curLine);
+    } catch (StackOverflowError e) {
+      // Calls from host functions back into the script leave it to the outermost call
+      if (outer) {
+        throw overflow();
+      }
+      throw e;
+    } finally {
+      current.set(caller);
+    }
+  }
+
+  /**
+   * Gets a global variable of the script
+   *
+   * @param name the name of the variable
+   * @return the value of the variable (String,Integer), or null if the script doesn't declare it
+   */
+  public Object getVar (String name) {
+    Symbol sym = parser.symbols.lookup(name);
+    return sym != null && sym.id < globals.length ? globals[sym.id] : null;
+  }
+
+  /**
+   * Sets a global variable of the script, ignored if the script doesn't declare it
+   *
+   * @param name  the name of the variable
+   * @param value the value to set variable to, of the declared type (String,Integer)
+   */
+  public void setVar (String name, Object value) throws FSException {
+    if (value == null || getVar(name) != null) {
+      Symbol sym = parser.symbols.intern(name);
+      reserve();
+      global.setVar(sym, value, curLine);
+    }
+  }
+
+  /**
+   * Supplies values the script reads as variables it doesn't declare itself, ahead of asking
+   * the host's getVar()
+   *
+   * @param inputs the values by variable name (String,Integer), or null for none
+   */
+  public void setInputs (Map<String, Object> inputs) {
+    this.inputs = inputs;
+  }
+
+  /**
+   * Stops the script running in this context, and any later run in it.  May be called from
+   * any thread, the script then fails with an FSException the next time it loops or calls
+   * a function.
+   */
+  public void cancel () {
+    cancelled = true;
+  }
+
+  /**
+   * Returns details of the last error, see FScript.getError()
+   *
+   * @return the error block, or null if there was no error
+   */
+  public String[] getError () {
+    return error;
+  }
+
+  // True if the script has defined a function of this name
+  boolean defines (String name) {
+    Symbol sym = parser.symbols.lookup(name);
+    return sym != null && sym.id < funcs.length && funcs[sym.id] != null;
+  }
+
+  // The declared globals, by name
+  Map<String, Object> getGlobals () {
+    return parser.symbols.toMap(globals);
+  }
+
+  // Grows the globals and functions to cover every symbol compiled so far
+  void reserve () {
+    int size = parser.symbols.size();
+    if (size > globals.length) {
+      int len = Math.max(size, globals.length * 2);
+      globals = Arrays.copyOf(globals, len);
+      funcs = Arrays.copyOf(funcs, len);
+    }
+  }
+
+  // Forget all global values and return values, keeping the functions
+  void reset () {
+    Arrays.fill(globals, null);
+    global.retVal = null;
+    retVal = null;
+    exiting = false;
+  }
+
+  // Runs segments of top level code in order, returns the value of a 'return' or 'exit', or null
+  Object run (List<Parser.Segment> segments) throws FSException {
+    exiting = false;
+    reserve();
+    deepest = 0;
+    ExecutionContext caller = current.get();
+    current.set(this);
+    try {
+      for (Parser.Segment seg : segments) {
+        if (run(seg)) {
+          return exiting ? retVal : global.retVal;
+        }
+      }
+    } catch (StackOverflowError e) {
+      throw overflow();
+    } finally {
+      current.set(caller);
+    }
+    return global.retVal;
+  }
+
+  // Returns the context running on this thread for the given host, or null if none is
+  static ExecutionContext running (FScript host) {
+    ExecutionContext cur = current.get();
+    return cur != null && cur.host == host ? cur : null;
+  }
+
+  // Runs a segment, returns true if it ran a 'return' or 'exit'
+  private boolean run (Parser.Segment seg) throws FSException {
+    if (seg.jit != null) {
+      int saved = depth;
+      try {
+        if (seg.jit.call(0, global, null) != null) {
+          return true;
+        }
+      } finally {
+        // Compiled code only counts calls down when they return normally
+        depth = saved;
+      }
+    } else {
+      for (Stmt stmt : seg.block.stmts) {
+        // Track the top level statement being run so cont() knows where to resume
+        curLine = stmt.line;
+        if (stmt.exec(global)) {
+          return true;
+        }
+      }
+    }
+    curLine = seg.to;
+    return false;
+  }
+
+  // Handle function execution
+  Object callFunction (Symbol sym, List<Object> params, Frame caller, int line) throws FSException {
+    // Check we have a definition for the function
+    Parser.FuncEntry fDef = funcs[sym.id];
+    if (fDef != null) {
+      // Check params and def match
+      if (fDef.paramNames.size() != params.size()) {
+        throw caller.error("Expected " + fDef.paramNames.size() + " parameters, Found " + params.size(), line);
+      }
+      params = fDef.widen(params);
+      int saved = depth;
+      enter(caller, line);
+      try {
+        if (fDef.jit != null && fDef.accepts(params)) {
+          return fDef.jit.call(fDef.jitIndex, jitFrame, params.toArray());
+        }
+        if (saved == frames.length) {
+          frames = Arrays.copyOf(frames, saved * 2);
+        }
+        Frame frame = frames[saved];
+        if (frame == null) {
+          frame = frames[saved] = new Frame(this);
+        }
+        // Let it rip, the return value is in frame.retVal
+        while (bind(frame, fDef, params).exec(frame)) {
+          if (exiting) {
+            // Unwind the expressions of the callers
+            throw exitEx;
+          }
+          if (frame.tailArgs == null) {
+            break;
+          }
+          poll(frame, line);
+          // Tail call to itself, run again in the same frame
+          params = fDef.widen(frame.tailArgs);
+        }
+        return frame.retVal;
+      } finally {
+        depth = saved;
+      }
+    } else {
+      HostFunctions.Entry fn = parser.functions.get(sym, params.size());
+      if (fn != null) {
+        return fn.invoke(params.toArray(), 0, caller, line);
+      }
+      return callHost(sym.name, params, caller, line);
+    }
+  }
+
+  // Calls into super class code, reporting its exceptions as errors of the call
+  Object callHost (String name, List<Object> params, Frame caller, int line) throws FSException {
+    try {
+      return host.callFunction(name, params);
+    } catch (ExitException e) {
+      throw e;
+    } catch (Exception e) {
+      throw caller.error(e.getMessage(), line);
+    }
+  }
+
+  // Prepares a frame for running a function with the given params, returns the body to run
+  private Stmt.Block bind (Frame frame, Parser.FuncEntry fDef, List<Object> params) {
+    if (fDef.localNames != null && fDef.accepts(params)) {
+      // Push the params into the first slots, int and double values unboxed
+      frame.enterSlots(fDef.localNames);
+      for (int ii = 0; ii < params.size(); ii++) {
+        Object param = params.get(ii);
+        frame.slots[ii] = param;
+        if (param instanceof Integer) {
+          frame.ints[ii] = (Integer) param;
+        } else if (param instanceof Double) {
+          frame.doubles[ii] = (Double) param;
+        }
+      }
+      return fDef.body;
+    }
+    Map<String, Object> locals = frame.enterNamed();
+    // Push the params into the local scope
+    for (int ii = 0; ii < fDef.paramNames.size(); ii++) {
+      locals.put(fDef.paramNames.get(ii), params.get(ii));
+    }
+    // Parameters of other types than declared don't fit the slots
+    return fDef.namedBody != null ? fDef.namedBody : fDef.body;
+  }
+
+  // Counts a call to a script function, failing once the call depth limit is reached
+  void enter (Frame caller, int line) throws FSException {
+    if (depth >= maxDepth) {
+      throw caller.error("Call depth limit of " + maxDepth + " exceeded", line);
+    }
+    poll(caller, line);
+    if (++depth > deepest) {
+      deepest = depth;
+      deepestLine = line;
+    }
+  }
+
+  /*
+   * The error for running out of thread stack before reaching the call depth limit.  It is only
+   * built once the stack has unwound to where the host called into the script, as building it
+   * at the call that failed could run out of stack again.
+   */
+  private FSException overflow () {
+    return error("Call depth limit of " + deepest + " exceeded", deepestLine, null);
+  }
+
+  // Fails once cancel() was called, checked by every function call and loop iteration
+  void poll (Frame frame, int line) throws FSException {
+    if (cancelled) {
+      throw frame.error("Script cancelled", line);
+    }
+  }
+
+  // Build an FSException reporting a runtime error, locals is null for the top level code
+  FSException error (String msg, int line, Map<String, Object> locals) {
+    return parser.error(this, msg, line, null, locals);
+  }
+
+  // Gets the 'exit' value
+  Object getReturnValue () {
+    return retVal;
+  }
+
+  // Can be called from external functions to force an exit
+  void exit (Object ret) throws FSException {
+    setExit(ret);
+    throw exitEx;
+  }
+
+  // Records an 'exit', the statements then stop and report it as a return
+  void setExit (Object ret) {
+    retVal = ret;
+    exiting = true;
+  }
+}
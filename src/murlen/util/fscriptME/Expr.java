@@ -0,0 +1,488 @@
+package murlen.util.fscriptME;
+
+import static murlen.util.fscriptME.LexAnn.Token.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <b>Expr - a compiled expression tree node - built once by Parser</b>
+ * <p>
+ * Operator precedence is resolved when Parser builds the tree, so evaluating an
+ * expression is just a walk over the nodes.  Every node remembers the source
+ * line it came from so runtime errors can be reported against the script.  Nodes
+ * that can only yield an Integer also evaluate to a primitive int with evalInt(), and
+ * those that can only yield a Double to a primitive double with evalDouble(), so math on
+ * locals and constants doesn't box its intermediate values.  An operator with a double
+ * and an int operand converts the int to a double.</p>
+ */
+abstract class Expr {
+  final int line;
+
+  Expr (int line) {
+    this.line = line;
+  }
+
+  /**
+   * Evaluate the expression
+   *
+   * @param frame the scope to evaluate the expression in
+   * @return the value (currently Integer, Double or String)
+   */
+  abstract Object eval (Frame frame) throws FSException;
+
+  /**
+   * Evaluate an expression for which isInt() is true
+   *
+   * @param frame the scope to evaluate the expression in
+   * @return the value
+   */
+  int evalInt (Frame frame) throws FSException {
+    return (Integer) eval(frame);
+  }
+
+  /**
+   * Evaluate an expression for which isInt() or isDouble() is true, as a double
+   *
+   * @param frame the scope to evaluate the expression in
+   * @return the value
+   */
+  double evalDouble (Frame frame) throws FSException {
+    return isInt() ? evalInt(frame) : (Double) eval(frame);
+  }
+
+  // True if the expression either yields an Integer or fails, known when the tree is built
+  boolean isInt () {
+    return false;
+  }
+
+  // True if the expression either yields a Double or fails
+  boolean isDouble () {
+    return false;
+  }
+
+  // Literal number or string
+  static final class Const extends Expr {
+    final Object          value;
+    private final int     intValue;
+    private final double  doubleValue;
+
+    Const (Object value, int line) {
+      super(line);
+      this.value = value;
+      this.intValue = value instanceof Integer ? (Integer) value : 0;
+      this.doubleValue = value instanceof Number ? ((Number) value).doubleValue() : 0;
+    }
+
+    Object eval (Frame frame) {
+      return value;
+    }
+
+    int evalInt (Frame frame) {
+      return intValue;
+    }
+
+    double evalDouble (Frame frame) {
+      return doubleValue;
+    }
+
+    boolean isInt () {
+      return value instanceof Integer;
+    }
+
+    boolean isDouble () {
+      return value instanceof Double;
+    }
+  }
+
+  // Variable reference, resolved at runtime through locals by name, the global and then the host
+  static final class Var extends Expr {
+    final Symbol  sym;
+
+    Var (Symbol sym, int line) {
+      super(line);
+      this.sym = sym;
+    }
+
+    Object eval (Frame frame) throws FSException {
+      return frame.getVar(sym, line);
+    }
+  }
+
+  // Reference to a function local bound to a slot by Resolver
+  static final class Local extends Expr {
+    final String    name;
+    final int       slot;
+    final Class<?>  type;                 // class of the local's values
+    final boolean   isInt;                // true for an int local, held in Frame.ints
+    final boolean   isDouble;             // true for a double local, held in Frame.doubles
+
+    Local (String name, int slot, Class<?> type, int line) {
+      super(line);
+      this.name = name;
+      this.slot = slot;
+      this.type = type;
+      this.isInt = type == Integer.class;
+      this.isDouble = type == Double.class;
+    }
+
+    Object eval (Frame frame) {
+      return isInt ? (Object) frame.ints[slot] : isDouble ? (Object) frame.doubles[slot] : frame.slots[slot];
+    }
+
+    int evalInt (Frame frame) {
+      return frame.ints[slot];
+    }
+
+    double evalDouble (Frame frame) {
+      return isDouble ? frame.doubles[slot] : frame.ints[slot];
+    }
+
+    boolean isInt () {
+      return isInt;
+    }
+
+    boolean isDouble () {
+      return isDouble;
+    }
+  }
+
+  // Element of a script array, such as name[index], or else of a host variable
+  static final class ArrayRef extends Expr {
+    final Symbol  sym;
+    final int     slot;                   // slot of a function local bound by Resolver, or -1
+    final Expr    index;
+
+    ArrayRef (Symbol sym, int slot, Expr index, int line) {
+      super(line);
+      this.sym = sym;
+      this.slot = slot;
+      this.index = index;
+    }
+
+    Object eval (Frame frame) throws FSException {
+      Object idx = index.eval(frame);
+      return frame.getElement(slot >= 0 ? frame.slots[slot] : frame.lookup(sym), sym, idx, line);
+    }
+  }
+
+  // New script array, the value an array declaration initializes its variable with
+  static final class NewArray extends Expr {
+    final boolean ints;                   // true for an int array, else a string array
+    final Expr    size;                   // number of elements, or null for an empty array
+
+    NewArray (boolean ints, Expr size, int line) {
+      super(line);
+      this.ints = ints;
+      this.size = size;
+    }
+
+    Object eval (Frame frame) throws FSException {
+      int length = size != null ? ScriptArray.length(size.eval(frame), frame, line) : 0;
+      return ints ? new ScriptArray.Ints(length) : new ScriptArray.Strings(length);
+    }
+  }
+
+  // Call to a script function, or to a function implemented by the host
+  static final class Call extends Expr {
+    final Symbol              sym;
+    final Expr[]              args;
+    final HostFunctions.Entry host;       // registered host function the call is linked to, or null
+
+    Call (Symbol sym, Expr[] args, HostFunctions.Entry host, int line) {
+      super(line);
+      this.sym = sym;
+      this.args = args;
+      this.host = host;
+    }
+
+    Object eval (Frame frame) throws FSException {
+      if (host != null && frame.ctx.funcs[sym.id] == null) {
+        Object[] vals = new Object[args.length];
+        for (int ii = 0; ii < vals.length; ii++) {
+          vals[ii] = args[ii].eval(frame);
+        }
+        return host.invoke(vals, 0, frame, line);
+      }
+      List<Object> params = new ArrayList<>(args.length);
+      for (Expr arg : args) {
+        params.add(arg.eval(frame));
+      }
+      return frame.ctx.callFunction(sym, params, frame, line);
+    }
+  }
+
+  // Unary minus
+  static final class Negate extends Expr {
+    final Expr  expr;
+
+    Negate (Expr expr, int line) {
+      super(line);
+      this.expr = expr;
+    }
+
+    Object eval (Frame frame) throws FSException {
+      if (expr.isInt()) {
+        return -expr.evalInt(frame);
+      } else if (expr.isDouble()) {
+        return -expr.evalDouble(frame);
+      }
+      Object val = expr.eval(frame);
+      if (val instanceof Integer) {
+        return -(Integer) val;
+      } else if (val instanceof Double) {
+        return -(Double) val;
+      }
+      throw frame.error("Type mismatch for unary -", line);
+    }
+
+    int evalInt (Frame frame) throws FSException {
+      return -expr.evalInt(frame);
+    }
+
+    double evalDouble (Frame frame) throws FSException {
+      return -expr.evalDouble(frame);
+    }
+
+    boolean isInt () {
+      return expr.isInt();
+    }
+
+    boolean isDouble () {
+      return expr.isDouble();
+    }
+  }
+
+  // Unary not
+  static final class Not extends Expr {
+    final Expr  expr;
+
+    Not (Expr expr, int line) {
+      super(line);
+      this.expr = expr;
+    }
+
+    Object eval (Frame frame) throws FSException {
+      return evalInt(frame);
+    }
+
+    int evalInt (Frame frame) throws FSException {
+      if (expr.isInt()) {
+        return expr.evalInt(frame) != 0 ? 0 : 1;
+      }
+      Object val = expr.eval(frame);
+      if (val instanceof Integer) {
+        return (Integer) val != 0 ? 0 : 1;
+      }
+      throw frame.error("Type mismatch for !", line);
+    }
+
+    boolean isInt () {
+      return true;
+    }
+  }
+
+  // Binary operator
+  static final class Binary extends Expr {
+    final LexAnn.Token  op;
+    final Expr          left;
+    final Expr          right;
+    private final boolean ints;           // both operands are int, so no boxing is needed
+    private final boolean doubles;        // one operand is double and the other int or double, evaluated as doubles
+
+    Binary (LexAnn.Token op, Expr left, Expr right, int line) {
+      super(line);
+      this.op = op;
+      this.left = left;
+      this.right = right;
+      this.ints = left.isInt() && right.isInt();
+      this.doubles = !ints && (left.isInt() || left.isDouble()) && (right.isInt() || right.isDouble());
+    }
+
+    Object eval (Frame frame) throws FSException {
+      if (ints) {
+        return apply(op, left.evalInt(frame), right.evalInt(frame), frame, line);
+      } else if (doubles) {
+        return apply(op, left.evalDouble(frame), right.evalDouble(frame), frame, line);
+      }
+      return apply(op, left.eval(frame), right.eval(frame), frame, line);
+    }
+
+    int evalInt (Frame frame) throws FSException {
+      if (ints) {
+        return apply(op, left.evalInt(frame), right.evalInt(frame), frame, line);
+      } else if (doubles) {
+        return compare(op, left.evalDouble(frame), right.evalDouble(frame), frame, line);
+      }
+      return (Integer) apply(op, left.eval(frame), right.eval(frame), frame, line);
+    }
+
+    double evalDouble (Frame frame) throws FSException {
+      if (doubles) {
+        return arith(op, left.evalDouble(frame), right.evalDouble(frame));
+      }
+      return super.evalDouble(frame);
+    }
+
+    // Math operators yield an Integer only for two Integers, or a String for + with a String
+    boolean isInt () {
+      return ints || !isMath(op);
+    }
+
+    boolean isDouble () {
+      return doubles && isMath(op);
+    }
+
+    static boolean isMath (LexAnn.Token op) {
+      return op == TT_PLUS || op == TT_MINUS || op == TT_MULT || op == TT_DIV || op == TT_MOD;
+    }
+
+    // Apply a math operator to two double operands, division by zero gives an infinity or NaN
+    static double arith (LexAnn.Token op, double lv, double rv) {
+      switch (op) {
+        case TT_PLUS:   return lv + rv;
+        case TT_MINUS:  return lv - rv;
+        case TT_MULT:   return lv * rv;
+        case TT_DIV:    return lv / rv;
+        default:        return lv % rv;
+      }
+    }
+
+    // Apply a comparison operator to two double operands
+    static int compare (LexAnn.Token op, double lv, double rv, Frame frame, int line) throws FSException {
+      switch (op) {
+        case TT_LEQ:    return lv == rv ? 1 : 0;
+        case TT_LNEQ:   return lv != rv ? 1 : 0;
+        case TT_LLS:    return lv < rv ? 1 : 0;
+        case TT_LLSE:   return lv <= rv ? 1 : 0;
+        case TT_LGR:    return lv > rv ? 1 : 0;
+        case TT_LGRE:   return lv >= rv ? 1 : 0;
+      }
+      throw frame.error("Type Mismatch for operator " + symbol(op), line);
+    }
+
+    // Apply a binary operator to two double operands
+    static Object apply (LexAnn.Token op, double lv, double rv, Frame frame, int line) throws FSException {
+      return isMath(op) ? (Object) arith(op, lv, rv) : (Object) compare(op, lv, rv, frame, line);
+    }
+
+    // Apply a binary operator to two int operands
+    static int apply (LexAnn.Token op, int lv, int rv, Frame frame, int line) throws FSException {
+      switch (op) {
+        case TT_PLUS:   return lv + rv;
+        case TT_MINUS:  return lv - rv;
+        case TT_MULT:   return lv * rv;
+        case TT_DIV:
+        case TT_MOD:
+          if (rv == 0) {
+            throw frame.error("Division by zero", line);
+          }
+          return op == TT_DIV ? lv / rv : lv % rv;
+        case TT_LAND:   return lv != 0 && rv != 0 ? 1 : 0;
+        case TT_LOR:    return lv != 0 || rv != 0 ? 1 : 0;
+        case TT_LEQ:    return lv == rv ? 1 : 0;
+        case TT_LNEQ:   return lv != rv ? 1 : 0;
+        case TT_LLS:    return lv < rv ? 1 : 0;
+        case TT_LLSE:   return lv <= rv ? 1 : 0;
+        case TT_LGR:    return lv > rv ? 1 : 0;
+        case TT_LGRE:   return lv >= rv ? 1 : 0;
+      }
+      throw frame.error("Type Mismatch for operator " + symbol(op), line);
+    }
+
+    // Apply a binary operator to two evaluated operands
+    static Object apply (LexAnn.Token op, Object lVal, Object rVal, Frame frame, int line) throws FSException {
+      if (lVal instanceof Integer && rVal instanceof Integer) {
+        return apply(op, (int) (Integer) lVal, (int) (Integer) rVal, frame, line);
+      } else if ((lVal instanceof Double || lVal instanceof Integer) && (rVal instanceof Double || rVal instanceof Integer)) {
+        return apply(op, ((Number) lVal).doubleValue(), ((Number) rVal).doubleValue(), frame, line);
+      } else if (lVal instanceof String && rVal instanceof String) {
+        String lv = (String) lVal;
+        String rv = (String) rVal;
+        switch (op) {
+          case TT_PLUS:   return lv + rv;
+          case TT_LEQ:    return lv.equals(rv) ? 1 : 0;
+          case TT_LNEQ:   return !lv.equals(rv) ? 1 : 0;
+          case TT_LLS:    return lv.compareTo(rv) < 0 ? 1 : 0;
+          case TT_LLSE:   return lv.compareTo(rv) <= 0 ? 1 : 0;
+          case TT_LGR:    return lv.compareTo(rv) > 0 ? 1 : 0;
+          case TT_LGRE:   return lv.compareTo(rv) >= 0 ? 1 : 0;
+        }
+      } else if (op == TT_PLUS && (lVal instanceof String || rVal instanceof String)) {
+        // Little bit of bulletproofing
+        String lv = lVal != null ? lVal.toString() : "null";
+        String rv = rVal != null ? rVal.toString() : "null";
+        return lv + rv;
+      }
+      throw frame.error("Type Mismatch for operator " + symbol(op), line);
+    }
+  }
+
+  // && or ||, which only evaluates the right operand if the left one doesn't decide the result
+  static final class Logical extends Expr {
+    final LexAnn.Token  op;               // TT_LAND or TT_LOR
+    final Expr          left;
+    final Expr          right;
+
+    Logical (LexAnn.Token op, Expr left, Expr right, int line) {
+      super(line);
+      this.op = op;
+      this.left = left;
+      this.right = right;
+    }
+
+    Object eval (Frame frame) throws FSException {
+      return evalInt(frame);
+    }
+
+    int evalInt (Frame frame) throws FSException {
+      int lv;
+      if (left.isInt()) {
+        lv = left.evalInt(frame);
+      } else {
+        Object lVal = left.eval(frame);
+        if (!(lVal instanceof Integer)) {
+          // Fails with a type mismatch
+          return (Integer) Binary.apply(op, lVal, right.eval(frame), frame, line);
+        }
+        lv = (Integer) lVal;
+      }
+      if ((lv == 0) == (op == TT_LAND)) {
+        return lv != 0 ? 1 : 0;
+      }
+      if (right.isInt()) {
+        return right.evalInt(frame) != 0 ? 1 : 0;
+      }
+      return (Integer) Binary.apply(op, lv, right.eval(frame), frame, line);
+    }
+
+    boolean isInt () {
+      return true;
+    }
+
+    // True if the left operand alone decides the result of op
+    static boolean decides (LexAnn.Token op, Object lVal) {
+      return lVal instanceof Integer && ((Integer) lVal == 0) == (op == TT_LAND);
+    }
+  }
+
+  // Source text of a binary operator, for error messages
+  static String symbol (LexAnn.Token op) {
+    switch (op) {
+      case TT_PLUS:   return "+";
+      case TT_MINUS:  return "-";
+      case TT_MULT:   return "*";
+      case TT_DIV:    return "/";
+      case TT_MOD:    return "%";
+      case TT_LAND:   return "&&";
+      case TT_LOR:    return "||";
+      case TT_LEQ:    return "==";
+      case TT_LNEQ:   return "!=";
+      case TT_LLS:    return "<";
+      case TT_LLSE:   return "<=";
+      case TT_LGR:    return ">";
+      case TT_LGRE:   return ">=";
+      default:        return op.toString();
+    }
+  }
+}
@@ -30,6 +30,8 @@ import java.lang.*;
  */
 
 public class FSException extends Exception {
+  int line = -1;      // script line the error was reported at, counting from 0, or -1 if not known
+
   public FSException () {
   }
 
@@ -1,5 +1,11 @@
 package murlen.util.fscriptME;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
 
 /**
@@ -34,19 +40,88 @@ import java.util.List;
 public class FScript {
   private Parser parser;
   private LineLoader code;
+  private ExecutionContext ctx;
+  int maxDepth = 1000;          // call depth limit of the contexts this object hosts
+
+  /**
+   * How compiled scripts are run
+   */
+  public enum Engine {
+    INTERPRETER,    // walk the compiled statement tree (default)
+    VM,             // run compact int[] instructions, falling back to INTERPRETER
+    JVM             // translate to JVM bytecode so HotSpot can compile it, falling back to INTERPRETER
+  }
 
   /**
    * Constructor
    */
   public FScript () {
-    parser = new Parser(this);
+    parser = new Parser(Engine.INTERPRETER, new HostFunctions());
     parser.setCode(code = new LineLoader());
+    ctx = new ExecutionContext(parser, this, null);
+  }
+
+  /**
+   * Selects how scripts are run, takes effect the next time the code is compiled
+   *
+   * @param engine the engine to use
+   */
+  public void setEngine (Engine engine) {
+    parser.engine = engine;
+    parser.invalidate();
+  }
+
+  /**
+   * Sets how deep script functions may call each other before the script fails with an
+   * FSException (default 1000).  Very deep recursion also needs a thread with a large
+   * enough stack to run the script on, a call that runs out of thread stack before reaching
+   * the limit fails with the same FSException, reporting the depth it reached.
+   *
+   * @param depth the maximum number of nested function calls
+   */
+  public void setMaxCallDepth (int depth) {
+    maxDepth = depth;
+    ctx.maxDepth = depth;
+  }
+
+  /**
+   * Keeps compiled scripts in a directory, so running the same script again, even in another
+   * JVM, loads its compiled form instead of parsing it.  Files are named by the SHA-256 digest
+   * of the script and by the cache format version, and are only used for the code loaded before the
+   * first run, not for lines added later for cont().
+   *
+   * @param dir the cache directory, created when needed, or null to turn caching off
+   */
+  public void setCacheDir (Path dir) {
+    parser.cacheDir = dir;
   }
 
   public void addLines (String s) {
     code.addLines(s);
   }
 
+  /**
+   * Adds the lines read from a Reader, which is read to the end but not closed
+   *
+   * @param in the source text
+   */
+  public void addLines (Reader in) throws IOException {
+    code.addLines(in);
+  }
+
+  /**
+   * Adds the lines of a UTF-8 script file.  The file is memory-mapped and decoded straight
+   * into the code store, so large generated scripts load in time and memory linear in
+   * their size.
+   *
+   * @param file the script file
+   */
+  public void addLines (Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      code.addLines(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), StandardCharsets.UTF_8);
+    }
+  }
+
   /**
    * Run the parser over currently loaded code
    *
@@ -55,20 +130,43 @@ public class FScript {
    */
   public Object runCode () throws FSException {
     try {
-      parser.reset();
-      return parser.parse(0, code.lineCount() - 1);
-    } catch (Parser.ExitException e) {
+      ctx.reset();
+      return ctx.run(parser.segments(ctx, 0, code.lineCount() - 1));
+    } catch (ExecutionContext.ExitException e) {
       //exit exceptions bubble up to here
-      return parser.getReturnValue();
+      return ctx.getReturnValue();
     }
   }
 
+  /**
+   * Compiles the currently loaded code into a CompiledScript, which can be run any number
+   * of times, on any number of threads at once, with this or other FScript objects as the
+   * host.  Lines added afterwards are not part of it.
+   *
+   * @return the compiled script
+   */
+  public CompiledScript compile () throws FSException {
+    return CompiledScript.compile(code.copy(), parser.engine, parser.functions, parser.cacheDir);
+  }
+
+  /**
+   * Returns the registry of Java methods this script can call as functions, see HostFunctions.
+   * Calls to them are linked when they are compiled, so they don't go through callFunction().
+   *
+   * @return the host functions of this script
+   */
+  public final HostFunctions getFunctions () {
+    return parser.functions;
+  }
+
   /**
    * Reset the internal code store
    */
   public void reset () {
     code.reset();
-    parser.reset();
+    parser.codeReset();
+    ctx.reset();
+    ctx.curLine = 0;
   }
 
   /**
@@ -77,10 +175,11 @@ public class FScript {
    * intended to be called from within functions implemented in FScript
    * subclasses
    *
-   * @param o, object that will be returned from the entry point (runCode or cont)
+   * @param o, object that will be returned from the entry point (runCode, cont or the
+   *           ExecutionContext run calling this host)
    **/
   public void exit (Object o) throws FSException {
-    parser.exit(o);
+    context().exit(o);
   }
 
   /**
@@ -92,10 +191,14 @@ public class FScript {
    * FScript's supported type objects, Integer,String)
    */
   public Object cont () throws FSException {
-    if (code.getCurLine() == 0) {
+    if (ctx.curLine == 0) {
       return runCode();
     } else {
-      return parser.parse(code.getCurLine() + 1, code.lineCount() - 1);
+      try {
+        return ctx.run(parser.segments(ctx, ctx.curLine + 1, code.lineCount() - 1));
+      } catch (ExecutionContext.ExitException e) {
+        return ctx.getReturnValue();
+      }
     }
   }
 
@@ -112,7 +215,7 @@ public class FScript {
    * s[5]=a global variable dump (only if currnent scope is not global <BR>
    */
   public String[] getError () {
-    return parser.getError();
+    return ctx.getError();
   }
 
   /**
@@ -195,7 +298,7 @@ public class FScript {
    * @param value the value to set variable to (String,Integer)
    */
   public final void setScriptVar (String name, Object value) throws FSException {
-    parser.setVar(name, value);
+    context().setVar(name, value);
   }
 
   /**
@@ -207,7 +310,7 @@ public class FScript {
    * @return the value of the variable (String,Integer)
    */
   public final Object getScriptVar (String name) throws FSException {
-    return parser.getVar(name);
+    return context().getVar(name);
   }
 
   /**
@@ -221,7 +324,14 @@ public class FScript {
    */
 
   public final Object callScriptFunction (String name, List<Object> params) throws FSException {
-    return parser.callFunction(name, params);
+    return context().callFunction(name, params);
+  }
+
+  // The context of the run calling into this host on this thread, such as a CompiledScript
+  // run, else the context runCode() and cont() use
+  private ExecutionContext context () {
+    ExecutionContext cur = ExecutionContext.running(this);
+    return cur != null ? cur : ctx;
   }
 
 }
@@ -0,0 +1,323 @@
+package murlen.util.fscriptME;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.Invocable;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+
+/**
+ * <b>FScriptEngine - a javax.script engine running FScript</b>
+ * <p>
+ * Scripts are compiled into a CompiledScript, either for one eval() or by compile() for
+ * any number of them, and each run gets an ExecutionContext of its own.  Variables a script
+ * doesn't declare are read from and written to the attributes of the ScriptContext, the
+ * engine scope first, and elements of List, Map and array attributes can be accessed as
+ * name[index].  Values other than Integer, Double and String are passed to scripts as Integer
+ * if they are whole numbers, which fails if they don't fit in an int, as Double if they are
+ * other numbers, as 1 or 0 if they are booleans, otherwise as Strings.  Once a script has run
+ * its globals are copied into the engine scope, and invokeFunction() calls the functions it
+ * defined.</p>
+ * <p>
+ * The println(...) and readln() functions use the writer and reader of the ScriptContext.
+ * The engine, FScript.Engine or its name, is selected with the ENGINE attribute.</p>
+ */
+public final class FScriptEngine extends AbstractScriptEngine implements Compilable, Invocable {
+  /**
+   * Attribute selecting the FScript.Engine scripts are compiled for, default INTERPRETER
+   */
+  public static final String  ENGINE = "fscript.engine";
+
+  private final ScriptEngineFactory factory;
+  private ExecutionContext    state;          // context of the last run, whose functions invokeFunction() calls
+  private Reader              input;          // reader of the ScriptContext readln() last read from
+  private BufferedReader      lines;          // input buffered, kept so text read ahead isn't lost between calls
+
+  public FScriptEngine () {
+    this(new FScriptEngineFactory());
+  }
+
+  FScriptEngine (ScriptEngineFactory factory) {
+    this.factory = factory;
+  }
+
+  // Host of a run, giving the script the attributes of the ScriptContext as externals
+  private final class Host extends FScript {
+    private final ScriptContext context;
+
+    Host (ScriptContext context) {
+      this.context = context;
+    }
+
+    Object getVar (String name, Object index) throws FSException {
+      int scope = context.getAttributesScope(name);
+      if (scope < 0) {
+        return super.getVar(name, index);
+      }
+      Object val = context.getAttribute(name, scope);
+      return toScript(index != null ? element(name, val, index) : val);
+    }
+
+    void setVar (String name, Object index, Object value) throws FSException {
+      int scope = context.getAttributesScope(name);
+      if (index == null) {
+        context.setAttribute(name, value, scope < 0 ? ScriptContext.ENGINE_SCOPE : scope);
+      } else if (scope < 0) {
+        super.setVar(name, index, value);
+      } else {
+        setElement(name, context.getAttribute(name, scope), index, value);
+      }
+    }
+
+    protected Object callFunction (String name, List<Object> params) throws FSException {
+      switch (name) {
+        case "println": {
+          StringBuilder s = new StringBuilder();
+          for (Object param : params) {
+            s.append(param);
+          }
+          PrintWriter out = new PrintWriter(context.getWriter(), true);
+          out.println(s);
+          return 0;
+        }
+        case "readln":
+          try {
+            return readLine(context.getReader());
+          } catch (IOException e) {
+            throw new FSException(e.getMessage());
+          }
+        default:
+          return super.callFunction(name, params);
+      }
+    }
+  }
+
+  // Reads a line for readln(), from one BufferedReader for as long as the context's reader stays the same
+  private String readLine (Reader reader) throws IOException {
+    if (reader != input) {
+      input = reader;
+      lines = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+    }
+    return lines.readLine();
+  }
+
+  public Object eval (String script, ScriptContext context) throws ScriptException {
+    return run(parse(script, context), context);
+  }
+
+  public Object eval (Reader reader, ScriptContext context) throws ScriptException {
+    return run(parse(reader, context), context);
+  }
+
+  public Bindings createBindings () {
+    return new SimpleBindings();
+  }
+
+  public ScriptEngineFactory getFactory () {
+    return factory;
+  }
+
+  // Compiled form returned by compile(), runs in the context passed to eval()
+  private final class Compiled extends javax.script.CompiledScript {
+    private final CompiledScript script;
+
+    Compiled (CompiledScript script) {
+      this.script = script;
+    }
+
+    public Object eval (ScriptContext context) throws ScriptException {
+      return run(script, context);
+    }
+
+    public ScriptEngine getEngine () {
+      return FScriptEngine.this;
+    }
+  }
+
+  public javax.script.CompiledScript compile (String script) throws ScriptException {
+    return new Compiled(parse(script, context));
+  }
+
+  public javax.script.CompiledScript compile (Reader script) throws ScriptException {
+    return new Compiled(parse(script, context));
+  }
+
+  public Object invokeFunction (String name, Object... args) throws ScriptException, NoSuchMethodException {
+    ExecutionContext ctx = state;
+    if (ctx == null || !ctx.defines(name)) {
+      throw new NoSuchMethodException(name);
+    }
+    List<Object> params = new ArrayList<>();
+    try {
+      if (args != null) {
+        for (Object arg : args) {
+          params.add(toScript(arg));
+        }
+      }
+      return ctx.callFunction(name, params);
+    } catch (FSException e) {
+      throw error(e, context);
+    }
+  }
+
+  // Scripts have no objects to call methods of
+  public Object invokeMethod (Object thiz, String name, Object... args) {
+    throw new IllegalArgumentException("FScript has no objects");
+  }
+
+  public <T> T getInterface (Class<T> clasz) {
+    if (clasz == null || !clasz.isInterface()) {
+      throw new IllegalArgumentException("Not an interface: " + clasz);
+    }
+    ExecutionContext ctx = state;
+    for (Method method : clasz.getMethods()) {
+      if (ctx == null || !ctx.defines(method.getName())) {
+        return null;
+      }
+    }
+    return clasz.cast(Proxy.newProxyInstance(clasz.getClassLoader(), new Class<?>[] {clasz},
+        (proxy, method, args) -> invokeFunction(method.getName(), args)));
+  }
+
+  public <T> T getInterface (Object thiz, Class<T> clasz) {
+    throw new IllegalArgumentException("FScript has no objects");
+  }
+
+  private CompiledScript parse (String script, ScriptContext context) throws ScriptException {
+    LineLoader code = new LineLoader();
+    code.addLines(script);
+    return parse(code, context);
+  }
+
+  private CompiledScript parse (Reader script, ScriptContext context) throws ScriptException {
+    LineLoader code = new LineLoader();
+    try {
+      code.addLines(script);
+    } catch (IOException e) {
+      throw new ScriptException(e);
+    }
+    return parse(code, context);
+  }
+
+  private CompiledScript parse (LineLoader code, ScriptContext context) throws ScriptException {
+    Object engine = context.getAttribute(ENGINE);
+    try {
+      if (engine instanceof String) {
+        engine = FScript.Engine.valueOf(((String) engine).toUpperCase());
+      }
+      return CompiledScript.compile(code, engine != null ? (FScript.Engine) engine : FScript.Engine.INTERPRETER, new HostFunctions(), null);
+    } catch (FSException e) {
+      throw error(e, context);
+    } catch (IllegalArgumentException | ClassCastException e) {
+      throw new ScriptException("Unknown " + ENGINE + ": " + engine);
+    }
+  }
+
+  // Runs a script in a new context, which invokeFunction() then uses
+  private Object run (CompiledScript script, ScriptContext context) throws ScriptException {
+    ExecutionContext ctx = script.newContext(new Host(context));
+    try {
+      Object ret = ctx.run();
+      Bindings bindings = context.getBindings(ScriptContext.ENGINE_SCOPE);
+      if (bindings != null) {
+        bindings.putAll(ctx.getGlobals());
+      }
+      return ret;
+    } catch (FSException e) {
+      throw error(e, context);
+    } finally {
+      state = ctx;
+    }
+  }
+
+  // The ScriptException reporting a compile or runtime error, with the line it was reported at
+  private static ScriptException error (FSException e, ScriptContext context) {
+    Object file = context.getAttribute(ScriptEngine.FILENAME);
+    ScriptException ex = new ScriptException(e.getMessage(), file != null ? file.toString() : null, e.line >= 0 ? e.line + 1 : -1);
+    ex.initCause(e);
+    return ex;
+  }
+
+  // Value passed to a script as an Integer, Double or String, never narrowed silently
+  private static Object toScript (Object val) throws FSException {
+    if (val == null || val instanceof Integer || val instanceof Double || val instanceof String) {
+      return val;
+    } else if (val instanceof Byte || val instanceof Short || val instanceof Long || val instanceof BigInteger ||
+               val instanceof AtomicInteger || val instanceof AtomicLong) {
+      Number num = (Number) val;
+      if (val instanceof BigInteger ? ((BigInteger) val).bitLength() < 32 : num.longValue() == num.intValue()) {
+        return num.intValue();
+      }
+      throw new FSException("Value " + val + " doesn't fit in an int");
+    } else if (val instanceof Number) {
+      // Float, BigDecimal and other fractional numbers
+      return ((Number) val).doubleValue();
+    } else if (val instanceof Boolean) {
+      return (Boolean) val ? 1 : 0;
+    }
+    return val.toString();
+  }
+
+  private static Object element (String name, Object container, Object index) throws FSException {
+    if (container instanceof Map) {
+      return ((Map<?, ?>) container).get(index);
+    }
+    int idx = index(name, index);
+    try {
+      if (container instanceof List) {
+        return ((List<?>) container).get(idx);
+      } else if (container != null && container.getClass().isArray()) {
+        return Array.get(container, idx);
+      }
+    } catch (IndexOutOfBoundsException e) {
+      throw new FSException("Index " + idx + " out of bounds for " + name);
+    }
+    throw new FSException("Not indexable: " + name);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void setElement (String name, Object container, Object index, Object value) throws FSException {
+    if (container instanceof Map) {
+      ((Map<Object, Object>) container).put(index, value);
+      return;
+    }
+    int idx = index(name, index);
+    try {
+      if (container instanceof List) {
+        ((List<Object>) container).set(idx, value);
+        return;
+      } else if (container != null && container.getClass().isArray()) {
+        Array.set(container, idx, value);
+        return;
+      }
+    } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+      throw new FSException("Can't set element " + idx + " of " + name);
+    }
+    throw new FSException("Not indexable: " + name);
+  }
+
+  private static int index (String name, Object index) throws FSException {
+    if (index instanceof Integer) {
+      return (Integer) index;
+    }
+    throw new FSException("Index of " + name + " must be an Integer");
+  }
+}
@@ -0,0 +1,76 @@
+package murlen.util.fscriptME;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+
+/**
+ * <b>FScriptEngineFactory - makes FScript available through javax.script</b>
+ * <p>
+ * Registered in META-INF/services, so <code>new ScriptEngineManager().getEngineByName("fscript")</code>
+ * finds it.  See FScriptEngine.</p>
+ */
+public final class FScriptEngineFactory implements ScriptEngineFactory {
+  private static final String       VERSION = "0.51";
+  private static final List<String> NAMES = Collections.unmodifiableList(Arrays.asList("fscript", "FScript", "fscriptME"));
+
+  public String getEngineName () {
+    return "FScriptME";
+  }
+
+  public String getEngineVersion () {
+    return VERSION;
+  }
+
+  public List<String> getExtensions () {
+    return Collections.singletonList("script");
+  }
+
+  public List<String> getMimeTypes () {
+    return Collections.emptyList();
+  }
+
+  public List<String> getNames () {
+    return NAMES;
+  }
+
+  public String getLanguageName () {
+    return "FScript";
+  }
+
+  public String getLanguageVersion () {
+    return VERSION;
+  }
+
+  public Object getParameter (String key) {
+    switch (key) {
+      case ScriptEngine.ENGINE:           return getEngineName();
+      case ScriptEngine.ENGINE_VERSION:   return getEngineVersion();
+      case ScriptEngine.NAME:             return NAMES.get(0);
+      case ScriptEngine.LANGUAGE:         return getLanguageName();
+      case ScriptEngine.LANGUAGE_VERSION: return getLanguageVersion();
+      // An engine keeps the state of its last run, compiled scripts are what may be shared
+      default:                            return null;
+    }
+  }
+
+  // Scripts have no objects, so this is a plain function call
+  public String getMethodCallSyntax (String obj, String m, String... args) {
+    return m + "(" + String.join(",", args) + ")";
+  }
+
+  public String getOutputStatement (String toDisplay) {
+    return "println(\"" + toDisplay.replace("\\", "\\\\").replace("\"", "\\\"") + "\")";
+  }
+
+  public String getProgram (String... statements) {
+    return String.join("\n", statements);
+  }
+
+  public ScriptEngine getScriptEngine () {
+    return new FScriptEngine(this);
+  }
+}
@@ -0,0 +1,235 @@
+package murlen.util.fscriptME;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <b>Frame - the variable scope of one running script function</b>
+ * <p>
+ * The top level code of a script runs in a Frame whose local variables are the
+ * script's global variables.  Every call to a script function gets a Frame holding
+ * its parameters and locals, by slot if Resolver could bind them at compile time,
+ * otherwise by name.  ExecutionContext keeps one Frame per call depth and reuses it, with its
+ * arrays and map, for every call made at that depth.  Globals are always accessed by
+ * symbol id, see Symbols.</p>
+ */
+final class Frame {
+  final ExecutionContext    ctx;          // owning context (globals, functions and host)
+  Map<String, Object>       vars;         // local variables by name, or null
+  Object[]                  slots;        // local variables by slot, or null; int and double locals hold their initial value here
+  int[]                     ints;         // values of the int locals by slot, or null
+  double[]                  doubles;      // values of the double locals by slot, or null
+  private String[]          slotNames;    // names of the slots in use, or null if the locals are by name
+  private Map<String, Object> map;        // map kept for reuse as vars
+  Object                    retVal;       // value passed to 'return'
+  List<Object>              tailArgs;     // arguments of a tail call to rerun the function with, or null
+
+  // Scope of the top level code, whose locals are the globals, or a call frame before its first use
+  Frame (ExecutionContext ctx) {
+    this(ctx, null, null, null, null, null);
+  }
+
+  // Scope of a function whose locals were bound to slots by Resolver
+  Frame (ExecutionContext ctx, Object[] slots, int[] ints, double[] doubles, String[] slotNames) {
+    this(ctx, null, slots, ints, doubles, slotNames);
+  }
+
+  private Frame (ExecutionContext ctx, Map<String, Object> vars, Object[] slots, int[] ints, double[] doubles, String[] slotNames) {
+    this.ctx = ctx;
+    this.vars = vars;
+    this.slots = slots;
+    this.ints = ints;
+    this.doubles = doubles;
+    this.slotNames = slotNames;
+  }
+
+  // Prepare this frame for a call to a function whose locals are looked up by name
+  Map<String, Object> enterNamed () {
+    if (map == null) {
+      map = new HashMap<>();
+    } else {
+      map.clear();
+    }
+    vars = map;
+    slotNames = null;
+    retVal = null;
+    tailArgs = null;
+    return map;
+  }
+
+  // Prepare this frame for a call to a function whose locals are bound to the given slots
+  void enterSlots (String[] names) {
+    int count = names.length;
+    if (slots == null || slots.length < count) {
+      slots = new Object[count];
+      ints = new int[count];
+      doubles = new double[count];
+    } else {
+      Arrays.fill(slots, 0, count, null);
+    }
+    vars = null;
+    slotNames = names;
+    retVal = null;
+    tailArgs = null;
+  }
+
+  // Add new variable and value to "vars" Map, or to the globals in the top level code
+  void addVar (Symbol sym, Object value, int line) throws FSException {
+    if (vars != null) {
+      if (vars.containsKey(sym.name)) {
+        throw error("Already defined in this scope: " + sym, line);
+      }
+      vars.put(sym.name, value);
+    } else {
+      Object[] globals = ctx.globals;
+      if (globals[sym.id] != null) {
+        throw error("Already defined in this scope: " + sym, line);
+      }
+      globals[sym.id] = value;
+    }
+  }
+
+  // Get value of variable in "vars" Map, or the global, or the host variable, or ask the host for it
+  Object getVar (Symbol sym, int line) throws FSException {
+    if (vars != null && vars.containsKey(sym.name)) {
+      return vars.get(sym.name);
+    }
+    Object val = ctx.globals[sym.id];
+    if (val != null) {
+      return val;
+    }
+    HostFunctions.Variable external = external(sym);
+    if (external != null) {
+      return external.get(this, line);
+    }
+    if (ctx.inputs != null && (val = ctx.inputs.get(sym.name)) != null) {
+      return val;
+    }
+    try {
+      return ctx.host.getVar(sym.name, null);
+    } catch (Exception e) {
+      throw error(e.getMessage(), line);
+    }
+  }
+
+  // Set value of variable in "vars" Map, or the global, or the host variable, or pass it to the host
+  void setVar (Symbol sym, Object val, int line) throws FSException {
+    if (val == null) {
+      throw error("set variable " + sym + " with null value", line);
+    }
+    if (vars != null && vars.containsKey(sym.name)) {
+      vars.put(sym.name, convert(val, vars.get(sym.name), line));
+      return;
+    }
+    Object[] globals = ctx.globals;
+    if (globals[sym.id] != null) {
+      globals[sym.id] = convert(val, globals[sym.id], line);
+    } else {
+      HostFunctions.Variable external = external(sym);
+      if (external != null) {
+        external.set(val, this, line);
+        return;
+      }
+      try {
+        ctx.host.setVar(sym.name, null, val);
+      } catch (Exception e) {
+        throw error(e.getMessage(), line);
+      }
+    }
+  }
+
+  // Value of a variable in "vars" Map or of the global, or null if the script hasn't declared it
+  Object lookup (Symbol sym) {
+    if (vars != null && vars.containsKey(sym.name)) {
+      return vars.get(sym.name);
+    }
+    return ctx.globals[sym.id];
+  }
+
+  // Get an element of a script array, or else of the host variable named by sym
+  Object getElement (Object array, Symbol sym, Object index, int line) throws FSException {
+    if (array instanceof ScriptArray) {
+      return ((ScriptArray) array).load(index(index, line), this, sym.name, line);
+    } else if (array != null) {
+      throw error("Not an array: " + sym, line);
+    }
+    try {
+      return ctx.host.getVar(sym.name, index);
+    } catch (Exception e) {
+      throw error(e.getMessage(), line);
+    }
+  }
+
+  // Set an element of a script array, or else of the host variable named by sym
+  void setElement (Object array, Symbol sym, Object index, Object val, int line) throws FSException {
+    if (array instanceof ScriptArray) {
+      ((ScriptArray) array).store(index(index, line), val, this, sym.name, line);
+      return;
+    } else if (array != null) {
+      throw error("Not an array: " + sym, line);
+    }
+    try {
+      ctx.host.setVar(sym.name, index, val);
+    } catch (Exception e) {
+      throw error(e.getMessage(), line);
+    }
+  }
+
+  // Index of a script array element
+  int index (Object index, int line) throws FSException {
+    if (!(index instanceof Integer)) {
+      throw error("Array index needs to be Integer", line);
+    }
+    return (Integer) index;
+  }
+
+  // Host variable a symbol was linked to, or one defined after the symbol was interned
+  private HostFunctions.Variable external (Symbol sym) {
+    return sym.external != null ? sym.external : ctx.parser.functions.variable(sym.name);
+  }
+
+  // Set value of a local variable bound to a slot, unboxing it for an int or double local
+  void setLocal (int slot, Object val, int line) throws FSException {
+    if (val == null) {
+      throw error("set variable " + slotNames[slot] + " with null value", line);
+    }
+    val = convert(val, slots[slot], line);
+    if (val instanceof Integer) {
+      ints[slot] = (Integer) val;
+    } else if (val instanceof Double) {
+      doubles[slot] = (Double) val;
+    } else {
+      slots[slot] = val;
+    }
+  }
+
+  // Value assigned to a variable holding old, which must be of the same type, or an Integer assigned to a double
+  Object convert (Object val, Object old, int line) throws FSException {
+    if (val.getClass() == old.getClass()) {
+      return val;
+    } else if (val instanceof Integer && old instanceof Double) {
+      return (double) (Integer) val;
+    }
+    throw error("Incompatible types", line);
+  }
+
+  // Build an FSException reporting a runtime error in this frame
+  FSException error (String msg, int line) {
+    Map<String, Object> locals = vars;
+    if (slotNames != null) {
+      locals = new HashMap<>();
+      for (int ii = 0; ii < slotNames.length; ii++) {
+        if (slots[ii] instanceof Integer) {
+          locals.put(slotNames[ii], ints[ii]);
+        } else if (slots[ii] instanceof Double) {
+          locals.put(slotNames[ii], doubles[ii]);
+        } else if (slots[ii] != null) {
+          locals.put(slotNames[ii], slots[ii]);
+        }
+      }
+    }
+    return ctx.error(msg, line, locals);
+  }
+}
@@ -0,0 +1,430 @@
+package murlen.util.fscriptME;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
+import java.util.function.DoubleSupplier;
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+/**
+ * <b>HostFunctions - Java methods and variables a host makes available to scripts</b>
+ * <p>
+ * Functions are registered by name and number of parameters, as MethodHandles, reflected
+ * methods or lambdas.  Parser links every call whose name and argument count match a
+ * registered function to it when the call is compiled, so running it calls the method
+ * through its MethodHandle: the VM and interpreter pass the argument values as they are,
+ * and code compiled with Engine.JVM calls the handle with int and double parameters unboxed.  A
+ * script function of the same name still takes precedence, and names not registered
+ * are passed to FScript.callFunction() as before.  Functions registered after a call was
+ * compiled are found when it runs, through the slower unlinked path.</p>
+ * <p>
+ * Parameters may be int, Integer, double, Double, String or Object, and the result int,
+ * double, boolean (as 1 or 0), void (as 0), Integer, Double, String or Object.  An int passed
+ * for a double parameter is converted:</p>
+ * <pre>
+ *   FScript script = new FScript();
+ *   script.getFunctions()
+ *     .register("max", (IntBinaryOperator) Math::max)
+ *     .register("println", (Consumer&lt;Object&gt;) System.out::println);
+ * </pre>
+ * <p>
+ * External variables are defined the same way, by a getter and a setter, or a null setter
+ * if scripts may only read them.  Every name a script uses is linked to the variable of
+ * that name when it is compiled, so a variable the script doesn't declare itself is read
+ * and written through its accessors without asking FScript.getVar() and setVar().  With
+ * setStrict(true) a script using a name that it doesn't declare and that isn't defined
+ * here fails to compile, instead of failing when the name is used:</p>
+ * <pre>
+ *   script.getFunctions()
+ *     .defineInt("count", () -&gt; count, val -&gt; count = val)
+ *     .defineString("user", () -&gt; user, null)
+ *     .setStrict(true);
+ * </pre>
+ */
+public final class HostFunctions {
+  private static final int          MAX_EXACT = 4;        // more parameters than this are passed as an array
+  private static final MethodHandle BOOL_TO_INT;          // converts boolean results to 1 or 0
+  private static final MethodHandle TO_DOUBLE;            // converts Integer and Double arguments to double
+  static final Entry                LEN;                  // len(array), built in unless a function of that name is registered, other arguments go to the host
+  private final Map<String, Entry>  functions = new ConcurrentHashMap<>();  // by name/arity
+  private final AtomicInteger       version = new AtomicInteger();        // counts registrations, so cached lookups know to look again
+  private final Map<String, Variable> variables = new ConcurrentHashMap<>();
+  private volatile boolean          strict;               // see setStrict()
+
+  static {
+    try {
+      BOOL_TO_INT = MethodHandles.lookup().findStatic(HostFunctions.class, "boolToInt", MethodType.methodType(int.class, boolean.class));
+      TO_DOUBLE = MethodHandles.lookup().findStatic(HostFunctions.class, "toDouble", MethodType.methodType(double.class, Object.class));
+      LEN = new Entry("len", MethodHandles.lookup().findStatic(ScriptArray.class, "len", MethodType.methodType(int.class, Object.class)));
+    } catch (ReflectiveOperationException ex) {
+      throw new ExceptionInInitializerError(ex);
+    }
+  }
+
+  private static int boolToInt (boolean val) {
+    return val ? 1 : 0;
+  }
+
+  private static double toDouble (Object val) {
+    return val instanceof Integer ? (Integer) val : (Double) val;
+  }
+
+  // A registered function, with the forms of its MethodHandle the engines call
+  static final class Entry {
+    final String        name;
+    final MethodHandle  handle;       // as registered, called directly by compiled code
+    final Class<?>[]    params;       // parameter types of handle
+    private final MethodHandle generic; // takes and returns Objects, with the arguments in an array past MAX_EXACT
+
+    Entry (String name, MethodHandle handle) {
+      this.name = name;
+      this.handle = handle;
+      MethodType type = handle.type();
+      params = type.parameterArray();
+      MethodHandle mh = handle;
+      for (int ii = 0; ii < params.length; ii++) {
+        if (params[ii] == double.class || params[ii] == Double.class) {
+          mh = MethodHandles.filterArguments(mh, ii, TO_DOUBLE.asType(MethodType.methodType(params[ii], Object.class)));
+        }
+      }
+      if (type.returnType() == void.class) {
+        mh = MethodHandles.foldArguments(MethodHandles.dropArguments(MethodHandles.constant(Object.class, 0), 0, mh.type().parameterList()), mh);
+      } else if (type.returnType() == boolean.class) {
+        mh = MethodHandles.filterReturnValue(mh, BOOL_TO_INT);
+      }
+      mh = mh.asType(MethodType.genericMethodType(params.length));
+      generic = params.length > MAX_EXACT ? mh.asSpreader(Object[].class, params.length) : mh;
+    }
+
+    /**
+     * Calls the function with the argument values args[from] on
+     *
+     * @param args   holds the argument values
+     * @param from   index of the first argument in args
+     * @param caller frame of the call, for error reports
+     * @param line   line of the call
+     * @return the result, as an Integer, Double, String or whatever Object the method returned
+     */
+    Object invoke (Object[] args, int from, Frame caller, int line) throws FSException {
+      if (this == LEN && !(args[from] instanceof ScriptArray)) {
+        // Only arrays have a built in length, hosts may still implement len() for anything else
+        return caller.ctx.callHost(name, new ArrayList<>(Arrays.asList(args[from])), caller, line);
+      } else if (!accepts(args, from)) {
+        throw caller.error("Incompatible types in call to " + name, line);
+      }
+      try {
+        switch (params.length) {
+          case 0: return generic.invokeExact();
+          case 1: return generic.invokeExact(args[from]);
+          case 2: return generic.invokeExact(args[from], args[from + 1]);
+          case 3: return generic.invokeExact(args[from], args[from + 1], args[from + 2]);
+          case 4: return generic.invokeExact(args[from], args[from + 1], args[from + 2], args[from + 3]);
+          default:
+            Object[] spread = new Object[params.length];
+            System.arraycopy(args, from, spread, 0, spread.length);
+            return generic.invokeExact(spread);
+        }
+      } catch (Throwable ex) {
+        throw error(ex, caller, line);
+      }
+    }
+
+    // True if the values args[from] on are of types the method's parameters accept
+    private boolean accepts (Object[] args, int from) {
+      for (int ii = 0; ii < params.length; ii++) {
+        Object arg = args[from + ii];
+        Class<?> type = params[ii];
+        if (type == int.class || type == Integer.class) {
+          if (!(arg instanceof Integer)) {
+            return false;
+          }
+        } else if (type == double.class || type == Double.class) {
+          if (!(arg instanceof Integer) && !(arg instanceof Double)) {
+            return false;
+          }
+        } else if (type != Object.class && !type.isInstance(arg)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /*
+     * The FSException to throw for an exception thrown by the function.  The arguments are
+     * checked or converted before the method is called, so anything it throws is its own,
+     * and is kept as the cause.
+     */
+    FSException error (Throwable ex, Frame caller, int line) {
+      if (ex instanceof ExecutionContext.ExitException) {
+        return (FSException) ex;
+      } else if (ex instanceof Error) {
+        throw (Error) ex;
+      }
+      FSException err = caller.error(ex.getMessage() != null ? ex.getMessage() : ex.toString(), line);
+      err.initCause(ex);
+      return err;
+    }
+  }
+
+  // The function found for a name and number of parameters, cached on the name's Symbol
+  static final class Lookup {
+    final int   version;      // registry version it was looked up at
+    final int   argc;
+    final Entry entry;        // null if none was registered
+
+    Lookup (int version, int argc, Entry entry) {
+      this.version = version;
+      this.argc = argc;
+      this.entry = entry;
+    }
+  }
+
+  // An external variable, read and written through the accessors the host defined it with
+  static final class Variable {
+    final String              name;
+    final Class<?>            type;       // Integer.class, Double.class or String.class, or Object.class for any value
+    private final Supplier<?> getter;
+    private final Consumer<Object> setter; // null if the variable is read-only
+
+    Variable (String name, Class<?> type, Supplier<?> getter, Consumer<Object> setter) {
+      this.name = name;
+      this.type = type;
+      this.getter = getter;
+      this.setter = setter;
+    }
+
+    Object get (Frame frame, int line) throws FSException {
+      Object val;
+      try {
+        val = getter.get();
+      } catch (RuntimeException ex) {
+        throw frame.error(ex.getMessage(), line);
+      }
+      if (val == null) {
+        throw frame.error("External " + name + " has no value", line);
+      }
+      return val;
+    }
+
+    void set (Object val, Frame frame, int line) throws FSException {
+      if (setter == null) {
+        throw frame.error("External " + name + " is read-only", line);
+      } else if (type == Double.class && val instanceof Integer) {
+        val = (double) (Integer) val;
+      } else if (!type.isInstance(val)) {
+        throw frame.error("Incompatible types", line);
+      }
+      try {
+        setter.accept(val);
+      } catch (RuntimeException ex) {
+        throw frame.error(ex.getMessage(), line);
+      }
+    }
+  }
+
+  /**
+   * Registers a function, replacing any registered with the same name and number of parameters
+   *
+   * @param name   the name scripts call it by
+   * @param handle the method to call
+   * @return this, so registrations can be chained
+   */
+  public HostFunctions register (String name, MethodHandle handle) {
+    handle = handle.asFixedArity();
+    MethodType type = handle.type();
+    if (!allowed(type.returnType(), true)) {
+      throw new IllegalArgumentException("Unsupported result type for " + name + ": " + type);
+    }
+    for (Class<?> param : type.parameterArray()) {
+      if (!allowed(param, false)) {
+        throw new IllegalArgumentException("Unsupported parameter type for " + name + ": " + type);
+      }
+    }
+    functions.put(name + "/" + type.parameterCount(), new Entry(name, handle));
+    version.incrementAndGet();
+    return this;
+  }
+
+  /**
+   * Registers a method, with the target it is called on unless it is static
+   *
+   * @param name   the name scripts call it by
+   * @param method the method to call
+   * @param target the object to call it on, ignored if the method is static
+   * @return this, so registrations can be chained
+   */
+  public HostFunctions register (String name, Method method, Object target) {
+    try {
+      method.setAccessible(true);
+      MethodHandle handle = MethodHandles.lookup().unreflect(method);
+      return register(name, Modifier.isStatic(method.getModifiers()) ? handle : handle.bindTo(target));
+    } catch (IllegalAccessException | SecurityException ex) {
+      throw new IllegalArgumentException("Can't access " + method, ex);
+    }
+  }
+
+  /**
+   * Registers a lambda or method reference, called through the single abstract method of its
+   * functional interface, such as <code>(IntBinaryOperator) Math::max</code>
+   *
+   * @param name     the name scripts call it by
+   * @param function the lambda
+   * @return this, so registrations can be chained
+   */
+  public HostFunctions register (String name, Object function) {
+    Method sam = null;
+    for (Class<?> type : function.getClass().getInterfaces()) {
+      for (Method method : type.getMethods()) {
+        if (Modifier.isAbstract(method.getModifiers()) && !isObjectMethod(method)) {
+          if (sam != null) {
+            throw new IllegalArgumentException(name + " doesn't implement a functional interface");
+          }
+          sam = method;
+        }
+      }
+    }
+    if (sam == null) {
+      throw new IllegalArgumentException(name + " doesn't implement a functional interface");
+    }
+    return register(name, sam, function);
+  }
+
+  /**
+   * Registers every public method declared by the class of an object, by its own name
+   *
+   * @param target the object whose methods to register
+   * @return this, so registrations can be chained
+   */
+  public HostFunctions registerAll (Object target) {
+    for (Method method : target.getClass().getDeclaredMethods()) {
+      if (Modifier.isPublic(method.getModifiers())) {
+        register(method.getName(), method, target);
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Defines an int variable, replacing any defined with the same name
+   *
+   * @param name   the name scripts use
+   * @param getter supplies its value
+   * @param setter receives the values scripts assign, or null if scripts may only read it
+   * @return this, so definitions can be chained
+   */
+  public HostFunctions defineInt (String name, IntSupplier getter, IntConsumer setter) {
+    variables.put(name, new Variable(name, Integer.class, getter::getAsInt, setter != null ? val -> setter.accept((Integer) val) : null));
+    return this;
+  }
+
+  /**
+   * Defines a double variable, replacing any defined with the same name.  Ints assigned to it
+   * are converted.
+   *
+   * @param name   the name scripts use
+   * @param getter supplies its value
+   * @param setter receives the values scripts assign, or null if scripts may only read it
+   * @return this, so definitions can be chained
+   */
+  public HostFunctions defineDouble (String name, DoubleSupplier getter, DoubleConsumer setter) {
+    variables.put(name, new Variable(name, Double.class, getter::getAsDouble, setter != null ? val -> setter.accept((Double) val) : null));
+    return this;
+  }
+
+  /**
+   * Defines a string variable, replacing any defined with the same name
+   *
+   * @param name   the name scripts use
+   * @param getter supplies its value
+   * @param setter receives the values scripts assign, or null if scripts may only read it
+   * @return this, so definitions can be chained
+   */
+  public HostFunctions defineString (String name, Supplier<String> getter, Consumer<String> setter) {
+    variables.put(name, new Variable(name, String.class, getter, setter != null ? val -> setter.accept((String) val) : null));
+    return this;
+  }
+
+  /**
+   * Defines a variable whose value may be of any type, replacing any defined with the same name
+   *
+   * @param name   the name scripts use
+   * @param getter supplies its value, usually an Integer, Double or String
+   * @param setter receives the values scripts assign, or null if scripts may only read it
+   * @return this, so definitions can be chained
+   */
+  public HostFunctions define (String name, Supplier<?> getter, Consumer<Object> setter) {
+    variables.put(name, new Variable(name, Object.class, getter, setter));
+    return this;
+  }
+
+  /**
+   * Makes names scripts use without declaring them compile errors unless they are defined
+   * here.  Scripts compiled with a strict registry can't read variables from the host's
+   * getVar() or from ExecutionContext.setInputs().
+   *
+   * @param strict true to check the names when compiling
+   * @return this, so definitions can be chained
+   */
+  public HostFunctions setStrict (boolean strict) {
+    this.strict = strict;
+    return this;
+  }
+
+  // Function registered for a call with argc arguments, or the built in len(), or null
+  Entry get (String name, int argc) {
+    Entry entry = functions.isEmpty() ? null : functions.get(name + "/" + argc);
+    if (entry == null && argc == 1 && name.equals("len")) {
+      return LEN;
+    }
+    return entry;
+  }
+
+  /*
+   * Same as get(sym.name, argc), for calls that weren't linked when they were compiled.  The
+   * result is cached on the symbol until another function is registered, so the calls hosts
+   * handle in FScript.callFunction() don't build a key to look up every time they run.
+   */
+  Entry get (Symbol sym, int argc) {
+    Lookup last = sym.lookup;
+    int current = version.get();
+    if (last == null || last.version != current || last.argc != argc) {
+      sym.lookup = last = new Lookup(current, argc, get(sym.name, argc));
+    }
+    return last.entry;
+  }
+
+  // Variable defined with this name, or null
+  Variable variable (String name) {
+    return variables.isEmpty() ? null : variables.get(name);
+  }
+
+  boolean isStrict () {
+    return strict;
+  }
+
+  // True for the methods of Object some functional interfaces redeclare, such as Comparator.equals()
+  private static boolean isObjectMethod (Method method) {
+    try {
+      Object.class.getMethod(method.getName(), method.getParameterTypes());
+      return true;
+    } catch (NoSuchMethodException ex) {
+      return false;
+    }
+  }
+
+  private static boolean allowed (Class<?> type, boolean result) {
+    return type == int.class || type == Integer.class || type == double.class || type == Double.class || type == String.class || type == Object.class ||
+      (result && (type == boolean.class || type == void.class));
+  }
+}
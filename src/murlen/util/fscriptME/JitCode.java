@@ -0,0 +1,243 @@
+package murlen.util.fscriptME;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * <b>JitCode - base class of the classes generated by JitCompiler, and of VmCode</b>
+ * <p>
+ * A generated class holds one static method per compiled script function, plus one for
+ * the top level code, and implements call() to dispatch to them.  The static helpers
+ * below are called by the generated code for everything that is not plain int math, so
+ * they follow the same rules as the Stmt and Expr nodes they replace.</p>
+ */
+abstract class JitCode {
+  static final Object RETURNED = new Object();    // top level code ran a 'return'
+
+  /**
+   * Run compiled code
+   *
+   * @param index 0 for the top level code, or the index of a compiled function
+   * @param frame the scope to run in
+   * @param args  the function parameters, already checked against the declared types
+   * @return      the function's return value, or for the top level code RETURNED if it
+   *              ran a 'return' (the value is then in frame.retVal), null otherwise
+   */
+  abstract Object call (int index, Frame frame, Object[] args) throws FSException;
+
+  // Helpers called by the generated code and by VmCode
+
+  static Object getVar (Frame frame, Object sym, int line) throws FSException {
+    return frame.getVar((Symbol) sym, line);
+  }
+
+  static void setVar (Frame frame, Object sym, Object val, int line) throws FSException {
+    frame.setVar((Symbol) sym, val, line);
+  }
+
+  static void addVar (Frame frame, Object sym, Object initial, int line) throws FSException {
+    frame.addVar((Symbol) sym, initial, line);
+  }
+
+  static Object getArray (Frame frame, Object sym, Object index, int line) throws FSException {
+    return frame.getElement(frame.lookup((Symbol) sym), (Symbol) sym, index, line);
+  }
+
+  static void setArray (Frame frame, Object sym, Object index, Object val, int line) throws FSException {
+    frame.setElement(frame.lookup((Symbol) sym), (Symbol) sym, index, val, line);
+  }
+
+  static Object call (Frame frame, Object sym, Object[] args, int line) throws FSException {
+    return frame.ctx.callFunction((Symbol) sym, new ArrayList<>(Arrays.asList(args)), frame, line);
+  }
+
+  // Exception thrown by a host function called from compiled code, see JitCompiler.genHostCall()
+  static FSException hostError (Throwable ex, Object host, Frame frame, int line) {
+    return ((HostFunctions.Entry) host).error(ex, frame, line);
+  }
+
+  // Built in len() of an array, anything else is passed to the host, see JitCompiler.genLen()
+  static Object len (Object arg, Frame frame, Object sym, int line) throws FSException {
+    if (arg instanceof ScriptArray) {
+      return ((ScriptArray) arg).size;
+    }
+    return frame.ctx.callHost(((Symbol) sym).name, new ArrayList<>(Arrays.asList(arg)), frame, line);
+  }
+
+  // True if symbol sym is currently bound to the given function, so it can be called directly
+  static boolean bound (Frame frame, Object sym, Object fDef) {
+    return frame.ctx.funcs[((Symbol) sym).id] == fDef;
+  }
+
+  // Same as bound(), and counts the direct call against the call depth limit until leave()
+  static boolean enter (Frame frame, Object sym, Object fDef, int line) throws FSException {
+    if (!bound(frame, sym, fDef)) {
+      return false;
+    }
+    frame.ctx.enter(frame, line);
+    return true;
+  }
+
+  static void leave (Frame frame) {
+    frame.ctx.depth--;
+  }
+
+  // Fails if the script was cancelled, called where compiled code loops
+  static void poll (Frame frame, int line) throws FSException {
+    frame.ctx.poll(frame, line);
+  }
+
+  // Frame used by compiled functions, which keep their locals in JVM locals
+  static Frame callee (Frame frame) {
+    return frame.ctx.jitFrame;
+  }
+
+  static Object binary (Frame frame, int op, Object lVal, Object rVal, int line) throws FSException {
+    return Expr.Binary.apply(LexAnn.Token.values()[op], lVal, rVal, frame, line);
+  }
+
+  // True if the left operand of op (&& or ||) decides the result
+  static boolean decides (Object lVal, int op) {
+    return Expr.Logical.decides(LexAnn.Token.values()[op], lVal);
+  }
+
+  // Result of && or || when the left operand didn't decide it
+  static Object logical (Object lVal, Object rVal, Frame frame, int op, int line) throws FSException {
+    return binary(frame, op, lVal, rVal, line);
+  }
+
+  static Object negate (Object val, Frame frame, int line) throws FSException {
+    if (val instanceof Integer) {
+      return -(Integer) val;
+    } else if (val instanceof Double) {
+      return -(Double) val;
+    }
+    throw frame.error("Type mismatch for unary -", line);
+  }
+
+  static Object not (Object val, Frame frame, int line) throws FSException {
+    if (val instanceof Integer) {
+      return (Integer) val != 0 ? 0 : 1;
+    }
+    throw frame.error("Type mismatch for !", line);
+  }
+
+  // Value assigned to an int local
+  static int toInt (Object val, Frame frame, String name, int line) throws FSException {
+    if (val instanceof Integer) {
+      return (Integer) val;
+    }
+    throw frame.error(val == null ? "set variable " + name + " with null value" : "Incompatible types", line);
+  }
+
+  // Value assigned to a double local, an Integer is converted
+  static double toDouble (Object val, Frame frame, String name, int line) throws FSException {
+    if (val instanceof Double) {
+      return (Double) val;
+    } else if (val instanceof Integer) {
+      return (Integer) val;
+    }
+    throw frame.error(val == null ? "set variable " + name + " with null value" : "Incompatible types", line);
+  }
+
+  // Value assigned to a string local
+  static Object toStr (Object val, Frame frame, String name, int line) throws FSException {
+    if (val instanceof String) {
+      return val;
+    }
+    throw frame.error(val == null ? "set variable " + name + " with null value" : "Incompatible types", line);
+  }
+
+  // Value assigned to an array local, ints is true for an int array
+  static Object toArray (Object val, boolean ints, Frame frame, String name, int line) throws FSException {
+    if (ints ? val instanceof ScriptArray.Ints : val instanceof ScriptArray.Strings) {
+      return val;
+    }
+    throw frame.error(val == null ? "set variable " + name + " with null value" : "Incompatible types", line);
+  }
+
+  // Index of an element of an array local
+  static int index (Object index, Frame frame, int line) throws FSException {
+    return frame.index(index, line);
+  }
+
+  static Object newArray (Object size, boolean ints, Frame frame, int line) throws FSException {
+    int length = ScriptArray.length(size, frame, line);
+    return ints ? new ScriptArray.Ints(length) : new ScriptArray.Strings(length);
+  }
+
+  // Value of an if or while condition
+  static int cond (Object val, Frame frame, String msg, int line) throws FSException {
+    if (val instanceof Integer) {
+      return (Integer) val;
+    }
+    throw frame.error(msg, line);
+  }
+
+  static FSException divZero (Frame frame, int line) {
+    return frame.error("Division by zero", line);
+  }
+
+  static void exit (Object val, Frame frame) throws FSException {
+    frame.ctx.exit(val);
+  }
+
+  static Object ret (Frame frame, Object val) {
+    frame.retVal = val;
+    return RETURNED;
+  }
+
+  static void define (Frame frame, Object sym, Object fDef) {
+    frame.ctx.funcs[((Symbol) sym).id] = (Parser.FuncEntry) fDef;
+  }
+
+  // Track the top level statement being run so cont() knows where to resume
+  static void line (Frame frame, int line) {
+    frame.ctx.curLine = line;
+  }
+
+  /**
+   * Defines a generated class in this package and returns an instance of it.  Uses a hidden
+   * class where available (Java 15+) so the code can be unloaded along with the script,
+   * otherwise Lookup.defineClass (Java 9+), otherwise ClassLoader.defineClass (Java 8).
+   *
+   * @param name   binary name of the class
+   * @param bytes  class file
+   * @param consts value for the class's static K array
+   * @return       an instance of the class, or null if the class could not be defined
+   */
+  static JitCode define (String name, byte[] bytes, Object[] consts) {
+    Class<?> cls = null;
+    try {
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      try {
+        Class<?> option = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+        Method define = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class, boolean.class, Array.newInstance(option, 0).getClass());
+        Object hidden = define.invoke(lookup, bytes, true, Array.newInstance(option, 0));
+        cls = ((MethodHandles.Lookup) hidden).lookupClass();
+      } catch (ClassNotFoundException | NoSuchMethodException e1) {
+        try {
+          cls = (Class<?>) MethodHandles.Lookup.class.getMethod("defineClass", byte[].class).invoke(lookup, (Object) bytes);
+        } catch (NoSuchMethodException e2) {
+          Method define = ClassLoader.class.getDeclaredMethod("defineClass", String.class, byte[].class, int.class, int.class);
+          define.setAccessible(true);
+          cls = (Class<?>) define.invoke(JitCode.class.getClassLoader(), name, bytes, 0, bytes.length);
+        }
+      }
+      Field field = cls.getDeclaredField("K");
+      field.setAccessible(true);
+      field.set(null, consts);
+      Constructor<?> cons = cls.getDeclaredConstructor();
+      cons.setAccessible(true);
+      return (JitCode) cons.newInstance();
+    } catch (Throwable ex) {
+      // Verify or access errors mean we just keep interpreting
+      return null;
+    }
+  }
+}
@@ -0,0 +1,992 @@
+package murlen.util.fscriptME;
+
+import static murlen.util.fscriptME.ClassFile.*;
+import static murlen.util.fscriptME.LexAnn.Token.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <b>JitCompiler - translates compiled scripts into JVM bytecode</b>
+ * <p>
+ * Used when FScript runs with Engine.JVM.  Each block compiled by Parser.segments() becomes a
+ * class with a static method for the top level code and one for every script function
+ * defined in it, so HotSpot can JIT them like any other Java code.  Locals bound to slots
+ * by Resolver become JVM locals, and int and double locals and math on them stay unboxed.
+ * Globals, host calls and anything not known to be an int or double go through the helpers
+ * in JitCode, which follow the same rules as the tree interpreter.</p>
+ * <p>
+ * Functions Resolver couldn't bind are left to the tree interpreter, as is any method the
+ * class file format can't hold.</p>
+ */
+final class JitCompiler {
+  private static final String         PKG = "murlen/util/fscriptME/";
+  private static final String         FRAME = PKG + "Frame";
+  private static final String         FRAME_D = "L" + FRAME + ";";
+  private static final String         JIT = PKG + "JitCode";
+  private static final String         OBJ_D = "Ljava/lang/Object;";
+  private static final String         STR_D = "Ljava/lang/String;";
+  private static final String         INTS = PKG + "ScriptArray$Ints";
+  private static final String         STRS = PKG + "ScriptArray$Strings";
+  private static final AtomicInteger  classCount = new AtomicInteger();
+  // static types of expressions
+  private static final int            T_ANY = 0, T_INT = 1, T_STR = 2, T_INTS = 3, T_STRS = 4, T_DBL = 5;   // T_INTS and T_STRS are arrays
+
+  private final List<Func>            funcs;        // functions to compile, call index is position + 1
+  private final Map<String, Func>     byName = new HashMap<>();
+  private final List<Object>          consts = new ArrayList<>();
+  private final ClassFile             cf;
+  private ClassFile.Code              code;
+  private int[]                       localTypes;   // type of each local slot of the function being compiled, null for top level code
+  private int[]                       locals;       // JVM local of each local slot, after the frame, a double takes two
+  private int                         calleeSlot;   // local holding the frame to pass to compiled functions
+  private Func                        current;      // function being compiled, null for top level code
+  private ClassFile.Label             start;        // start of the body of the function being compiled
+
+  // Thrown for anything this compiler doesn't handle, which is then left to the interpreter
+  private static final class Unsupported extends RuntimeException {
+  }
+
+  // A function selected for compiling
+  private static final class Func {
+    final String            name;
+    final Parser.FuncEntry  fDef;
+    final int[]             paramTypes;
+    final String            method;
+    final String            desc;
+
+    Func (String name, Parser.FuncEntry fDef, int index) {
+      this.name = name;
+      this.fDef = fDef;
+      paramTypes = types(fDef, fDef.paramNames.size());
+      method = "f" + index;
+      StringBuilder buf = new StringBuilder("(" + FRAME_D);
+      for (int type : paramTypes) {
+        buf.append(type == T_INT ? "I" : type == T_DBL ? "D" : OBJ_D);
+      }
+      desc = buf.append(")" + OBJ_D).toString();
+    }
+  }
+
+  private JitCompiler (List<Func> funcs) {
+    this.funcs = funcs;
+    for (Func func : funcs) {
+      // Only call directly when the name can't mean another function defined in this block
+      byName.put(func.name, byName.containsKey(func.name) ? null : func);
+    }
+    cf = new ClassFile(PKG + "FScriptJit" + classCount.incrementAndGet(), JIT);
+  }
+
+  /**
+   * Compiles a block of top level code and the functions defined in it.  Compiled functions
+   * are attached to their FuncEntry.
+   *
+   * @param block the compiled top level code
+   * @return      the compiled top level code, or null if it has to be interpreted
+   */
+  static JitCode compile (Stmt.Block block) {
+    List<Stmt.FuncDef> defs = new ArrayList<>();
+    collectFuncs(block, defs);
+    List<Func> funcs = new ArrayList<>();
+    for (Stmt.FuncDef def : defs) {
+      if (def.fDef.localNames != null) {
+        funcs.add(new Func(def.sym.name, def.fDef, funcs.size() + 1));
+      }
+    }
+    boolean withMain = true;
+    while (true) {
+      JitCompiler jit = new JitCompiler(funcs);
+      try {
+        JitCode code = jit.build(withMain ? block : null);
+        if (code != null) {
+          for (int ii = 0; ii < funcs.size(); ii++) {
+            funcs.get(ii).fDef.jit = code;
+            funcs.get(ii).fDef.jitIndex = ii + 1;
+          }
+        }
+        return withMain ? code : null;
+      } catch (Unsupported | TooLargeException ex) {
+        // Leave whatever failed to the interpreter and try again without it
+        if (jit.current != null) {
+          funcs.remove(jit.current);
+        } else if (withMain) {
+          withMain = false;
+        } else {
+          return null;
+        }
+        if (funcs.isEmpty() && !withMain) {
+          return null;
+        }
+      }
+    }
+  }
+
+  // Find all function definitions in top level code
+  static void collectFuncs (Stmt stmt, List<Stmt.FuncDef> defs) {
+    if (stmt instanceof Stmt.Lazy) {
+      try {
+        collectFuncs(((Stmt.Lazy) stmt).body(), defs);
+      } catch (FSException ex) {
+        // reported if the block ever runs
+      }
+    } else if (stmt instanceof Stmt.FuncDef) {
+      defs.add((Stmt.FuncDef) stmt);
+    } else if (stmt instanceof Stmt.Block) {
+      for (Stmt child : ((Stmt.Block) stmt).stmts) {
+        collectFuncs(child, defs);
+      }
+    } else if (stmt instanceof Stmt.If) {
+      Stmt.If ifStmt = (Stmt.If) stmt;
+      for (Stmt body : ifStmt.bodies) {
+        collectFuncs(body, defs);
+      }
+      if (ifStmt.orElse != null) {
+        collectFuncs(ifStmt.orElse, defs);
+      }
+    } else if (stmt instanceof Stmt.While) {
+      collectFuncs(((Stmt.While) stmt).body, defs);
+    }
+  }
+
+  // Static types of the first count local slots of a function
+  private static int[] types (Parser.FuncEntry fDef, int count) {
+    int[] types = new int[count];
+    for (int ii = 0; ii < count; ii++) {
+      Class<?> type = fDef.localTypes[ii];
+      types[ii] = type == Integer.class ? T_INT : type == Double.class ? T_DBL : type == ScriptArray.Ints.class ? T_INTS :
+        type == ScriptArray.Strings.class ? T_STRS : T_STR;
+    }
+    return types;
+  }
+
+  // Opcode loading a local of a static type
+  private static int loadOp (int type) {
+    return type == T_INT ? ILOAD : type == T_DBL ? DLOAD : ALOAD;
+  }
+
+  // Opcode storing a local of a static type
+  private static int storeOp (int type) {
+    return type == T_INT ? ISTORE : type == T_DBL ? DSTORE : ASTORE;
+  }
+
+  // Compiled body of a Stmt.Lazy, a body that doesn't compile is left to the interpreter
+  private static Stmt.Block body (Stmt.Lazy lazy) {
+    try {
+      return lazy.body();
+    } catch (FSException ex) {
+      throw new Unsupported();
+    }
+  }
+
+  // Generate the class and load it, main is null if the top level code is left to the interpreter
+  private JitCode build (Stmt.Block main) {
+    cf.addField(ACC_STATIC, "K", "[" + OBJ_D);
+    // constructor
+    code = cf.new Code(1);
+    code.load(ALOAD, 0);
+    code.invoke(INVOKESPECIAL, JIT, "<init>", "()V");
+    code.op(RETURN, 0);
+    cf.addMethod(0, "<init>", "()V", code);
+    // top level code
+    if (main != null) {
+      localTypes = null;
+      code = cf.new Code(1);
+      calleeSlot = code.newLocal();
+      code.load(ALOAD, 0);
+      code.invoke(INVOKESTATIC, JIT, "callee", "(" + FRAME_D + ")" + FRAME_D);
+      code.store(ASTORE, calleeSlot);
+      for (Stmt stmt : main.stmts) {
+        // Track the top level statement being run, as ExecutionContext.run() does
+        code.load(ALOAD, 0);
+        code.iconst(stmt.line);
+        code.invoke(INVOKESTATIC, JIT, "line", "(" + FRAME_D + "I)V");
+        genStmt(stmt);
+      }
+      code.op(ACONST_NULL, 1);
+      code.op(ARETURN, -1);
+      cf.addMethod(ACC_STATIC, "main", "(" + FRAME_D + ")" + OBJ_D, code);
+    }
+    // functions
+    for (Func func : funcs) {
+      current = func;
+      genFunction(func);
+    }
+    current = null;
+    // the call() dispatcher
+    code = cf.new Code(4);
+    ClassFile.Label dflt = new ClassFile.Label();
+    ClassFile.Label[] targets = new ClassFile.Label[funcs.size() + 1];
+    for (int ii = 0; ii < targets.length; ii++) {
+      targets[ii] = new ClassFile.Label();
+    }
+    code.load(ILOAD, 1);
+    code.tableswitch(0, dflt, targets);
+    code.mark(targets[0]);
+    if (main != null) {
+      code.load(ALOAD, 2);
+      code.invoke(INVOKESTATIC, cf.name, "main", "(" + FRAME_D + ")" + OBJ_D);
+      code.op(ARETURN, -1);
+    }
+    for (int ii = 0; ii < funcs.size(); ii++) {
+      Func func = funcs.get(ii);
+      code.mark(targets[ii + 1]);
+      code.load(ALOAD, 2);
+      for (int jj = 0; jj < func.paramTypes.length; jj++) {
+        code.load(ALOAD, 3);
+        code.iconst(jj);
+        code.op(AALOAD, -1);
+        if (func.paramTypes[jj] == T_INT) {
+          code.type(CHECKCAST, "java/lang/Integer");
+          code.invoke(INVOKEVIRTUAL, "java/lang/Integer", "intValue", "()I");
+        } else if (func.paramTypes[jj] == T_DBL) {
+          code.type(CHECKCAST, "java/lang/Double");
+          code.invoke(INVOKEVIRTUAL, "java/lang/Double", "doubleValue", "()D");
+        }
+      }
+      code.invoke(INVOKESTATIC, cf.name, func.method, func.desc);
+      code.op(ARETURN, -1);
+    }
+    code.mark(dflt);
+    code.op(ACONST_NULL, 1);
+    code.op(ARETURN, -1);
+    cf.addMethod(0, "call", "(I" + FRAME_D + "[" + OBJ_D + ")" + OBJ_D, code);
+    return JitCode.define(cf.name.replace('/', '.'), cf.toBytes(ACC_FINAL | ACC_SUPER), consts.toArray());
+  }
+
+  private void genFunction (Func func) {
+    Parser.FuncEntry fDef = func.fDef;
+    localTypes = types(fDef, fDef.localNames.length);
+    locals = new int[localTypes.length];
+    int next = 1;
+    for (int ii = 0; ii < func.paramTypes.length; ii++) {
+      locals[ii] = next;
+      next += localTypes[ii] == T_DBL ? 2 : 1;
+    }
+    code = cf.new Code(next);
+    for (int ii = func.paramTypes.length; ii < localTypes.length; ii++) {
+      locals[ii] = code.newLocal(localTypes[ii] == T_DBL ? 2 : 1);
+      // Give the verifier a definite value
+      if (localTypes[ii] == T_INT) {
+        code.iconst(0);
+      } else if (localTypes[ii] == T_DBL) {
+        code.dconst(0);
+      } else {
+        code.op(ACONST_NULL, 1);
+      }
+      code.store(storeOp(localTypes[ii]), locals[ii]);
+    }
+    calleeSlot = 0;
+    start = new ClassFile.Label();
+    code.mark(start);
+    genStmt(fDef.body);
+    code.op(ACONST_NULL, 1);
+    code.op(ARETURN, -1);
+    cf.addMethod(ACC_STATIC, func.method, func.desc, code);
+  }
+
+  private void genStmt (Stmt stmt) {
+    if (stmt instanceof Stmt.Lazy) {
+      genStmt(body((Stmt.Lazy) stmt));
+    } else if (stmt instanceof Stmt.Block) {
+      for (Stmt child : ((Stmt.Block) stmt).stmts) {
+        genStmt(child);
+      }
+    } else if (stmt instanceof Stmt.ExprStmt) {
+      gen(((Stmt.ExprStmt) stmt).expr);
+      code.op(POP, -1);
+    } else if (stmt instanceof Stmt.LocalAssign) {
+      Stmt.LocalAssign assign = (Stmt.LocalAssign) stmt;
+      genStore(assign.slot, assign.name, assign.expr, stmt.line);
+    } else if (stmt instanceof Stmt.Assign) {
+      Stmt.Assign assign = (Stmt.Assign) stmt;
+      genSetVar(assign.sym, assign.expr, stmt.line);
+    } else if (stmt instanceof Stmt.ArrayAssign) {
+      Stmt.ArrayAssign assign = (Stmt.ArrayAssign) stmt;
+      if (assign.slot >= 0) {
+        int type = genArray(assign.slot, assign.index, stmt.line);
+        if (type == T_INTS) {
+          genInt(assign.expr, assign.sym.name, stmt.line);
+        } else {
+          genObj(assign.expr);
+        }
+        code.load(ALOAD, 0);
+        code.ldc(assign.sym.name);
+        code.iconst(stmt.line);
+        if (type == T_INTS) {
+          code.invoke(INVOKEVIRTUAL, INTS, "storeInt", "(II" + FRAME_D + STR_D + "I)V");
+        } else {
+          code.invoke(INVOKEVIRTUAL, STRS, "store", "(I" + OBJ_D + FRAME_D + STR_D + "I)V");
+        }
+      } else {
+        code.load(ALOAD, 0);
+        genConst(assign.sym);
+        genObj(assign.index);
+        genObj(assign.expr);
+        code.iconst(stmt.line);
+        code.invoke(INVOKESTATIC, JIT, "setArray", "(" + FRAME_D + OBJ_D + OBJ_D + OBJ_D + "I)V");
+      }
+    } else if (stmt instanceof Stmt.LocalDef) {
+      Stmt.LocalDef def = (Stmt.LocalDef) stmt;
+      for (int ii = 0; ii < def.slots.length; ii++) {
+        int slot = def.slots[ii];
+        if (localTypes[slot] == T_INT) {
+          code.iconst((Integer) def.initial);
+        } else if (localTypes[slot] == T_DBL) {
+          code.dconst((Double) def.initial);
+        } else if (localTypes[slot] == T_STR) {
+          code.ldc((String) def.initial);
+        } else {
+          genConst(def.initial);
+        }
+        code.store(storeOp(localTypes[slot]), locals[slot]);
+        if (def.inits[ii] != null) {
+          genStore(slot, def.names[ii], def.inits[ii], stmt.line);
+        }
+      }
+    } else if (stmt instanceof Stmt.VarDef && localTypes == null) {
+      Stmt.VarDef def = (Stmt.VarDef) stmt;
+      for (int ii = 0; ii < def.syms.length; ii++) {
+        code.load(ALOAD, 0);
+        genConst(def.syms[ii]);
+        if (def.initial instanceof Integer) {
+          code.iconst((Integer) def.initial);
+          box(T_INT);
+        } else if (def.initial instanceof String) {
+          code.ldc((String) def.initial);
+        } else {
+          genConst(def.initial);
+        }
+        code.iconst(stmt.line);
+        code.invoke(INVOKESTATIC, JIT, "addVar", "(" + FRAME_D + OBJ_D + OBJ_D + "I)V");
+        if (def.inits[ii] != null) {
+          genSetVar(def.syms[ii], def.inits[ii], stmt.line);
+        }
+      }
+    } else if (stmt instanceof Stmt.If) {
+      Stmt.If ifStmt = (Stmt.If) stmt;
+      ClassFile.Label end = new ClassFile.Label();
+      for (int ii = 0; ii < ifStmt.conds.length; ii++) {
+        ClassFile.Label next = new ClassFile.Label();
+        genCond(ifStmt.conds[ii], "If condition needs to be Integer", ifStmt.conds[ii].line);
+        code.jump(IFEQ, next);
+        genStmt(ifStmt.bodies[ii]);
+        code.jump(GOTO, end);
+        code.mark(next);
+      }
+      if (ifStmt.orElse != null) {
+        genStmt(ifStmt.orElse);
+      }
+      code.mark(end);
+    } else if (stmt instanceof Stmt.While) {
+      Stmt.While loop = (Stmt.While) stmt;
+      ClassFile.Label top = new ClassFile.Label();
+      ClassFile.Label end = new ClassFile.Label();
+      code.mark(top);
+      genCond(loop.cond, "While condition needs to be Integer", stmt.line);
+      code.jump(IFEQ, end);
+      genStmt(loop.body);
+      genPoll(stmt.line);
+      code.jump(GOTO, top);
+      code.mark(end);
+    } else if (stmt instanceof Stmt.FuncDef && localTypes == null) {
+      Stmt.FuncDef def = (Stmt.FuncDef) stmt;
+      code.load(ALOAD, 0);
+      genConst(def.sym);
+      genConst(def.fDef);
+      code.invoke(INVOKESTATIC, JIT, "define", "(" + FRAME_D + OBJ_D + OBJ_D + ")V");
+    } else if (stmt instanceof Stmt.TailCall && localTypes != null) {
+      genTailCall((Stmt.TailCall) stmt);
+    } else if (stmt instanceof Stmt.Return) {
+      if (localTypes != null) {
+        genObj(((Stmt.Return) stmt).expr);
+      } else {
+        code.load(ALOAD, 0);
+        genObj(((Stmt.Return) stmt).expr);
+        code.invoke(INVOKESTATIC, JIT, "ret", "(" + FRAME_D + OBJ_D + ")" + OBJ_D);
+      }
+      code.op(ARETURN, -1);
+    } else if (stmt instanceof Stmt.Exit) {
+      genObj(((Stmt.Exit) stmt).expr);
+      code.load(ALOAD, 0);
+      code.invoke(INVOKESTATIC, JIT, "exit", "(" + OBJ_D + FRAME_D + ")V");
+      code.op(ACONST_NULL, 1);
+      code.op(ARETURN, -1);
+    } else {
+      throw new Unsupported();
+    }
+  }
+
+  // Check for ExecutionContext.cancel() before jumping back
+  private void genPoll (int line) {
+    code.load(ALOAD, 0);
+    code.iconst(line);
+    code.invoke(INVOKESTATIC, JIT, "poll", "(" + FRAME_D + "I)V");
+  }
+
+  // Tail call of the function being compiled to itself, a jump back to the start with new arguments
+  private void genTailCall (Stmt.TailCall tail) {
+    Expr.Call call = tail.call;
+    boolean direct = true;
+    for (int ii = 0; ii < call.args.length; ii++) {
+      direct &= type(call.args[ii]) == localTypes[ii];
+    }
+    if (direct) {
+      ClassFile.Label generic = new ClassFile.Label();
+      code.load(ALOAD, 0);
+      genConst(call.sym);
+      genConst(tail.fDef);
+      code.invoke(INVOKESTATIC, JIT, "bound", "(" + FRAME_D + OBJ_D + OBJ_D + ")Z");
+      code.jump(IFEQ, generic);
+      // Evaluate all the arguments before any parameter changes
+      for (Expr arg : call.args) {
+        gen(arg);
+      }
+      for (int ii = call.args.length - 1; ii >= 0; ii--) {
+        code.store(storeOp(localTypes[ii]), locals[ii]);
+      }
+      genPoll(call.line);
+      code.jump(GOTO, start);
+      code.mark(generic);
+    }
+    genObj(call);
+    code.op(ARETURN, -1);
+  }
+
+  // Assign to a variable outside the function
+  private void genSetVar (Symbol sym, Expr expr, int line) {
+    code.load(ALOAD, 0);
+    genConst(sym);
+    genObj(expr);
+    code.iconst(line);
+    code.invoke(INVOKESTATIC, JIT, "setVar", "(" + FRAME_D + OBJ_D + OBJ_D + "I)V");
+  }
+
+  // Assign to a local slot, checking the value's type like Frame.setLocal() does
+  private void genStore (int slot, String name, Expr expr, int line) {
+    if (localTypes[slot] == T_INT) {
+      genInt(expr, name, line);
+      code.store(ISTORE, locals[slot]);
+    } else if (localTypes[slot] == T_DBL) {
+      genDouble(expr, name, line);
+      code.store(DSTORE, locals[slot]);
+    } else {
+      genObj(expr);
+      int type = localTypes[slot];
+      if (type(expr) != type) {
+        if (type == T_STR) {
+          code.load(ALOAD, 0);
+          code.ldc(name);
+          code.iconst(line);
+          code.invoke(INVOKESTATIC, JIT, "toStr", "(" + OBJ_D + FRAME_D + "Ljava/lang/String;I)" + OBJ_D);
+        } else {
+          code.iconst(type == T_INTS ? 1 : 0);
+          code.load(ALOAD, 0);
+          code.ldc(name);
+          code.iconst(line);
+          code.invoke(INVOKESTATIC, JIT, "toArray", "(" + OBJ_D + "Z" + FRAME_D + STR_D + "I)" + OBJ_D);
+        }
+      }
+      code.store(ASTORE, locals[slot]);
+    }
+  }
+
+  // Leaves the value of an expression assigned to an int on the stack as an int
+  private void genInt (Expr expr, String name, int line) {
+    if (!genIntOrObj(expr)) {
+      code.load(ALOAD, 0);
+      code.ldc(name);
+      code.iconst(line);
+      code.invoke(INVOKESTATIC, JIT, "toInt", "(" + OBJ_D + FRAME_D + "Ljava/lang/String;I)I");
+    }
+  }
+
+  // Leaves the value of an expression assigned to a double on the stack as a double, converting an int
+  private void genDouble (Expr expr, String name, int line) {
+    int type = type(expr);
+    if (type == T_INT || type == T_DBL) {
+      gen(expr);
+      if (type == T_INT) {
+        code.op(I2D, 1);
+      }
+    } else {
+      genObj(expr);
+      code.load(ALOAD, 0);
+      code.ldc(name);
+      code.iconst(line);
+      code.invoke(INVOKESTATIC, JIT, "toDouble", "(" + OBJ_D + FRAME_D + "Ljava/lang/String;I)D");
+    }
+  }
+
+  // Leaves the value of an expression on the stack as an int if its static type is T_INT and returns true, else as an Object
+  private boolean genIntOrObj (Expr expr) {
+    if (type(expr) == T_INT) {
+      gen(expr);
+      return true;
+    }
+    genObj(expr);
+    return false;
+  }
+
+  /*
+   * Leaves the array in a local and the int index of one of its elements on the stack, ready
+   * for the element to be read or written.  Returns T_INTS or T_STRS, locals of other types
+   * are left to the interpreter, which reports them.
+   */
+  private int genArray (int slot, Expr index, int line) {
+    int type = localTypes[slot];
+    if (type != T_INTS && type != T_STRS) {
+      throw new Unsupported();
+    }
+    code.load(ALOAD, locals[slot]);
+    code.type(CHECKCAST, type == T_INTS ? INTS : STRS);
+    if (!genIntOrObj(index)) {
+      code.load(ALOAD, 0);
+      code.iconst(line);
+      code.invoke(INVOKESTATIC, JIT, "index", "(" + OBJ_D + FRAME_D + "I)I");
+    }
+    return type;
+  }
+
+  // Leaves an int condition value on the stack
+  private void genCond (Expr expr, String msg, int line) {
+    if (!genIntOrObj(expr)) {
+      code.load(ALOAD, 0);
+      code.ldc(msg);
+      code.iconst(line);
+      code.invoke(INVOKESTATIC, JIT, "cond", "(" + OBJ_D + FRAME_D + "Ljava/lang/String;I)I");
+    }
+  }
+
+  // Static type of an expression
+  private int type (Expr expr) {
+    if (expr instanceof Expr.Const) {
+      Object val = ((Expr.Const) expr).value;
+      return val instanceof Integer ? T_INT : val instanceof Double ? T_DBL : val instanceof String ? T_STR : T_ANY;
+    } else if (expr instanceof Expr.Local) {
+      return localTypes[((Expr.Local) expr).slot];
+    } else if (expr instanceof Expr.ArrayRef) {
+      // An element of an array local
+      int slot = ((Expr.ArrayRef) expr).slot;
+      int type = slot >= 0 ? localTypes[slot] : T_ANY;
+      return type == T_INTS ? T_INT : type == T_STRS ? T_STR : T_ANY;
+    } else if (expr instanceof Expr.Negate) {
+      int type = type(((Expr.Negate) expr).expr);
+      return type == T_INT || type == T_DBL ? type : T_ANY;
+    } else if (expr instanceof Expr.Not) {
+      return type(((Expr.Not) expr).expr) == T_INT ? T_INT : T_ANY;
+    } else if (expr instanceof Expr.Binary) {
+      Expr.Binary bin = (Expr.Binary) expr;
+      int lType = type(bin.left);
+      int rType = type(bin.right);
+      if (lType == T_INT && rType == T_INT) {
+        return T_INT;
+      } else if ((lType == T_INT || lType == T_DBL) && (rType == T_INT || rType == T_DBL)) {
+        // Math on a double yields a double, comparisons an int
+        return Expr.Binary.isMath(bin.op) ? T_DBL : bin.op != TT_LAND && bin.op != TT_LOR ? T_INT : T_ANY;
+      } else if (lType == T_STR && rType == T_STR && bin.op == TT_PLUS) {
+        return T_STR;
+      }
+    } else if (expr instanceof Expr.Logical) {
+      Expr.Logical logical = (Expr.Logical) expr;
+      return type(logical.left) == T_INT && type(logical.right) == T_INT ? T_INT : T_ANY;
+    }
+    return T_ANY;
+  }
+
+  // Leaves the value of an expression on the stack as an Object
+  private void genObj (Expr expr) {
+    box(gen(expr));
+  }
+
+  // Box an int or double value of a static type on the stack
+  private void box (int type) {
+    if (type == T_INT) {
+      code.invoke(INVOKESTATIC, "java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;");
+    } else if (type == T_DBL) {
+      code.invoke(INVOKESTATIC, "java/lang/Double", "valueOf", "(D)Ljava/lang/Double;");
+    }
+  }
+
+  private void genConst (Object val) {
+    int idx = consts.indexOf(val);
+    if (idx < 0) {
+      idx = consts.size();
+      consts.add(val);
+    }
+    code.field(GETSTATIC, cf.name, "K", "[" + OBJ_D);
+    code.iconst(idx);
+    code.op(AALOAD, -1);
+  }
+
+  /*
+   * Leaves the value of an expression on the stack, as an int if its static type is T_INT,
+   * as a double if it is T_DBL, otherwise as an Object.  Returns T_INT for an int and T_DBL
+   * for a double.
+   */
+  private int gen (Expr expr) {
+    int type = type(expr);
+    if (expr instanceof Expr.Const) {
+      Object val = ((Expr.Const) expr).value;
+      if (type == T_INT) {
+        code.iconst((Integer) val);
+      } else if (type == T_DBL) {
+        code.dconst((Double) val);
+      } else if (type == T_STR) {
+        code.ldc((String) val);
+      } else {
+        throw new Unsupported();
+      }
+    } else if (expr instanceof Expr.Local) {
+      int slot = ((Expr.Local) expr).slot;
+      code.load(loadOp(localTypes[slot]), locals[slot]);
+    } else if (expr instanceof Expr.Var) {
+      Expr.Var var = (Expr.Var) expr;
+      code.load(ALOAD, 0);
+      genConst(var.sym);
+      code.iconst(expr.line);
+      code.invoke(INVOKESTATIC, JIT, "getVar", "(" + FRAME_D + OBJ_D + "I)" + OBJ_D);
+    } else if (expr instanceof Expr.ArrayRef) {
+      Expr.ArrayRef ref = (Expr.ArrayRef) expr;
+      if (ref.slot >= 0) {
+        int array = genArray(ref.slot, ref.index, expr.line);
+        code.load(ALOAD, 0);
+        code.ldc(ref.sym.name);
+        code.iconst(expr.line);
+        if (array == T_INTS) {
+          code.invoke(INVOKEVIRTUAL, INTS, "loadInt", "(I" + FRAME_D + STR_D + "I)I");
+        } else {
+          code.invoke(INVOKEVIRTUAL, STRS, "load", "(I" + FRAME_D + STR_D + "I)" + OBJ_D);
+        }
+      } else {
+        code.load(ALOAD, 0);
+        genConst(ref.sym);
+        genObj(ref.index);
+        code.iconst(expr.line);
+        code.invoke(INVOKESTATIC, JIT, "getArray", "(" + FRAME_D + OBJ_D + OBJ_D + "I)" + OBJ_D);
+      }
+    } else if (expr instanceof Expr.NewArray) {
+      Expr.NewArray array = (Expr.NewArray) expr;
+      if (array.size != null) {
+        genObj(array.size);
+      } else {
+        code.iconst(0);
+        box(T_INT);
+      }
+      code.iconst(array.ints ? 1 : 0);
+      code.load(ALOAD, 0);
+      code.iconst(expr.line);
+      code.invoke(INVOKESTATIC, JIT, "newArray", "(" + OBJ_D + "Z" + FRAME_D + "I)" + OBJ_D);
+    } else if (expr instanceof Expr.Call) {
+      genCall((Expr.Call) expr);
+    } else if (expr instanceof Expr.Negate) {
+      if (type == T_INT || type == T_DBL) {
+        gen(((Expr.Negate) expr).expr);
+        code.op(type == T_INT ? INEG : DNEG, 0);
+      } else {
+        genObj(((Expr.Negate) expr).expr);
+        code.load(ALOAD, 0);
+        code.iconst(expr.line);
+        code.invoke(INVOKESTATIC, JIT, "negate", "(" + OBJ_D + FRAME_D + "I)" + OBJ_D);
+      }
+    } else if (expr instanceof Expr.Not) {
+      if (type == T_INT) {
+        gen(((Expr.Not) expr).expr);
+        genBool(IFNE);
+      } else {
+        genObj(((Expr.Not) expr).expr);
+        code.load(ALOAD, 0);
+        code.iconst(expr.line);
+        code.invoke(INVOKESTATIC, JIT, "not", "(" + OBJ_D + FRAME_D + "I)" + OBJ_D);
+      }
+    } else if (expr instanceof Expr.Binary) {
+      Expr.Binary bin = (Expr.Binary) expr;
+      if (type(bin.left) == T_INT && type(bin.right) == T_INT) {
+        genIntBinary(bin);
+      } else if (type == T_INT || type == T_DBL) {
+        genDoubleBinary(bin);
+      } else if (type == T_STR) {
+        genObj(bin.left);
+        code.type(CHECKCAST, "java/lang/String");
+        genObj(bin.right);
+        code.type(CHECKCAST, "java/lang/String");
+        code.invoke(INVOKEVIRTUAL, "java/lang/String", "concat", "(Ljava/lang/String;)Ljava/lang/String;");
+      } else {
+        code.load(ALOAD, 0);
+        code.iconst(bin.op.ordinal());
+        genObj(bin.left);
+        genObj(bin.right);
+        code.iconst(expr.line);
+        code.invoke(INVOKESTATIC, JIT, "binary", "(" + FRAME_D + "I" + OBJ_D + OBJ_D + "I)" + OBJ_D);
+      }
+    } else if (expr instanceof Expr.Logical) {
+      genLogical((Expr.Logical) expr, type);
+    } else {
+      throw new Unsupported();
+    }
+    return type == T_INT || type == T_DBL ? type : T_ANY;
+  }
+
+  // Replace the value on the stack with 1 if the jump is not taken, else 0
+  private void genBool (int jumpIfFalse) {
+    ClassFile.Label isFalse = new ClassFile.Label();
+    ClassFile.Label end = new ClassFile.Label();
+    code.jump(jumpIfFalse, isFalse);
+    code.iconst(1);
+    code.jump(GOTO, end);
+    code.mark(isFalse);
+    code.iconst(0);
+    code.mark(end);
+  }
+
+  private void genIntBinary (Expr.Binary bin) {
+    gen(bin.left);
+    gen(bin.right);
+    switch (bin.op) {
+      case TT_PLUS:   code.op(IADD, -1); break;
+      case TT_MINUS:  code.op(ISUB, -1); break;
+      case TT_MULT:   code.op(IMUL, -1); break;
+      case TT_DIV:
+      case TT_MOD: {
+        ClassFile.Label ok = new ClassFile.Label();
+        code.op(DUP, 1);
+        code.jump(IFNE, ok);
+        code.load(ALOAD, 0);
+        code.iconst(bin.line);
+        code.invoke(INVOKESTATIC, JIT, "divZero", "(" + FRAME_D + "I)L" + PKG + "FSException;");
+        code.op(ATHROW, -1);
+        code.mark(ok);
+        code.op(bin.op == TT_DIV ? IDIV : IREM, -1);
+        break;
+      }
+      case TT_LEQ:    genBool(IF_ICMPNE); break;
+      case TT_LNEQ:   genBool(IF_ICMPEQ); break;
+      case TT_LLS:    genBool(IF_ICMPGE); break;
+      case TT_LLSE:   genBool(IF_ICMPGT); break;
+      case TT_LGR:    genBool(IF_ICMPLE); break;
+      case TT_LGRE:   genBool(IF_ICMPLT); break;
+      default:
+        throw new Unsupported();
+    }
+  }
+
+  // Math or comparison with a double operand, the other converted from an int if it is one
+  private void genDoubleBinary (Expr.Binary bin) {
+    genDouble(bin.left);
+    genDouble(bin.right);
+    switch (bin.op) {
+      case TT_PLUS:   code.op(DADD, -2); break;
+      case TT_MINUS:  code.op(DSUB, -2); break;
+      case TT_MULT:   code.op(DMUL, -2); break;
+      case TT_DIV:    code.op(DDIV, -2); break;
+      case TT_MOD:    code.op(DREM, -2); break;
+      // DCMPG for < and <=, DCMPL for > and >=, so a NaN operand makes them false
+      case TT_LEQ:    code.op(DCMPL, -3); genBool(IFNE); break;
+      case TT_LNEQ:   code.op(DCMPL, -3); genBool(IFEQ); break;
+      case TT_LLS:    code.op(DCMPG, -3); genBool(IFGE); break;
+      case TT_LLSE:   code.op(DCMPG, -3); genBool(IFGT); break;
+      case TT_LGR:    code.op(DCMPL, -3); genBool(IFLE); break;
+      case TT_LGRE:   code.op(DCMPL, -3); genBool(IFLT); break;
+      default:
+        throw new Unsupported();
+    }
+  }
+
+  // Leaves an operand whose static type is T_INT or T_DBL on the stack as a double
+  private void genDouble (Expr expr) {
+    if (gen(expr) == T_INT) {
+      code.op(I2D, 1);
+    }
+  }
+
+  // && or ||, jumping over the right operand when the left one decides the result
+  private void genLogical (Expr.Logical logical, int type) {
+    boolean and = logical.op == TT_LAND;
+    ClassFile.Label decided = new ClassFile.Label();
+    ClassFile.Label end = new ClassFile.Label();
+    if (type == T_INT) {
+      gen(logical.left);
+      code.jump(and ? IFEQ : IFNE, decided);
+      gen(logical.right);
+      code.jump(and ? IFEQ : IFNE, decided);
+      code.iconst(and ? 1 : 0);
+      code.jump(GOTO, end);
+      code.mark(decided);
+      code.iconst(and ? 0 : 1);
+    } else {
+      ClassFile.Label right = new ClassFile.Label();
+      genObj(logical.left);
+      code.op(DUP, 1);
+      code.iconst(logical.op.ordinal());
+      code.invoke(INVOKESTATIC, JIT, "decides", "(" + OBJ_D + "I)Z");
+      code.jump(IFEQ, right);
+      code.op(POP, -1);
+      code.iconst(and ? 0 : 1);
+      box(T_INT);
+      code.jump(GOTO, end);
+      code.mark(right);
+      genObj(logical.right);
+      code.load(ALOAD, 0);
+      code.iconst(logical.op.ordinal());
+      code.iconst(logical.line);
+      code.invoke(INVOKESTATIC, JIT, "logical", "(" + OBJ_D + OBJ_D + FRAME_D + "II)" + OBJ_D);
+    }
+    code.mark(end);
+  }
+
+  private void genCall (Expr.Call call) {
+    Func func = byName.get(call.sym.name);
+    if (func == null && call.host != null) {
+      genHostCall(call);
+      return;
+    }
+    boolean direct = func != null && func.paramTypes.length == call.args.length;
+    for (int ii = 0; direct && ii < call.args.length; ii++) {
+      direct = type(call.args[ii]) == func.paramTypes[ii];
+    }
+    ClassFile.Label generic = new ClassFile.Label();
+    ClassFile.Label end = new ClassFile.Label();
+    if (direct) {
+      // Call straight into the compiled function as long as the name is still bound to it
+      code.load(ALOAD, 0);
+      genConst(call.sym);
+      genConst(func.fDef);
+      code.iconst(call.line);
+      code.invoke(INVOKESTATIC, JIT, "enter", "(" + FRAME_D + OBJ_D + OBJ_D + "I)Z");
+      code.jump(IFEQ, generic);
+      code.load(ALOAD, calleeSlot);
+      for (Expr arg : call.args) {
+        gen(arg);
+      }
+      code.invoke(INVOKESTATIC, cf.name, func.method, func.desc);
+      code.load(ALOAD, 0);
+      code.invoke(INVOKESTATIC, JIT, "leave", "(" + FRAME_D + ")V");
+      code.jump(GOTO, end);
+      code.mark(generic);
+    }
+    code.load(ALOAD, 0);
+    genConst(call.sym);
+    code.iconst(call.args.length);
+    code.type(ANEWARRAY, "java/lang/Object");
+    for (int ii = 0; ii < call.args.length; ii++) {
+      code.op(DUP, 1);
+      code.iconst(ii);
+      genObj(call.args[ii]);
+      code.op(AASTORE, -3);
+    }
+    code.iconst(call.line);
+    code.invoke(INVOKESTATIC, JIT, "call", "(" + FRAME_D + OBJ_D + "[" + OBJ_D + "I)" + OBJ_D);
+    if (direct) {
+      code.mark(end);
+    }
+  }
+
+  /*
+   * Call to the host function the call is linked to, through its MethodHandle with the
+   * arguments converted to its parameter types, unless the script defined a function of
+   * the same name.  Exceptions it throws are reported like those of FScript.callFunction().
+   */
+  private void genHostCall (Expr.Call call) {
+    HostFunctions.Entry host = call.host;
+    if (host == HostFunctions.LEN) {
+      genLen(call);
+      return;
+    }
+    ClassFile.Label generic = new ClassFile.Label();
+    ClassFile.Label start = new ClassFile.Label();
+    ClassFile.Label done = new ClassFile.Label();
+    ClassFile.Label failed = new ClassFile.Label();
+    ClassFile.Label end = new ClassFile.Label();
+    code.load(ALOAD, 0);
+    genConst(call.sym);
+    code.op(ACONST_NULL, 1);
+    code.invoke(INVOKESTATIC, JIT, "bound", "(" + FRAME_D + OBJ_D + OBJ_D + ")Z");
+    code.jump(IFEQ, generic);
+    genConst(host.handle);
+    code.type(CHECKCAST, "java/lang/invoke/MethodHandle");
+    StringBuilder desc = new StringBuilder("(");
+    for (int ii = 0; ii < call.args.length; ii++) {
+      Class<?> param = host.params[ii];
+      if (param == int.class || param == Integer.class) {
+        genInt(call.args[ii], call.sym.name, call.line);
+        if (param == Integer.class) {
+          box(T_INT);
+        }
+      } else if (param == double.class || param == Double.class) {
+        genDouble(call.args[ii], call.sym.name, call.line);
+        if (param == Double.class) {
+          box(T_DBL);
+        }
+      } else if (param == String.class) {
+        genObj(call.args[ii]);
+        code.load(ALOAD, 0);
+        code.ldc(call.sym.name);
+        code.iconst(call.line);
+        code.invoke(INVOKESTATIC, JIT, "toStr", "(" + OBJ_D + FRAME_D + "Ljava/lang/String;I)" + OBJ_D);
+        code.type(CHECKCAST, "java/lang/String");
+      } else {
+        genObj(call.args[ii]);
+      }
+      desc.append(descriptor(param));
+    }
+    Class<?> ret = host.handle.type().returnType();
+    desc.append(')').append(descriptor(ret));
+    code.mark(start);
+    code.invoke(INVOKEVIRTUAL, "java/lang/invoke/MethodHandle", "invokeExact", desc.toString());
+    code.mark(done);
+    if (ret == void.class) {
+      code.iconst(0);
+      box(T_INT);
+    } else if (ret == int.class || ret == boolean.class) {
+      box(T_INT);
+    } else if (ret == double.class) {
+      box(T_DBL);
+    }
+    code.jump(GOTO, end);
+    code.handler(start, done, failed, "java/lang/Throwable");
+    code.mark(failed);
+    genConst(host);
+    code.load(ALOAD, 0);
+    code.iconst(call.line);
+    code.invoke(INVOKESTATIC, JIT, "hostError", "(Ljava/lang/Throwable;" + OBJ_D + FRAME_D + "I)L" + PKG + "FSException;");
+    code.op(ATHROW, -1);
+    code.mark(generic);
+    genObj(new Expr.Call(call.sym, call.args, null, call.line));
+    code.mark(end);
+  }
+
+  // Call linked to the built in len(), which only applies to arrays, unless the script defined len()
+  private void genLen (Expr.Call call) {
+    ClassFile.Label generic = new ClassFile.Label();
+    ClassFile.Label end = new ClassFile.Label();
+    code.load(ALOAD, 0);
+    genConst(call.sym);
+    code.op(ACONST_NULL, 1);
+    code.invoke(INVOKESTATIC, JIT, "bound", "(" + FRAME_D + OBJ_D + OBJ_D + ")Z");
+    code.jump(IFEQ, generic);
+    genObj(call.args[0]);
+    code.load(ALOAD, 0);
+    genConst(call.sym);
+    code.iconst(call.line);
+    code.invoke(INVOKESTATIC, JIT, "len", "(" + OBJ_D + FRAME_D + OBJ_D + "I)" + OBJ_D);
+    code.jump(GOTO, end);
+    code.mark(generic);
+    genObj(new Expr.Call(call.sym, call.args, null, call.line));
+    code.mark(end);
+  }
+
+  private static String descriptor (Class<?> type) {
+    if (type == int.class) {
+      return "I";
+    } else if (type == double.class) {
+      return "D";
+    } else if (type == boolean.class) {
+      return "Z";
+    } else if (type == void.class) {
+      return "V";
+    }
+    return "L" + type.getName().replace('.', '/') + ";";
+  }
+}
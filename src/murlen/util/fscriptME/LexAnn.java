@@ -46,9 +46,12 @@ package murlen.util.fscriptME;
  */
 
 class LexAnn {
-  // Defines what is allowed in words (e.g keywords variables etc.)
-  private static final String ALLOW_WORD_START  = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
-  private static final String ALLOW_WORD        = ALLOW_WORD_START + "1234567890._";
+  // Character classes, indexed by ASCII code
+  private static final byte     WORD_START = 1;     // may start a word (e.g keywords variables etc.)
+  private static final byte     WORD = 2;           // may continue a word
+  private static final byte     DIGIT = 4;
+  private static final byte     SPACE = 8;
+  private static final byte[]   CLASS = new byte[128];
   public enum Token {
     // Types
     TT_WORD,
@@ -99,13 +102,42 @@ class LexAnn {
     TT_EOF,         // never set by this class
     TT_EOL,
   }
+  // Tokens of the operators and punctuation that are a single character, indexed by ASCII code
+  private static final Token[]  SINGLE = new Token[128];
+
+  static {
+    for (char cc = 'a'; cc <= 'z'; cc++) {
+      CLASS[cc] = WORD_START | WORD;
+      CLASS[Character.toUpperCase(cc)] = WORD_START | WORD;
+    }
+    for (char cc = '0'; cc <= '9'; cc++) {
+      CLASS[cc] = DIGIT | WORD;
+    }
+    CLASS['.'] = WORD;
+    CLASS['_'] = WORD;
+    CLASS[' '] = SPACE;
+    CLASS['\t'] = SPACE;
+    CLASS['\n'] = SPACE;
+    CLASS['\r'] = SPACE;
+    SINGLE['+'] = Token.TT_PLUS;
+    SINGLE['-'] = Token.TT_MINUS;
+    SINGLE['*'] = Token.TT_MULT;
+    SINGLE['/'] = Token.TT_DIV;
+    SINGLE['%'] = Token.TT_MOD;
+    SINGLE[','] = Token.TT_COMMA;
+    SINGLE['('] = Token.TT_LPAREN;
+    SINGLE[')'] = Token.TT_RPAREN;
+    SINGLE['['] = Token.TT_LBRACE;
+    SINGLE[']'] = Token.TT_RBRACE;
+  }
+
   // Instance members
   Token           ttype;            // contains the current token type
   Object          value;            // contains the current  value
   private boolean pBack;
   private String  line;
-  private char    cc;
-  private int     pos;
+  private int     len;
+  private int     pos;              // index of the next character to look at
 
   /**
    * String representation of token (needs work)
@@ -128,31 +160,18 @@ class LexAnn {
    */
   void setString (String str) {
     line = str;
+    len = str.length();
     pos = 0;
-    cc = 0;
   }
 
-  /**
-   * return the next char in the buffer
-   */
-  private char getChar () {
-    if (pos < line.length()) {
-      return line.charAt(pos++);
-    } else {
-      return 0;
-    }
+  // Class bits of a character, 0 for anything outside ASCII
+  private static int classOf (char cc) {
+    return cc < 128 ? CLASS[cc] : 0;
   }
 
-  /**
-   * return the character at a current line pos
-   * without affecting internal counters
-   */
+  // The character at pos, or 0 at the end of the line
   private char peekChar () {
-    if (pos >= line.length()) {
-      return 0;
-    } else {
-      return line.charAt(pos);
-    }
+    return pos < len ? line.charAt(pos) : 0;
   }
 
   // Read the next token
@@ -169,173 +188,218 @@ class LexAnn {
     pBack = true;
   }
 
-  // Internal next token function (recursive)
+  // Internal next token function
   private void nextT () {
-    StringBuilder buf = new StringBuilder();
-    if (cc == 0)
-      cc = getChar();
     value = null;
-    while (cc == ' ' || cc == '\t' || cc == '\n' || cc == '\r') {
-      cc = getChar();
+    char cc = peekChar();
+    while ((classOf(cc) & SPACE) != 0) {
+      pos++;
+      cc = peekChar();
     }
-    if (cc == 0) {
+    // A NUL character ends the line, as does a comment
+    if (cc == 0 || cc == '#') {
+      pos = len;
       ttype = Token.TT_EOL;
-    } else if (cc == '#') {
-      // Advance to next line
-      do {
-        cc = getChar();
-      } while (cc > 0);
-      nextT();
-    } else if (cc == '"') {
-      // Quoted Strings
-      cc = getChar();
-      while ((cc > 0) && (cc != '"')) {
-        if (cc == '\\') {
-          // Process esc code, such as "\n"
-          switch (peekChar()) {
-            case 'n':
-              buf.append('\n');
-              getChar();
-              break;
-            case 't':
-              buf.append('t');
-              getChar();
-              break;
-            case 'r':
-              buf.append('\r');
-              getChar();
-              break;
-            case '\"':
-              buf.append('"');
-              getChar();
-              break;
-            case '\\':
-              buf.append('\\');
-              getChar();
-              break;
+      return;
+    }
+    pos++;
+    int cls = classOf(cc);
+    if (cc == '"') {
+      string();
+    } else if ((cls & WORD_START) != 0) {
+      word(pos - 1);
+    } else if ((cls & DIGIT) != 0) {
+      number(pos - 1);
+    } else if (cc < 128 && SINGLE[cc] != null) {
+      ttype = SINGLE[cc];
+    } else {
+      // Comparison and logic operators, unknown characters leave ttype as it was
+      boolean eq = peekChar() == '=';
+      switch (cc) {
+        case '>': ttype = eq ? Token.TT_LGRE : Token.TT_LGR; break;
+        case '<': ttype = eq ? Token.TT_LLSE : Token.TT_LLS; break;
+        case '=': ttype = eq ? Token.TT_LEQ : Token.TT_EQ; break;
+        case '!': ttype = eq ? Token.TT_LNEQ : Token.TT_NOT; break;
+        case '|':
+        case '&':
+          if (peekChar() == cc) {
+            pos++;
+            ttype = cc == '|' ? Token.TT_LOR : Token.TT_LAND;
           }
-        } else {
-          buf.append(cc);
-        }
-        cc = getChar();
+          return;
+        default:
+          return;
       }
-      value = buf.toString();
-      cc = getChar();
-      ttype = Token.TT_STRING;
-    } else if (ALLOW_WORD_START.indexOf(cc) > 0) {
-      // Words
-      while (ALLOW_WORD.indexOf(cc) > 0) {
-        buf.append(cc);
-        cc = getChar();
+      if (eq) {
+        pos++;
       }
-      // Skip trailing whitespace, if any
-      while (cc == ' ' || cc == '\t') {
-        cc = getChar();
-      }
-      value = buf.toString();
-      if (value.equals("if")) {
-        ttype = Token.TT_IF;
-      } else if (value.equals("then")) {
-        ttype = Token.TT_THEN;
-      } else if (value.equals("endif")) {
-        ttype = Token.TT_ENDIF;
-      } else if (value.equals("else")) {
-        ttype = Token.TT_ELSE;
-      } else if (value.equals("elseif")) {
-        ttype = Token.TT_ELSIF;
-      } else if (value.equals("while")) {
-        ttype = Token.TT_WHILE;
-      } else if (value.equals("endwhile")) {
-        ttype = Token.TT_ENDWHILE;
-      } else if (value.equals("func")) {
-        ttype = Token.TT_DEFFUNC;
-      } else if (value.equals("endfunc")) {
-        ttype = Token.TT_ENDDEFFUNC;
-      } else if (value.equals("return")) {
-        ttype = Token.TT_RETURN;
-      } else if (value.equals("exit")) {
-        ttype = Token.TT_EXIT;
-      } else if (value.equals("int")) {
-        ttype = Token.TT_DEFINT;
-      } else if (value.equals("string")) {
-        ttype = Token.TT_DEFSTRING;
-      } else if (cc == '(') {
-        ttype = Token.TT_FUNC;
-      } else if (cc == '[') {
-        ttype = Token.TT_ARRAY;
+    }
+  }
+
+  // Quoted string, pos is just past the opening quote
+  private void string () {
+    int start = pos;
+    int end = line.indexOf('"', start);
+    if (end < 0) {
+      end = len;
+    }
+    int nul = line.indexOf(0, start);
+    if (nul >= 0 && nul < end) {
+      end = nul;
+    }
+    int esc = line.indexOf('\\', start);
+    if (esc < 0 || esc >= end) {
+      // The common case, a plain slice of the line
+      value = line.substring(start, end);
+      pos = Math.min(end + 1, len);
+      ttype = Token.TT_STRING;
+      return;
+    }
+    StringBuilder buf = new StringBuilder(line.substring(start, esc));
+    pos = esc;
+    char cc = peekChar();
+    while (cc != 0 && cc != '"') {
+      pos++;
+      if (cc == '\\') {
+        // Process esc code, such as "\n"
+        switch (peekChar()) {
+          case 'n':   buf.append('\n'); pos++; break;
+          case 't':   buf.append('t'); pos++; break;
+          case 'r':   buf.append('\r'); pos++; break;
+          case '"':   buf.append('"'); pos++; break;
+          case '\\':  buf.append('\\'); pos++; break;
+        }
       } else {
-        ttype = Token.TT_WORD;
-      }
-    } else if (cc >= '0' && cc <= '9') {
-      // Numbers
-      while (cc >= '0' && cc <= '9') {
         buf.append(cc);
-        cc = getChar();
       }
-      String str = buf.toString();
-      ttype = Token.TT_INTEGER;
-      value = Integer.parseInt(str);
+      cc = peekChar();
+    }
+    if (pos < len) {
+      // Past the closing quote
+      pos++;
+    }
+    value = buf.toString();
+    ttype = Token.TT_STRING;
+  }
+
+  // Word, a keyword or the name of a variable, function or array
+  private void word (int start) {
+    while ((classOf(peekChar()) & WORD) != 0) {
+      pos++;
+    }
+    int end = pos;
+    // Skip trailing whitespace, if any
+    char cc = peekChar();
+    while (cc == ' ' || cc == '\t') {
+      pos++;
+      cc = peekChar();
+    }
+    ttype = keyword(start, end - start);
+    if (ttype != null) {
+      value = KEYWORDS[ttype.ordinal()];
     } else {
-      // others
-      if (cc == '+') {
-        ttype = Token.TT_PLUS;
-      } else if (cc == '-') {
-        ttype = Token.TT_MINUS;
-      } else if (cc == '*') {
-        ttype = Token.TT_MULT;
-      } else if (cc == '/') {
-        ttype = Token.TT_DIV;
-      } else if (cc == '%') {
-        ttype = Token.TT_MOD;
-      } else if (cc == '>') {
-        if (peekChar() == '=') {
-          getChar();
-          ttype = Token.TT_LGRE;
-        } else {
-          ttype = Token.TT_LGR;
-        }
-      } else if (cc == '<') {
-        if (peekChar() == '=') {
-          getChar();
-          ttype = Token.TT_LLSE;
-        } else {
-          ttype = Token.TT_LLS;
-        }
-      } else if (cc == '=') {
-        if (peekChar() == '=') {
-          getChar();
-          ttype = Token.TT_LEQ;
-        } else {
-          ttype = Token.TT_EQ;
-        }
-      } else if (cc == '!') {
-        if (peekChar() == '=') {
-          getChar();
-          ttype = Token.TT_LNEQ;
-        } else {
-          ttype = Token.TT_NOT;
+      value = line.substring(start, end);
+      ttype = cc == '(' ? Token.TT_FUNC : cc == '[' ? Token.TT_ARRAY : Token.TT_WORD;
+    }
+  }
+
+  // Source text of the keyword tokens, indexed by ordinal
+  private static final String[] KEYWORDS = new String[Token.values().length];
+
+  static {
+    KEYWORDS[Token.TT_IF.ordinal()] = "if";
+    KEYWORDS[Token.TT_THEN.ordinal()] = "then";
+    KEYWORDS[Token.TT_ENDIF.ordinal()] = "endif";
+    KEYWORDS[Token.TT_ELSE.ordinal()] = "else";
+    KEYWORDS[Token.TT_ELSIF.ordinal()] = "elseif";
+    KEYWORDS[Token.TT_WHILE.ordinal()] = "while";
+    KEYWORDS[Token.TT_ENDWHILE.ordinal()] = "endwhile";
+    KEYWORDS[Token.TT_DEFFUNC.ordinal()] = "func";
+    KEYWORDS[Token.TT_ENDDEFFUNC.ordinal()] = "endfunc";
+    KEYWORDS[Token.TT_RETURN.ordinal()] = "return";
+    KEYWORDS[Token.TT_EXIT.ordinal()] = "exit";
+    KEYWORDS[Token.TT_DEFINT.ordinal()] = "int";
+    KEYWORDS[Token.TT_DEFSTRING.ordinal()] = "string";
+    KEYWORDS[Token.TT_DEFDOUBLE.ordinal()] = "double";
+  }
+
+  // The keyword token for the word at start, or null if it isn't a keyword
+  private Token keyword (int start, int length) {
+    Token token;
+    switch (line.charAt(start)) {
+      case 'e':
+        switch (length) {
+          case 4:   token = line.charAt(start + 1) == 'l' ? Token.TT_ELSE : Token.TT_EXIT; break;
+          case 5:   token = Token.TT_ENDIF; break;
+          case 6:   token = Token.TT_ELSIF; break;
+          case 7:   token = Token.TT_ENDDEFFUNC; break;
+          case 8:   token = Token.TT_ENDWHILE; break;
+          default:  return null;
         }
-      } else if ((cc == '|') && (peekChar() == '|')) {
-        getChar();
-        ttype = Token.TT_LOR;
-      } else if ((cc == '&') && (peekChar() == '&')) {
-        getChar();
-        ttype = Token.TT_LAND;
-      } else if (cc == ',') {
-        ttype = Token.TT_COMMA;
-      } else if (cc == '(') {
-        ttype = Token.TT_LPAREN;
-      } else if (cc == ')') {
-        ttype = Token.TT_RPAREN;
-      } else if (cc == '[') {
-        ttype = Token.TT_LBRACE;
-      } else if (cc == ']') {
-        ttype = Token.TT_RBRACE;
-      }
-      cc = getChar();
+        break;
+      case 'i':
+        token = length == 2 ? Token.TT_IF : Token.TT_DEFINT;
+        break;
+      case 't': token = Token.TT_THEN; break;
+      case 'w': token = Token.TT_WHILE; break;
+      case 'd': token = Token.TT_DEFDOUBLE; break;
+      case 'f': token = Token.TT_DEFFUNC; break;
+      case 'r': token = Token.TT_RETURN; break;
+      case 's': token = Token.TT_DEFSTRING; break;
+      default:  return null;
     }
+    // Check the whole word against the only keyword it can be
+    String text = KEYWORDS[token.ordinal()];
+    return text.length() == length && line.startsWith(text, start) ? token : null;
   }
-}
 
+  // Integer, accumulated straight from the digits, or a double such as 1.5, 2.0e-3 or 1e6
+  private void number (int start) {
+    int val = line.charAt(start) - '0';
+    boolean overflow = false;
+    while ((classOf(peekChar()) & DIGIT) != 0) {
+      int digit = line.charAt(pos++) - '0';
+      overflow |= val > (Integer.MAX_VALUE - digit) / 10;
+      val = val * 10 + digit;
+    }
+    if (fraction()) {
+      ttype = Token.TT_DOUBLE;
+      value = Double.parseDouble(line.substring(start, pos));
+      return;
+    } else if (overflow) {
+      throw new NumberFormatException("For input string: \"" + line.substring(start, pos) + "\"");
+    }
+    ttype = Token.TT_INTEGER;
+    value = val;
+  }
 
+  // Skips the fraction and exponent of a double, if any, returning true if there was one
+  private boolean fraction () {
+    int start = pos;
+    if (peekChar() == '.' && digit(pos + 1)) {
+      pos++;
+      while ((classOf(peekChar()) & DIGIT) != 0) {
+        pos++;
+      }
+    }
+    char cc = peekChar();
+    if (cc == 'e' || cc == 'E') {
+      int exp = pos + 1;
+      if (exp < len && (line.charAt(exp) == '+' || line.charAt(exp) == '-')) {
+        exp++;
+      }
+      if (digit(exp)) {
+        pos = exp;
+        while ((classOf(peekChar()) & DIGIT) != 0) {
+          pos++;
+        }
+      }
+    }
+    return pos > start;
+  }
 
+  // True if there is a digit at index idx of the line
+  private boolean digit (int idx) {
+    return idx < len && (classOf(line.charAt(idx)) & DIGIT) != 0;
+  }
+}
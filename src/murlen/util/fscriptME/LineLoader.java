@@ -1,6 +1,18 @@
 package murlen.util.fscriptME;
 
+import static murlen.util.fscriptME.LexAnn.Token.*;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -37,48 +49,171 @@ import java.util.List;
  */
 
 final class LineLoader {
-  private List<String>  lines = new ArrayList<>();
+  private char[]        text = new char[1024];          // source text of all lines, back to back
+  private int           textLen;                        // chars in use in text
+  private int[]         starts = new int[64];           // offset in text of each line
+  private int[]         ends = new int[64];             // offset in text of the end of each line, equal to its start if blank
+  private int           count;                          // number of lines
+  private Tokens[]      tokens = new Tokens[64];        // pre-lexed lines, null until first requested
+  private LexAnn        lexer = new LexAnn("");
+  private int[]         blockEnds = new int[64];        // see blockEnd(), valid for the lines before scanned
+  private int[]         openBlocks = new int[16];       // stack of lines with blocks still open at scanned
+  private int           openDepth;                      // number of entries in openBlocks
+  private int           scanned;                        // lines matched up so far, blocks after them may still close
+  private boolean       unmatched;                      // set once the blocks can't be matched up line by line
   private int           curLine;
 
+  // The tokens of one line, as produced by LexAnn, always ending with TT_EOL
+  static final class Tokens {
+    final LexAnn.Token[]  types;
+    final Object[]        values;
+
+    Tokens (LexAnn.Token[] types, Object[] values) {
+      this.types = types;
+      this.values = values;
+    }
+  }
+
   /**
    * Reset the LineLoader
    */
   final void reset () {
-    lines.clear();
+    Arrays.fill(tokens, 0, count, null);
+    textLen = 0;
+    count = 0;
+    openDepth = 0;
+    scanned = 0;
+    unmatched = false;
     curLine = 0;
   }
 
   /**
-   * Method to incrementally add lines to buffer
+   * Add \n separated lines
    *
-   * @param s the line to load
+   * @param str the lines to add
    */
-  private void addLine (String s) {
-    if (!s.trim().equals("")) {
-      lines.add(s);
-    } else {
-      // Add blank lines to keep error msg lines in sync with file lines.
-      lines.add("");
+  final void addLines (CharSequence str) {
+    int from = textLen;
+    int len = str.length();
+    reserve(len);
+    for (int ii = 0; ii < len; ii++) {
+      text[textLen++] = str.charAt(ii);
     }
+    index(from);
   }
 
   /**
-   * Add \n separated lines
+   * Add \n separated lines, reading until the end of the input
    *
-   * @param str the lines to add
+   * @param in the text to add
    */
-  final void addLines (String str) {
-    if (!str.trim().equals("")) {
-      int pos = str.indexOf('\n');
-      while (pos >= 0) {
-        addLine(str.substring(0, pos));
-        str = str.substring(pos + 1);
-        pos = str.indexOf('\n');
+  final void addLines (Reader in) throws IOException {
+    int from = textLen;
+    int read;
+    do {
+      reserve(8192);
+      read = in.read(text, textLen, text.length - textLen);
+      if (read > 0) {
+        textLen += read;
       }
-      if (!str.trim().equals("")) {
-        addLine(str);
+    } while (read >= 0);
+    index(from);
+  }
+
+  /**
+   * Add \n separated lines, decoding them straight into the text buffer
+   *
+   * @param in      the encoded text to add, such as a memory-mapped file
+   * @param charset the encoding of the text
+   */
+  final void addLines (ByteBuffer in, Charset charset) throws IOException {
+    CharsetDecoder decoder = charset.newDecoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    int from = textLen;
+    reserve((int) (in.remaining() * (double) decoder.maxCharsPerByte()));
+    CharBuffer out = CharBuffer.wrap(text, textLen, text.length - textLen);
+    CoderResult result = decoder.decode(in, out, true);
+    if (!result.isUnderflow()) {
+      result.throwException();
+    }
+    decoder.flush(out);
+    textLen = out.position();
+    index(from);
+  }
+
+  /**
+   * Returns a copy of the lines loaded so far, which later changes to this LineLoader don't affect
+   */
+  final LineLoader copy () {
+    LineLoader copy = new LineLoader();
+    copy.text = Arrays.copyOf(text, textLen);
+    copy.textLen = textLen;
+    copy.starts = starts.clone();
+    copy.ends = ends.clone();
+    copy.count = count;
+    copy.tokens = tokens.clone();
+    copy.blockEnds = blockEnds.clone();
+    copy.openBlocks = openBlocks.clone();
+    copy.openDepth = openDepth;
+    copy.scanned = scanned;
+    copy.unmatched = unmatched;
+    return copy;
+  }
+
+  // Make room for at least n more chars of text
+  private void reserve (int n) {
+    if (text.length - textLen < n) {
+      text = Arrays.copyOf(text, Math.max(text.length * 2, textLen + n));
+    }
+  }
+
+  /*
+   * Index the text added from offset from on: every \n ends a line, and the text after the
+   * last one is a line too unless it is blank.  Blank lines are kept, empty, so error messages
+   * stay in sync with file lines, but text that is blank as a whole adds no lines at all.
+   * Added text always starts a new line, so lines are append-only until reset(): Parser's
+   * exprCache keys expressions by line and token position and relies on this.
+   */
+  private void index (int from) {
+    assert count == 0 || from >= ends[count - 1] : "added text must not change existing lines";
+    if (isBlank(from, textLen)) {
+      textLen = from;
+      return;
+    }
+    int start = from;
+    for (int ii = from; ii < textLen; ii++) {
+      if (text[ii] == '\n') {
+        addLine(start, ii);
+        start = ii + 1;
       }
     }
+    if (!isBlank(start, textLen)) {
+      addLine(start, textLen);
+    }
+  }
+
+  private void addLine (int start, int end) {
+    if (count == starts.length) {
+      starts = Arrays.copyOf(starts, count * 2);
+      ends = Arrays.copyOf(ends, count * 2);
+      tokens = Arrays.copyOf(tokens, count * 2);
+      blockEnds = Arrays.copyOf(blockEnds, count * 2);
+    }
+    starts[count] = start;
+    ends[count] = isBlank(start, end) ? start : end;
+    blockEnds[count] = -1;
+    count++;
+  }
+
+  // True if text[start, end) holds nothing but whitespace and control characters, as String.trim() sees it
+  private boolean isBlank (int start, int end) {
+    for (int ii = start; ii < end; ii++) {
+      if (text[ii] > ' ') {
+        return false;
+      }
+    }
+    return true;
   }
 
   /**
@@ -87,8 +222,8 @@ final class LineLoader {
    * @param line the line number
    */
   final void setCurLine (int line) {
-    if (line > lines.size()) {
-      line = lines.size() - 1;
+    if (line > count) {
+      line = count - 1;
     } else if (line < 0) {
       line = 0;
     }
@@ -106,23 +241,147 @@ final class LineLoader {
    * Returns the total number of lines in buffer
    */
   final int lineCount () {
-    return lines.size();
+    return count;
   }
 
   /**
    * Returns the text of the current line
    */
   final String getCurrentLine () {
-    return lines.get(curLine);
+    return getLine(curLine);
   }
 
   /**
-   * Returns the text of the requested line
+   * Returns the text of the requested line, which is only made into a String when asked for
    */
   final String getLine (int lineNum) {
-    if (lineNum < 0 || lineNum >= lines.size()) {
+    if (lineNum < 0 || lineNum >= count) {
       return "";
     }
-    return lines.get(lineNum);
+    return new String(text, starts[lineNum], ends[lineNum] - starts[lineNum]);
+  }
+
+  /**
+   * Returns the source text, UTF-8 encoded
+   */
+  final byte[] getBytes () {
+    return new String(text, 0, textLen).getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Returns the tokens of the requested line, running LexAnn over the line only the first time
+   */
+  final Tokens getTokens (int lineNum) {
+    Tokens toks = tokens[lineNum];
+    if (toks == null) {
+      List<LexAnn.Token> types = new ArrayList<>();
+      List<Object> values = new ArrayList<>();
+      lexer.setString(getLine(lineNum));
+      do {
+        lexer.nextToken();
+        types.add(lexer.ttype);
+        values.add(lexer.value);
+      } while (lexer.ttype != LexAnn.Token.TT_EOL);
+      toks = new Tokens(types.toArray(new LexAnn.Token[0]), values.toArray());
+      tokens[lineNum] = toks;
+    }
+    return toks;
+  }
+
+  /**
+   * Returns the line of the keyword that ends the block opened by the first token of a line:
+   * the next elseif, else or endif of an if, elseif or else, the endwhile of a while, or
+   * the endfunc of a func.  Lines are matched up in one pass, which picks up where it left off
+   * when lines are added, so blocks that were still open get their ends then.
+   *
+   * @param lineNum the line number
+   * @return        the matching line, or -1 if the line doesn't open a block or the blocks
+   *                around it can't be matched up line by line
+   */
+  final int blockEnd (int lineNum) {
+    while (scanned < count && !unmatched) {
+      matchLine(scanned++);
+    }
+    return lineNum >= 0 && lineNum < count ? blockEnds[lineNum] : -1;
+  }
+
+  // Match up the block keyword starting line ii, if any, with the blocks still open
+  private void matchLine (int ii) {
+    LexAnn.Token[] types = getTokens(ii).types;
+    // Blocks opened or closed after the start of a line (such as "else if") would throw
+    // the matching off, so leave everything from here on to the parser
+    for (int jj = 1; jj < types.length; jj++) {
+      if (isBlockKeyword(types[jj])) {
+        unmatched = true;
+        return;
+      }
+    }
+    switch (types[0]) {
+      case TT_IF:
+      case TT_WHILE:
+      case TT_DEFFUNC:
+        if (types[0] != TT_IF || !isSingleLineIf(types)) {
+          open(ii);
+        }
+        break;
+      case TT_ELSIF:
+      case TT_ELSE:
+      case TT_ENDIF:
+      case TT_ENDWHILE:
+      case TT_ENDDEFFUNC:
+        if (openDepth == 0 || !closes(getTokens(openBlocks[openDepth - 1]).types[0], types[0])) {
+          unmatched = true;
+          return;
+        }
+        blockEnds[openBlocks[--openDepth]] = ii;
+        if (types[0] == TT_ELSIF || types[0] == TT_ELSE) {
+          open(ii);
+        }
+        break;
+    }
+  }
+
+  private void open (int line) {
+    if (openDepth == openBlocks.length) {
+      openBlocks = Arrays.copyOf(openBlocks, openDepth * 2);
+    }
+    openBlocks[openDepth++] = line;
+  }
+
+  // True for the one line if-then construct, which has a statement after the 'then'
+  private static boolean isSingleLineIf (LexAnn.Token[] types) {
+    int then = Arrays.asList(types).indexOf(TT_THEN);
+    return then >= 0 && then < types.length - 2;
+  }
+
+  private static boolean isBlockKeyword (LexAnn.Token type) {
+    switch (type) {
+      case TT_IF:
+      case TT_ELSIF:
+      case TT_ELSE:
+      case TT_ENDIF:
+      case TT_WHILE:
+      case TT_ENDWHILE:
+      case TT_DEFFUNC:
+      case TT_ENDDEFFUNC:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  // True if keyword 'end' can end a block opened by keyword 'start'
+  private static boolean closes (LexAnn.Token start, LexAnn.Token end) {
+    switch (start) {
+      case TT_IF:
+      case TT_ELSIF:
+        return end == TT_ELSIF || end == TT_ELSE || end == TT_ENDIF;
+      case TT_ELSE:
+        return end == TT_ENDIF;
+      case TT_WHILE:
+        return end == TT_ENDWHILE;
+      default:
+        return end == TT_ENDDEFFUNC;
+    }
   }
 }
@@ -0,0 +1,125 @@
+package murlen.util.fscriptME;
+
+import static murlen.util.fscriptME.LexAnn.Token.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <b>Optimizer - simplifies nodes as Parser builds them</b>
+ * <p>
+ * Operators whose operands are constants are evaluated once at compile time, as are && and
+ * || when a constant left operand decides the result.  if and while statements whose
+ * conditions are constants keep only the code that can run, and blocks drop the
+ * statements after a 'return' or 'exit'.  Parser builds the tree bottom up, so a
+ * node is simplified after its children, and whole constant expressions like 60 * 60 * 24
+ * fold into a single Const.  Anything that would fail at runtime, such as a division by
+ * zero or a type mismatch, is left in place so it still fails when it runs.</p>
+ */
+final class Optimizer {
+  private Optimizer () {
+  }
+
+  // Binary operator, folded if both operands are constants
+  static Expr binary (LexAnn.Token op, Expr left, Expr right, int line) throws FSException {
+    if (left instanceof Expr.Const && right instanceof Expr.Const) {
+      Object lVal = ((Expr.Const) left).value;
+      Object rVal = ((Expr.Const) right).value;
+      if (lVal instanceof Integer && rVal instanceof Integer) {
+        if ((op != TT_DIV && op != TT_MOD) || (Integer) rVal != 0) {
+          return new Expr.Const(Expr.Binary.apply(op, lVal, rVal, null, line), line);
+        }
+      } else if (isNumber(lVal) && isNumber(rVal)) {
+        if (op != TT_LAND && op != TT_LOR) {
+          return new Expr.Const(Expr.Binary.apply(op, ((Number) lVal).doubleValue(), ((Number) rVal).doubleValue(), null, line), line);
+        }
+      } else if (lVal instanceof String && rVal instanceof String) {
+        if (op != TT_MINUS && op != TT_MULT && op != TT_DIV && op != TT_MOD && op != TT_LAND && op != TT_LOR) {
+          return new Expr.Const(Expr.Binary.apply(op, lVal, rVal, null, line), line);
+        }
+      } else if (op == TT_PLUS) {
+        return new Expr.Const(Expr.Binary.apply(op, lVal, rVal, null, line), line);
+      }
+    }
+    if (op == TT_LAND || op == TT_LOR) {
+      if (left instanceof Expr.Const && Expr.Logical.decides(op, ((Expr.Const) left).value)) {
+        return new Expr.Const(op == TT_LAND ? 0 : 1, line);
+      }
+      return new Expr.Logical(op, left, right, line);
+    }
+    return new Expr.Binary(op, left, right, line);
+  }
+
+  // Unary minus, folded for an int or double constant
+  static Expr negate (Expr expr, int line) {
+    if (isIntConst(expr)) {
+      return new Expr.Const(-(Integer) ((Expr.Const) expr).value, line);
+    } else if (expr instanceof Expr.Const && ((Expr.Const) expr).value instanceof Double) {
+      return new Expr.Const(-(Double) ((Expr.Const) expr).value, line);
+    }
+    return new Expr.Negate(expr, line);
+  }
+
+  // Unary not, folded for an int constant
+  static Expr not (Expr expr, int line) {
+    if (isIntConst(expr)) {
+      return new Expr.Const((Integer) ((Expr.Const) expr).value != 0 ? 0 : 1, line);
+    }
+    return new Expr.Not(expr, line);
+  }
+
+  // True for the values of int and double constants
+  private static boolean isNumber (Object val) {
+    return val instanceof Integer || val instanceof Double;
+  }
+
+  // True if expr is an int constant
+  private static boolean isIntConst (Expr expr) {
+    return expr instanceof Expr.Const && ((Expr.Const) expr).value instanceof Integer;
+  }
+
+  // if / elseif / else chain, without the branches constant conditions rule out
+  static Stmt ifStmt (List<Expr> conds, List<Stmt> bodies, Stmt orElse, int line) {
+    List<Expr> keptConds = new ArrayList<>();
+    List<Stmt> keptBodies = new ArrayList<>();
+    for (int ii = 0; ii < conds.size(); ii++) {
+      Expr cond = conds.get(ii);
+      if (isIntConst(cond)) {
+        if ((Integer) ((Expr.Const) cond).value == 0) {
+          continue;
+        }
+        // Always taken, so it ends the chain
+        orElse = bodies.get(ii);
+        break;
+      }
+      keptConds.add(cond);
+      keptBodies.add(bodies.get(ii));
+    }
+    if (keptConds.isEmpty()) {
+      // Keep the line of the if, which is where cont() resumes after a 'return' in the top level code
+      return new Stmt.Block(orElse != null ? Collections.singletonList(orElse) : new ArrayList<Stmt>(), line);
+    }
+    return new Stmt.If(keptConds, keptBodies, orElse, line);
+  }
+
+  // while loop, dropped if its condition is constant 0
+  static Stmt whileStmt (Expr cond, Stmt body, int line) {
+    if (isIntConst(cond) && (Integer) ((Expr.Const) cond).value == 0) {
+      return new Stmt.Block(new ArrayList<Stmt>(), line);
+    }
+    return new Stmt.While(cond, body, line);
+  }
+
+  // Sequence of statements, up to the first one that always leaves the block
+  static Stmt.Block block (List<Stmt> stmts, int line) {
+    for (int ii = 0; ii < stmts.size(); ii++) {
+      Stmt stmt = stmts.get(ii);
+      if (stmt instanceof Stmt.Return || stmt instanceof Stmt.TailCall || stmt instanceof Stmt.Exit) {
+        stmts = stmts.subList(0, ii + 1);
+        break;
+      }
+    }
+    return new Stmt.Block(stmts, line);
+  }
+}
@@ -4,10 +4,15 @@ import static murlen.util.fscriptME.LexAnn.*;
 import static murlen.util.fscriptME.LexAnn.Token.*;
 
 import java.lang.*;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 
 /**
@@ -58,16 +63,28 @@ import java.util.Map;
  */
 class Parser {
   private static Map<Token, Integer> opPrio = new HashMap<>();    // operator priority table
-  private Map<String, Object> vars = new HashMap<>();               // function local variables
-  private Map<String, Object> funcs = new HashMap<>();              // function map
-  private Map<String, Object> gVars  = new HashMap<>();             // global variables
+  private static final int    EXPR_CACHE_SIZE = 4096;               // most expressions kept in exprCache
+  final Symbols               symbols;                              // identifiers of the global variables and functions
+  FScript.Engine              engine;                               // how compiled code is run
+  final HostFunctions         functions;                            // host functions calls are linked to
   private LineLoader          code;                                 // the code
-  private LexAnn              tok;                                  // tokenizer
-  private FScript             host;                                 // link to hosting FScript object
-  private Object              retVal;                               // return value
+  private LineLoader.Tokens   tokens;                               // pre-lexed tokens of the current line
+  private int                 tokPos;                               // index of the current token in tokens
+  private Token               ttype;                                // current token type
+  private Object              tval;                                 // current token value
+  private final List<Segment> segments = new ArrayList<>();         // compiled code, in line order
+  private int                 compiledTo = -1;                      // last line compiled into segments
+  private final Set<String>   globalNames = new HashSet<>();        // globals declared by the lines compiled so far, see checkNames()
   private int                 maxLine;
-  private String[]            error;
-  private boolean             nested;
+  private ExecutionContext    ctx;                                  // context compiling, for error reports, or null
+  private FuncEntry           curFunc;                              // function whose body is being compiled, or null
+  Path                        cacheDir;                             // where ScriptCache keeps compiled scripts, or null
+  private final Map<Long, ParsedExpr> exprCache = new LinkedHashMap<Long, ParsedExpr>(16, 0.75f, true) {
+    protected boolean removeEldestEntry (Map.Entry<Long, ParsedExpr> eldest) {
+      return size() > EXPR_CACHE_SIZE;
+    }
+  };                                                                // expressions compiled so far, by line and token position,
+                                                                    // valid while LineLoader only appends lines
 
   static {
     // Setup operator priority table from low to high
@@ -87,41 +104,90 @@ class Parser {
   }
 
   // Simple data class used internally to store function defs
-  class FuncEntry {
+  static class FuncEntry {
+    String       name;                                // name the function is defined with
     List<String> paramNames= new ArrayList<>();       // list of parameter names
-    Map<String, Object> paramMap = new HashMap<>();   // Hashtable of parameters
+    List<Token>  paramTypes = new ArrayList<>();      // TT_DEFINT, TT_DEFSTRING or TT_DEFDOUBLE for each parameter
+    Stmt.Block   body;                                // compiled function body
+    Stmt.Block   namedBody;                           // body looking its locals up by name, if body was resolved to slots
     int startLine;                                    // start line of function
     int endLine;                                      // end line of function
+    String[]     localNames;                          // names of the local slots, params first, or null if not resolved
+    Class<?>[]   localTypes;                          // Integer, Double, String or a ScriptArray class for each local slot
+    JitCode      jit;                                 // function compiled for the engine, or null
+    int          jitIndex;                            // index of the function in jit
+
+    // True if the parameters have the declared types, as compiled code expects
+    boolean accepts (List<Object> params) {
+      for (int ii = 0; ii < params.size(); ii++) {
+        if (!type(paramTypes.get(ii)).isInstance(params.get(ii))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    // The parameters with any Integer passed for a double parameter converted to a Double
+    List<Object> widen (List<Object> params) {
+      List<Object> widened = params;
+      for (int ii = 0; ii < params.size(); ii++) {
+        Object param = params.get(ii);
+        if (param instanceof Integer && paramTypes.get(ii) == TT_DEFDOUBLE) {
+          if (widened == params) {
+            widened = new ArrayList<>(params);
+          }
+          widened.set(ii, (double) (Integer) param);
+        }
+      }
+      return widened;
+    }
+
+    // Class of the values of a declared type
+    static Class<?> type (Token type) {
+      return type == TT_DEFINT ? Integer.class : type == TT_DEFDOUBLE ? Double.class : String.class;
+    }
 
     public String toString () {
-      return startLine + " " + endLine + " " + paramNames + " " + paramMap;
+      return startLine + " " + endLine + " " + paramNames;
     }
   }
 
-  // exception that occurs when someone calls return
-  class RetException extends FSException {
+  // Expression compiled at some line and token position, see parseExpr()
+  private static final class ParsedExpr {
+    final Expr  expr;
+    final int   end;                                  // token position after the expression
+
+    ParsedExpr (Expr expr, int end) {
+      this.expr = expr;
+      this.end = end;
+    }
   }
 
-  // exception thrown by call to exit
-  class ExitException extends RetException {
+  // Top level code compiled from a range of lines, with its compiled form for the engine if any
+  static final class Segment {
+    final int         from;
+    final int         to;
+    final Stmt.Block  block;
+    final JitCode     jit;                            // null if the block has to be interpreted
+
+    Segment (int from, int to, Stmt.Block block, JitCode jit) {
+      this.from = from;
+      this.to = to;
+      this.block = block;
+      this.jit = jit;
+    }
   }
 
   /**
-   * Public constructor
+   * Constructor, the compiled code is run by an ExecutionContext
    *
-   * @param host a reference to the FScript object
+   * @param engine    how the compiled code is run
+   * @param functions host functions to link calls to
    */
-  Parser (FScript host) {
-    this.host = host;
-  }
-
-  // Used only for function calls - note it is private
-  private Parser (FScript host, Map<String, Object> local, Map<String, Object> global, Map<String, Object> funcs) {
-    this.host = host;
-    vars = local;
-    gVars = global;
-    this.funcs = funcs;
-    nested = true;
+  Parser (FScript.Engine engine, HostFunctions functions) {
+    this.engine = engine;
+    this.functions = functions;
+    symbols = new Symbols(functions);
   }
 
   /**
@@ -131,885 +197,679 @@ class Parser {
    */
   void setCode (LineLoader in) {
     code = in;
+    invalidate();
   }
 
   /**
-   * Main parsing function
+   * Discards the compiled code, called whenever it no longer matches the LineLoader contents
+   * or the engine.  Adding lines doesn't, see parse().
+   */
+  void invalidate () {
+    segments.clear();
+    compiledTo = -1;
+    globalNames.clear();
+  }
+
+  /**
+   * Discards everything compiled from the code, called when the LineLoader is reset.  Lines are
+   * only ever added otherwise, so compiled expressions stay valid until then.
+   */
+  void codeReset () {
+    invalidate();
+    exprCache.clear();
+  }
+
+  /**
+   * Main entry point, compiles the requested lines (unless they are already compiled) and returns
+   * the code to run them, for ExecutionContext.run().  Lines are only ever added to the LineLoader,
+   * so the code compiled so far is kept in segments and lines added since are compiled into a new
+   * segment on their own, linked to the functions and globals of the earlier ones by symbol.
+   * runCode() and cont() then only compile what was added, unless cont() resumes after a 'return'
+   * partway through a segment.
    *
+   * @param ctx  - the context the code is compiled for, which reports compile errors, or null
    * @param from - the start line number
    * @param to   - the end line number
-   * @return       returns an Object (currently a Integer or String) depending on the return value of the code parsed, or null if none.
+   * @return       the compiled segments, in line order
    */
-  Object parse (int from, int to) throws FSException {
+  List<Segment> segments (ExecutionContext ctx, int from, int to) throws FSException {
+    this.ctx = ctx;
+    try {
+      int first = segments.size();
+      while (first > 0 && segments.get(first - 1).from > from) {
+        first--;
+      }
+      if (first > 0 && segments.get(first - 1).from == from) {
+        first--;
+      } else if (from != compiledTo + 1) {
+        // Resuming partway through a segment
+        Stmt.Block block = compile(from, to);
+        return Collections.singletonList(new Segment(from, to, block, compileCode(block)));
+      }
+      if (to > compiledTo) {
+        Stmt.Block block = compiledTo < 0 && cacheDir != null ? compileCached(to) : compile(compiledTo + 1, to);
+        segments.add(new Segment(compiledTo + 1, to, block, compileCode(block)));
+        compiledTo = to;
+      }
+      return new ArrayList<>(segments.subList(first, segments.size()));
+    } finally {
+      this.ctx = null;
+    }
+  }
+
+  // Compiles lines 0 to 'to', or loads them from the cache if they were compiled before
+  private Stmt.Block compileCached (int to) throws FSException {
+    byte[] digest = ScriptCache.digest(code);
+    Path file = ScriptCache.file(cacheDir, digest);
+    Stmt.Block block = ScriptCache.load(file, digest, this);
+    if (block == null) {
+      block = compile(0, to);
+      ScriptCache.store(file, digest, block);
+    } else {
+      checkNames(0, to);
+    }
+    return block;
+  }
+
+  // Compiles for the selected engine, returns null if the block has to be interpreted
+  private JitCode compileCode (Stmt.Block block) {
+    switch (engine) {
+      case JVM: return JitCompiler.compile(block);
+      case VM:  return VmCompiler.compile(block);
+      default:  return null;
+    }
+  }
+
+  /**
+   * Compiles a range of lines into a block of statements
+   *
+   * @param from - the start line number
+   * @param to   - the end line number
+   * @return       the compiled code
+   */
+  private Stmt.Block compile (int from, int to) throws FSException {
     // Nothing to do when starting beyond the code end
     if (code.lineCount() <= from) {
-      return null;
+      return new Stmt.Block(new ArrayList<Stmt>(), from);
     }
-    maxLine = to;
-    code.setCurLine(from);
-    String line = code.getCurrentLine();
-    tok = new LexAnn(line);
-    checkLine(line);
-    getNextToken();
-    while (tok.ttype != TT_EOF) {
-      // a script must always start with a word...
-      try {
-        parseStmt();
-      } catch (ExitException ex) {
-        throw ex;
-      } catch (RetException ex) {
-        return retVal;
+    checkLine(code.getLine(from));
+    checkNames(from, to);
+    return compileLines(from, to);
+  }
+
+  /*
+   * With strict host functions, fails on the first variable name in the lines that the script
+   * doesn't declare and the host doesn't define, see HostFunctions.setStrict().  Only the lines
+   * being compiled are scanned, once for their declarations and once for the names they use.
+   * A function sees its parameters and locals, and every function and the top level code see
+   * the globals declared at the top level of the lines compiled so far, as globals may be
+   * declared after the code using them.
+   */
+  private void checkNames (int from, int to) throws FSException {
+    if (!functions.isStrict()) {
+      return;
+    }
+    to = Math.min(to, code.lineCount() - 1);
+    List<Set<String>> scopes = new ArrayList<>();         // names declared by each function, in line order
+    Set<String> scope = globalNames;
+    for (int ii = from; ii <= to; ii++) {
+      LineLoader.Tokens toks = code.getTokens(ii);
+      if (toks.types[0] == TT_DEFFUNC) {
+        scopes.add(scope = new HashSet<>());
+      }
+      boolean decl = toks.types[0] == TT_DEFINT || toks.types[0] == TT_DEFSTRING || toks.types[0] == TT_DEFDOUBLE;
+      for (int jj = 1; jj < toks.types.length; jj++) {
+        Token prev = toks.types[jj - 1];
+        if ((toks.types[jj] == TT_WORD || toks.types[jj] == TT_ARRAY) && (prev == TT_DEFINT || prev == TT_DEFSTRING || prev == TT_DEFDOUBLE || (decl && prev == TT_COMMA))) {
+          scope.add((String) toks.values[jj]);
+        }
+      }
+      if (toks.types[0] == TT_ENDDEFFUNC) {
+        scope = globalNames;
+      }
+    }
+    int func = 0;
+    scope = null;
+    for (int ii = from; ii <= to; ii++) {
+      LineLoader.Tokens toks = code.getTokens(ii);
+      if (toks.types[0] == TT_DEFFUNC) {
+        scope = scopes.get(func++);
+      }
+      for (int jj = 0; jj < toks.types.length; jj++) {
+        Object name = toks.values[jj];
+        if (toks.types[jj] == TT_WORD && !globalNames.contains(name) && (scope == null || !scope.contains(name)) &&
+            functions.variable((String) name) == null) {
+          throw error(ctx, "Undefined variable: " + name, ii, name + ":" + TT_WORD, null);
+        }
+      }
+      if (toks.types[0] == TT_ENDDEFFUNC) {
+        scope = null;
       }
-      getNextToken();
     }
-    return retVal;
   }
 
   /**
-   * Reset the parser state
+   * Compiles the body of a top level block the first time it runs, see Stmt.Lazy.  Compiled
+   * code may be shared by contexts running on several threads, so only one body is compiled
+   * at a time.
+   *
+   * @param ctx  - the context running the block, or null if it is compiled ahead of time
+   * @param from - the first line of the body
+   * @param to   - the last line of the body
+   * @return       the compiled code
    */
-  void reset () {
-    vars.clear();
-    gVars.clear();
+  synchronized Stmt.Block compileBody (ExecutionContext ctx, int from, int to) throws FSException {
+    this.ctx = ctx;
+    try {
+      return compileLines(from, to);
+    } finally {
+      this.ctx = null;
+    }
+  }
+
+  private Stmt.Block compileLines (int from, int to) throws FSException {
+    List<Stmt> stmts = new ArrayList<>();
+    maxLine = to;
+    curFunc = null;
+    code.setCurLine(from);
+    setTokens();
+    nextToken();
+    while (ttype != TT_EOF) {
+      // a script must always start with a word...
+      add(stmts, parseStmt());
+      getNextToken();
+    }
+    return Optimizer.block(stmts, from);
   }
 
   // Statement - top level thing
-  private void parseStmt () throws FSException {
-    switch (tok.ttype) {
+  private Stmt parseStmt () throws FSException {
+    switch (ttype) {
       case TT_IF:
       case TT_ENDIF:
       case TT_WHILE:
       case TT_ENDWHILE:
       case TT_DEFINT:
       case TT_DEFSTRING:
+      case TT_DEFDOUBLE:
       case TT_DEFFUNC:
       case TT_EXIT:
       case TT_ENDDEFFUNC:
       case TT_RETURN:
-        parseKeyWord();
-        break;
+        return parseKeyWord();
       case TT_FUNC:
-        parseFunc();
-        break;
+        return parseFunc();
       case TT_ARRAY:
-        parseArrayAssign();
-        break;
+        return parseArrayAssign();
       case TT_WORD:
-        parseAssign();
-        break;
+        return parseAssign();
       case TT_EOL:
-        tok.nextToken();
-        break;
+        nextToken();
+        return null;
       case TT_EOF:
         // all done
-        break;
+        return null;
       default:
-        parseError("Expected identifier");
+        throw parseError("Expected identifier");
     }
   }
 
-  private void parseFunc () throws FSException {
-    String name = (String) tok.value;
+  // Parse statements up to one of the given terminating keywords
+  private Stmt.Block parseBlock (Token end1, Token end2, Token end3, String missing) throws FSException {
+    int line = code.getCurLine();
+    List<Stmt> stmts = new ArrayList<>();
+    while (ttype != end1 && ttype != end2 && ttype != end3) {
+      if (ttype == TT_EOF) {
+        throw parseError(missing);
+      }
+      add(stmts, parseStmt());
+      getNextToken();
+    }
+    return Optimizer.block(stmts, line);
+  }
+
+  private Stmt parseFunc () throws FSException {
+    int line = code.getCurLine();
+    Symbol sym = symbols.intern((String) tval);
     // should be a '('
     getNextToken();
-    if (tok.ttype != TT_LPAREN) {
-      parseError("Expected '('");
+    if (ttype != TT_LPAREN) {
+      throw parseError("Expected '('");
     }
-    parseCallFunc(name);
+    Expr call = parseCallFunc(sym, line);
     getNextToken();
+    return new Stmt.ExprStmt(call, line);
   }
 
-  private void parseArrayAssign () throws FSException {
-    String name = (String) tok.value;
+  private Stmt parseArrayAssign () throws FSException {
+    int line = code.getCurLine();
+    String name = (String) tval;
     getNextToken();                       // should be a '['
-    if (tok.ttype != TT_LBRACE) {
-      parseError("Expected '['");
+    if (ttype != TT_LBRACE) {
+      throw parseError("Expected '['");
     }
     getNextToken();                       // should be the index
-    Object index = parseExpr();
-    getNextToken();                       // should be a ']'
-    if (tok.ttype != TT_RBRACE) {
-      parseError("Expected ']'");
+    Expr index = parseExpr();
+    if (ttype != TT_RBRACE) {
+      throw parseError("Expected ']'");
     }
-    if (tok.ttype != TT_EQ) {
-      parseError("Expected '='");
-    } else {
-      getNextToken();
-      Object val = parseExpr();
-      try {
-        host.setVar(name, index, val);
-      } catch (Exception e) {
-        parseError(e.getMessage());
-      }
+    getNextToken();                       // should be a '='
+    if (ttype != TT_EQ) {
+      throw parseError("Expected '='");
     }
+    getNextToken();
+    return new Stmt.ArrayAssign(symbols.intern(name), -1, index, parseExpr(), line);
   }
 
-  private void parseKeyWord () throws FSException {
-    switch (tok.ttype) {
+  private Stmt parseKeyWord () throws FSException {
+    switch (ttype) {
       case TT_DEFINT:
       case TT_DEFSTRING:
       case TT_DEFDOUBLE:
-        parseVarDef();
-        break;
+        return parseVarDef();
       case TT_IF:
-        parseIf();
-        break;
+        return parseIf();
       case TT_WHILE:
-        parseWhile();
-        break;
+        return parseWhile();
       case TT_RETURN:
-        parseReturn();
-        break;
+        return parseReturn();
       case TT_DEFFUNC:
-        parseFunctionDef();
-        break;
+        return parseFunctionDef();
       case TT_EXIT:
-        parseExit();
+        return parseExit();
       default:
         // We should never get here
-        parseError("Not a keyword");
+        throw parseError("Not a keyword");
     }
   }
 
   // Handle 'return' statements
-  private void parseReturn () throws FSException {
+  private Stmt parseReturn () throws FSException {
+    int line = code.getCurLine();
     getNextToken();
-    retVal = parseExpr();
-    throw new RetException();
+    Expr expr = parseExpr();
+    if (curFunc != null && expr instanceof Expr.Call) {
+      Expr.Call call = (Expr.Call) expr;
+      if (call.sym.name.equals(curFunc.name) && call.args.length == curFunc.paramNames.size()) {
+        // Calls itself as the last thing it does, so the call can reuse the frame
+        return new Stmt.TailCall(call, curFunc, line);
+      }
+    }
+    return new Stmt.Return(expr, line);
   }
 
   // Handle 'exit' statements
-  private void parseExit () throws FSException {
+  private Stmt parseExit () throws FSException {
+    int line = code.getCurLine();
     getNextToken();
-    retVal = parseExpr();
-    throw new ExitException();
+    return new Stmt.Exit(parseExpr(), line);
   }
 
   // Assignment parser
-  private void parseAssign () throws FSException {
-    String name;
-    Object val;
-    name = (String) tok.value;
+  private Stmt parseAssign () throws FSException {
+    int line = code.getCurLine();
+    String name = (String) tval;
     getNextToken();
-    if (tok.ttype != TT_EQ) {
-      parseError("Expected '='");
-    } else {
-      getNextToken();
-      val = parseExpr();
-      if (hasVar(name)) {
-        setVar(name, val);
-      } else {
-        try {
-          host.setVar(name, null, val);
-        } catch (Exception e) {
-          parseError(e.getMessage());
-        }
-      }
-    }
-  }
-
-  // Handle function execution
-  Object callFunction (String name, List<Object> params) throws FSException {
-    // Check we have a definition for the function
-    if (funcs.containsKey(name)) {
-      FuncEntry fDef = (FuncEntry) funcs.get(name);
-      // Check params and def match
-      if (fDef.paramNames.size() != params.size()) {
-        parseError("Expected " + fDef.paramNames.size() + " parameters, Found " + params.size());
-      }
-      // Create a new parser instance to handle call
-      Parser parser;
-      Map<String, Object> locals = new HashMap<>();
-      // Push the params into the local scope
-      for (int ii = 0; ii < fDef.paramNames.size(); ii++) {
-        locals.put(fDef.paramNames.get(ii), params.get(ii));
-      }
-      // Watch for recursive calls
-      if (!nested) {
-        parser = new Parser(host, locals, vars, funcs);
-      } else {
-        parser = new Parser(host, locals, gVars, funcs);
-      }
-      // Cache the current execution point
-      int oldLine = code.getCurLine();
-      parser.setCode(code);
-      // Let it rip
-      Object val = parser.parse(fDef.startLine + 1, fDef.endLine - 1);
-      // Reset execution point
-      code.setCurLine(oldLine);
-      return val;
-    } else {
-      // Calls into super class code...}
-      try {
-        return host.callFunction(name, params);
-      } catch (ExitException e) {
-        throw e;
-      } catch (Exception e) {
-        parseError(e.getMessage());
-      }
+    if (ttype != TT_EQ) {
+      throw parseError("Expected '='");
     }
-    return null;
+    getNextToken();
+    return new Stmt.Assign(symbols.intern(name), parseExpr(), line);
   }
 
   // Parses function calls
-  private Object parseCallFunc (String name) throws FSException {
-    List<Object> params = new ArrayList<>();
+  private Expr parseCallFunc (Symbol sym, int line) throws FSException {
+    List<Expr> params = new ArrayList<>();
     // Set up the parameters
     do {
       getNextToken();
-      if (tok.ttype == TT_COMMA) {
+      if (ttype == TT_COMMA) {
         getNextToken();
-      } else if (tok.ttype == TT_RPAREN) {
+      } else if (ttype == TT_RPAREN) {
         break;
       }
       params.add(parseExpr());
-    } while (tok.ttype == TT_COMMA);
-    return callFunction(name, params);
+    } while (ttype == TT_COMMA);
+    if (ttype != TT_RPAREN) {
+      throw parseError("Expected ')'");
+    }
+    return new Expr.Call(sym, params.toArray(new Expr[0]), functions.get(sym.name, params.size()), line);
   }
 
   // Handle function definitions
-  private void parseFunctionDef () throws FSException {
+  private Stmt parseFunctionDef () throws FSException {
+    if (curFunc != null) {
+      throw parseError("Nested functions are illegal");
+    }
     FuncEntry fDef = new FuncEntry();
     fDef.startLine = code.getCurLine();
     getNextToken();
     // should be the function name
-    if (tok.ttype != TT_FUNC) {
-      parseError("Expected function start identifier");
+    if (ttype != TT_FUNC) {
+      throw parseError("Expected function start identifier");
     }
-    String fName = (String) tok.value;
+    String fName = (String) tval;
+    fDef.name = fName;
     getNextToken();
     // should be a '('
-    if (tok.ttype != TT_LPAREN) {
-      parseError("Expected (");
+    if (ttype != TT_LPAREN) {
+      throw parseError("Expected (");
     }
     getNextToken();
     // parse the header...
-    while (tok.ttype != TT_RPAREN) {
-      if (tok.ttype != TT_DEFINT && tok.ttype != TT_DEFSTRING) {
-        parseError("Expected type name");
-      }
-      Object val = null; // keep the compiler happy..
-      if (tok.ttype == TT_DEFINT) {
-        val = 0;
-      } else if (tok.ttype == TT_DEFSTRING) {
-        val = "";
+    while (ttype != TT_RPAREN) {
+      if (ttype != TT_DEFINT && ttype != TT_DEFSTRING && ttype != TT_DEFDOUBLE) {
+        throw parseError("Expected type name");
       }
+      fDef.paramTypes.add(ttype);
       getNextToken();
-      if (tok.ttype != TT_WORD) {
-        parseError("Expected function parameter name identifier");
+      if (ttype != TT_WORD) {
+        throw parseError("Expected function parameter name identifier");
       }
-      String name = (String) tok.value;
-      fDef.paramNames.add(name);
-      fDef.paramMap.put(name, val);
+      fDef.paramNames.add(symbols.intern((String) tval).name);
       getNextToken();
-      if (tok.ttype == TT_COMMA) getNextToken();
+      if (ttype == TT_COMMA) getNextToken();
     }
-    // now we just skip to the endfunction
-    while ((tok.ttype != TT_ENDDEFFUNC) && (tok.ttype != TT_EOF)) {
-      getNextToken();
-      if (tok.ttype == TT_DEFFUNC)
-        parseError("Nested functions are illegal");
+    // now compile the body up to the endfunction
+    getNextToken();
+    curFunc = fDef;
+    try {
+      fDef.body = parseBlock(TT_ENDDEFFUNC, TT_ENDDEFFUNC, TT_ENDDEFFUNC, "can't find endfunc");
+    } finally {
+      curFunc = null;
     }
     fDef.endLine = code.getCurLine();
+    Resolver.resolve(fDef);
     getNextToken();
-    funcs.put(fName, fDef);
+    return new Stmt.FuncDef(symbols.intern(fName), fDef, fDef.startLine);
   }
 
-  // Expression parser
-  private Object parseExpr () throws FSException {
-    ETreeNode curNode = null;
-    boolean end = false;
-    Object val;
-    boolean negate = false; // flag for unary minus
-    boolean not = false;    // flag for unary not.
-    boolean prevOp = true;  // flag - true if previous value was an operator
-    while (!end) {
-      switch (tok.ttype) {
-        // the various possible 'values'
+  /*
+   * Expression parser.  Lines only change when the code is reset, so an expression compiled once
+   * is reused whenever the same line is compiled again, as cont(), a lazy body or a recompile
+   * after addLines() or setEngine() do, instead of parsing its tokens again.
+   */
+  private Expr parseExpr () throws FSException {
+    Long key = ((long) code.getCurLine() << 32) | tokPos;
+    ParsedExpr parsed = exprCache.get(key);
+    if (parsed != null) {
+      tokPos = parsed.end - 1;
+      nextToken();
+      return parsed.expr;
+    }
+    Expr expr = parseBinary(0);
+    exprCache.put(key, new ParsedExpr(expr, tokPos));
+    return expr;
+  }
+
+  /*
+   * Operators - we parse by precedence climbing, so an operator only takes the operands
+   * to its right that are bound by operators of a higher priority
+   */
+  private Expr parseBinary (int minPrio) throws FSException {
+    Expr left = parseOperand();
+    while (true) {
+      switch (ttype) {
         case TT_INTEGER:
         case TT_DOUBLE:
         case TT_STRING:
         case TT_WORD:
         case TT_FUNC:
-        case TT_ARRAY: {
-          if (!prevOp) {
-            parseError("Expected Operator");
-          } else {
-            val = null;
-            ETreeNode node = new ETreeNode();
-            node.type = ETreeNode.E_VAL;
-            switch (tok.ttype) {
-              // numbers - just get them
-              case TT_INTEGER:
-                // strings - just get again
-              case TT_STRING:
-                val = tok.value;
-                break;
-              // functions - evaluate them
-              case TT_FUNC:
-                String funcName = (String) tok.value;
-                getNextToken();
-                val = parseCallFunc(funcName);
-                break;
-              case TT_ARRAY:
-                // arrays - evaluate them
-                String aryName = (String) tok.value;
-                getNextToken();         // should be a '['
-                getNextToken();         // should be the index
-                Object index = parseExpr();
-                try {
-                  val = host.getVar(aryName, index);
-                } catch (Exception e) {
-                  parseError(e.getMessage());
-                }
-                break;
-              case TT_WORD:
-                // variables - resolve them
-                if (hasVar((String) tok.value)) {
-                  val = getVar((String) tok.value);
-                } else {
-                  try {
-                    val = host.getVar((String) tok.value, null);
-                  } catch (Exception e) {
-                    parseError(e.getMessage());
-                  }
-                }
-                break;
-            }
-            // unary not
-            if (not) {
-              if (val instanceof Integer) {
-                if ((Integer) val != 0) {
-                  val = 0;
-                } else {
-                  val = 1;
-                }
-                not = false;
-              } else {
-                parseError("Type mismatch for !");
-              }
-            }
-            // unary minus
-            if (negate) {
-              if (val instanceof Integer) {
-                val = -(Integer) val;
-              } else {
-                parseError("Type mistmatch for unary -");
-              }
-            }
-            node.value = val;
-            if (curNode != null) {
-              if (curNode.left == null) {
-                curNode.left = node;
-                node.parent = curNode;
-                curNode = node;
-
-              } else if (curNode.right == null) {
-                curNode.right = node;
-                node.parent = curNode;
-                curNode = node;
-              }
-            } else {
-              curNode = node;
-            }
-            prevOp = false;
-          }
-          break;
-        }
-        /*
-         * Operators - have to be more carefull with these.  We build an expression tree - inserting the
-         * nodes at the right points to get a reasonable approximation to correct operator precedence
-         */
-        case TT_LEQ:
-        case TT_LNEQ:
-        case TT_MULT:
-        case TT_DIV:
-        case TT_MOD:
-        case TT_PLUS:
-        case TT_MINUS:
-        case TT_LGR:
-        case TT_LGRE:
-        case TT_LLSE:
-        case TT_LLS:
-        case TT_NOT:
-        case TT_LAND:
-        case TT_LOR: {
-          if (prevOp) {
-            if (tok.ttype == TT_MINUS) {
-              negate = true;
-            } else if (tok.ttype == TT_NOT) {
-              not = true;
-            } else {
-              parseError("Expected expression");
-            }
-          } else {
-            ETreeNode node = new ETreeNode();
-            node.type = ETreeNode.E_OP;
-            node.value = tok.ttype;
-            if (curNode.parent != null) {
-              int curPrio = getPrio(tok.ttype);
-              int parPrio = getPrio((Token) curNode.parent.value);
-              if (curPrio <= parPrio) {
-                // This nodes parent is the current node's grandparent
-                node.parent = curNode.parent.parent;
-                // Our nodes left leg is now linked into the current node's parent
-                node.left = curNode.parent;
-                // Hook into grandparent
-                if (curNode.parent.parent != null) {
-                  curNode.parent.parent.right = node;
-                }
-                // Current nodes parent is now us (because of above)
-                curNode.parent = node;
-                // Set the current node.
-                curNode = node;
-              } else {
-                // Current node's parent's right is now us
-                curNode.parent.right = node;
-                // Our nodes left is the current node
-                node.left = curNode;
-                // our nodes parent is the current node's parent
-                node.parent = curNode.parent;
-                // Curent nodes parent is now us.
-                curNode.parent = node;
-                // set the current node.
-                curNode = node;
-              }
-            } else {
-              // Our node's left is the current node
-              node.left = curNode;
-              // Current node's parent is us now
-              // We don't have to set our parent, as it is null
-              curNode.parent = node;
-              // Set current node
-              curNode = node;
-            }
-            prevOp = true;
-          }
-          break;
-        }
-        case TT_LPAREN: {
-          // Start of an bracketed expression, recursively call ourself to get a value
-          getNextToken();
-          val = parseExpr();
-          ETreeNode node = new ETreeNode();
-          node.value = val;
-          node.type = ETreeNode.E_VAL;
-          if (curNode != null) {
-            if (curNode.left == null) {
-              curNode.left = node;
-              node.parent = curNode;
-              curNode = node;
-            } else if (curNode.right == null) {
-              curNode.right = node;
-              node.parent = curNode;
-              curNode = node;
-            }
-          } else {
-            curNode = node;
-          }
-          prevOp = false;
-          break;
-        }
-        default: {
-          end = true;
-        }
+        case TT_ARRAY:
+        case TT_LPAREN:
+          throw parseError("Expected Operator");
       }
-      if (!end) {
-        tok.nextToken();
+      Integer prio = opPrio.get(ttype);
+      if (prio == null || prio < minPrio) {
+        return left;
       }
+      Token op = ttype;
+      int line = code.getCurLine();
+      nextToken();
+      left = Optimizer.binary(op, left, parseBinary(prio + 1), line);
     }
-    // Find the top of the tree we just built.
-    if (curNode == null) parseError("Missing Expression");
-    assert curNode != null;
-    while (curNode.parent != null) {
-      curNode = curNode.parent;
-    }
-    return evalETree(curNode);
-  }
-
-  // Get operator priority
-  private int getPrio (Token op) {
-    return opPrio.get(op);
   }
 
-  // Evaluate the expression tree recursively
-  private Object evalETree (ETreeNode node) throws FSException {
-    if (node.type == ETreeNode.E_VAL) {
-      return node.value;
-    }
-    Object lVal = evalETree(node.left);
-    Object rVal = evalETree(node.right);
-    switch ((Token) node.value) {
-      // Call the various eval functions
-      case TT_PLUS:
-        return evalPlus(lVal, rVal);
+  // Parses a value, with any leading unary operators
+  private Expr parseOperand () throws FSException {
+    int line = code.getCurLine();
+    Expr val;
+    switch (ttype) {
       case TT_MINUS:
-        return evalMinus(lVal, rVal);
-      case TT_MULT:
-        return evalMult(lVal, rVal);
-      case TT_DIV:
-        return evalDiv(lVal, rVal);
-      case TT_LEQ:
-        return evalEq(lVal, rVal);
-      case TT_LNEQ:
-        return evalNEq(lVal, rVal);
-      case TT_LLS:
-        return evalLs(lVal, rVal);
-      case TT_LLSE:
-        return evalLse(lVal, rVal);
-      case TT_LGR:
-        return evalGr(lVal, rVal);
-      case TT_LGRE:
-        return evalGre(lVal, rVal);
-      case TT_MOD:
-        return evalMod(lVal, rVal);
-      case TT_LAND:
-        return evalAnd(lVal, rVal);
-      case TT_LOR:
-        return evalOr(lVal, rVal);
-    }
-    return null;
-  }
-
-  // Addition
-  private Object evalPlus (Object lVal, Object rVal) throws FSException {
-    if (lVal instanceof Integer && rVal instanceof Integer) {
-      return (Integer) lVal + (Integer) rVal;
-    } else if (lVal instanceof String || rVal instanceof String) {
-      // Little bit of bulletproofing
-      String lv = lVal != null ? lVal.toString() : "null";
-      String rv = rVal != null ? rVal.toString() : "null";
-      return lv + rv;
-    } else {
-      parseError("Type Mismatch for operator +");
-    }
-    return null;
-  }
-
-  // Subtraction
-  private Object evalMinus (Object lVal, Object rVal) throws FSException {
-    if (lVal instanceof Integer && rVal instanceof Integer) {
-      return (Integer) lVal - (Integer) rVal;
-    } else {
-      parseError("Type Mismatch for operator -");
-    }
-    return null;
-  }
-
-  // Multiplication
-  private Object evalMult (Object lVal, Object rVal) throws FSException {
-    if (lVal instanceof Integer && rVal instanceof Integer) {
-      return (Integer) lVal * (Integer) rVal;
-    } else {
-      parseError("Type Mismatch for operator *");
-    }
-    return null;
-  }
-
-  // Modulus
-  private Object evalMod (Object lVal, Object rVal) throws FSException {
-    if (lVal instanceof Integer && rVal instanceof Integer) {
-      return (Integer) lVal % (Integer) rVal;
-    } else {
-      parseError("Type Mismatch for operator %");
-    }
-    return null;
-  }
-
-  // Logical AND
-  private Object evalAnd (Object lVal, Object rVal) throws FSException {
-    if (lVal instanceof Integer && rVal instanceof Integer) {
-      return (Integer) lVal != 0 && (Integer) rVal != 0 ? 1 : 0;
-    } else {
-      parseError("Type Mismatch for operator &&");
-    }
-    return null;
-  }
-
-  // Logical Or
-  private Object evalOr (Object lVal, Object rVal) throws FSException {
-    if (lVal instanceof Integer && rVal instanceof Integer) {
-      return (Integer) lVal != 0 || (Integer) rVal != 0 ? 1 : 0;
-    } else {
-      parseError("Type Mismatch for operator ||");
-    }
-    return null;
-  }
-
-  // Division
-  private Object evalDiv (Object lVal, Object rVal) throws FSException {
-    if (lVal instanceof Integer && rVal instanceof Integer) {
-      return (Integer) lVal / (Integer) rVal;
-    } else {
-      parseError("Type Mismatch for operator /");
-    }
-    return null;
-  }
-
-  // Logical equal
-  private Object evalEq (Object lVal, Object rVal) throws FSException {
-    if (lVal instanceof Integer && rVal instanceof Integer) {
-      return lVal.equals(rVal) ? 1 : 0;
-    } else if (lVal instanceof String && rVal instanceof String) {
-      return lVal.equals(rVal) ? 1 : 0;
-    } else {
-      parseError("Type Mismatch for operator ==");
-    }
-    return null;
-  }
-
-  // Evaluate <
-  private Object evalLs (Object lVal, Object rVal) throws FSException {
-    if (lVal instanceof Integer && rVal instanceof Integer) {
-      return (Integer) lVal < (Integer) rVal ? 1 : 0;
-    } else if (lVal instanceof String && rVal instanceof String) {
-      return ((String) lVal).compareTo((String) rVal) < 0 ? 1 : 0;
-    } else {
-      parseError("Type Mismatch for operator <");
-    }
-    return null;
-  }
-
-  // Evaluate <=
-  private Object evalLse (Object lVal, Object rVal) throws FSException {
-    if (lVal instanceof Integer && rVal instanceof Integer) {
-      return (Integer) lVal <= (Integer) rVal ? 1 : 0;
-    } else if (lVal instanceof String && rVal instanceof String) {
-      return ((String) lVal).compareTo((String) rVal) <= 0 ? 1 : 0;
-    } else {
-      parseError("Type Mismatch for operator <=");
-    }
-    return null;
-  }
-
-  // Evaluate >
-  private Object evalGr (Object lVal, Object rVal) throws FSException {
-    if (lVal instanceof Integer && rVal instanceof Integer) {
-      return (Integer) lVal > (Integer) rVal ? 1 : 0;
-    } else if (lVal instanceof String && rVal instanceof String) {
-      return ((String) lVal).compareTo((String) rVal) > 0 ? 1 : 0;
-    } else {
-      parseError("Type Mismatch for operator >");
+        nextToken();
+        return Optimizer.negate(parseOperand(), line);
+      case TT_NOT:
+        nextToken();
+        return Optimizer.not(parseOperand(), line);
+      // numbers and strings - just get them
+      case TT_INTEGER:
+      case TT_DOUBLE:
+      case TT_STRING:
+        val = new Expr.Const(tval, line);
+        break;
+      // functions - evaluate them
+      case TT_FUNC: {
+        Symbol sym = symbols.intern((String) tval);
+        getNextToken();
+        val = parseCallFunc(sym, line);
+        break;
+      }
+      case TT_ARRAY: {
+        // arrays - evaluate them
+        String aryName = (String) tval;
+        getNextToken();         // should be a '['
+        getNextToken();         // should be the index
+        val = new Expr.ArrayRef(symbols.intern(aryName), -1, parseExpr(), line);
+        break;
+      }
+      case TT_WORD:
+        // variables - resolve them
+        val = new Expr.Var(symbols.intern((String) tval), line);
+        break;
+      case TT_LPAREN:
+        // Start of an bracketed expression, recursively call ourself to get a value
+        getNextToken();
+        val = parseExpr();
+        if (ttype != TT_RPAREN) {
+          throw parseError("Expected ')'");
+        }
+        break;
+      default:
+        if (opPrio.containsKey(ttype)) {
+          throw parseError("Expected expression");
+        }
+        throw parseError("Missing Expression");
     }
-    return null;
+    nextToken();
+    return val;
   }
 
-  // Evaluate >=
-  private Object evalGre (Object lVal, Object rVal) throws FSException {
-    if (lVal instanceof Integer && rVal instanceof Integer) {
-      return (Integer) lVal >= (Integer) rVal ? 1 : 0;
-    } else if (lVal instanceof String && rVal instanceof String) {
-      return ((String) lVal).compareTo((String) rVal) >= 0 ? 1 : 0;
-    } else {
-      parseError("Type Mismatch for operator >=");
+  /*
+   * Called at the end of the line holding a block header, or an else.  If LineLoader could match
+   * the block up, moves on to the keyword ending the block and returns the lines in between as a
+   * Stmt.Lazy, so branches that never run are never compiled.  Otherwise returns null and the
+   * caller parses the block.  Function bodies are always compiled in full so Resolver can see
+   * all their declarations.
+   */
+  private Stmt lazyBody (boolean lineStart) {
+    int line = code.getCurLine();
+    int end = code.blockEnd(line);
+    if (curFunc != null || !lineStart || ttype != TT_EOL || end <= line || end > maxLine) {
+      return null;
     }
-    return null;
-  }
-
-  // Logical inequallity
-  private Object evalNEq (Object lVal, Object rVal) throws FSException {
-    if (lVal instanceof Integer && rVal instanceof Integer) {
-      return !lVal.equals(rVal) ? 1 : 0;
-    } else if (lVal instanceof String && rVal instanceof String) {
-      return !lVal.equals(rVal) ? 1 : 0;
-    } else {
-      parseError("Type Mismatch for operator !=");
+    code.setCurLine(end);
+    setTokens();
+    nextToken();
+    if (end == line + 1) {
+      return new Stmt.Block(new ArrayList<Stmt>(), line);
     }
-    return null;
+    return new Stmt.Lazy(this, line + 1, end - 1);
   }
 
   // Parse "if" statement
-  private void parseIf () throws FSException {
-    Integer val;
-    boolean then = false;
+  private Stmt parseIf () throws FSException {
+    int line = code.getCurLine();
+    boolean lineStart = tokPos == 0;
+    List<Expr> conds = new ArrayList<>();
+    List<Stmt> bodies = new ArrayList<>();
     getNextToken();
-    try {
-      val = (Integer) parseExpr();
-    } catch (ClassCastException cce) {
-      parseError("If condition needs to be Integer");
-      return;
-    }
+    Expr cond = parseExpr();
     // handle the one line if-then construct
-    if (tok.ttype == TT_THEN) {
+    if (ttype == TT_THEN) {
       getNextToken();
       // is this a single line then (or just a optional then)
-      if (tok.ttype != TT_EOL) {
-        // single line if then construct - run separately
-        if (val != 0) {
-          parseStmt();
-        } else {
-          // consume to EOL
-          while (tok.ttype != TT_EOL) {
-            getNextToken();
-          }
-        }
-        then = true;
+      if (ttype != TT_EOL) {
+        // single line if then construct
+        conds.add(cond);
+        Stmt stmt = parseStmt();
+        bodies.add(stmt != null ? stmt : new Stmt.Block(new ArrayList<Stmt>(), line));
+        return Optimizer.ifStmt(conds, bodies, null, line);
       }
     }
-    if (!then) {
-      if (val != 0) {
+    Stmt orElse = null;
+    while (true) {
+      conds.add(cond);
+      Stmt body = lazyBody(lineStart);
+      if (body == null) {
         getNextToken();
-        while (tok.ttype != TT_ENDIF &&
-               tok.ttype != TT_ELSE &&
-               tok.ttype != TT_EOF &&
-               tok.ttype != TT_ELSIF) {
-          // run the body of the if
-          parseStmt();
-          getNextToken();
-        }
-        if (tok.ttype == TT_ELSE || tok.ttype == TT_ELSIF) {
-          // skip else clause -
-          // have to do this taking into acount nesting
-          int depth = 1;
-          do {
-            getNextToken();
-            if (tok.ttype == TT_IF)
-              depth++;
-            if (tok.ttype == TT_EOF)
-              parseError("can't find endif");
-            if (tok.ttype == TT_ENDIF)
-              depth--;
-            // A then could indicate a one line
-            // if - then construct, then we don't increment
-            // depth
-            if (tok.ttype == TT_THEN) {
-              getNextToken();
-              if (tok.ttype != TT_EOL) {
-                depth--;
-              }
-              tok.pushBack();
-            }
-          } while (depth > 0);
-          getNextToken();
-        } else {
+        body = parseBlock(TT_ENDIF, TT_ELSE, TT_ELSIF, "can't find endif");
+      }
+      bodies.add(body);
+      if (ttype == TT_ELSIF) {
+        lineStart = tokPos == 0;
+        getNextToken();
+        cond = parseExpr();
+        if (ttype == TT_THEN) {
           getNextToken();
         }
       } else {
-        // skip to else clause
-        int depth = 1;
-        do {
-          getNextToken();
-          if (tok.ttype == TT_IF) {
-            depth++;
-          }
-          if (tok.ttype == TT_EOF) {
-            parseError("can't find endif");
-          }
-          if ((tok.ttype == TT_ENDIF)) {
-            depth--;
-          }
-          if ((tok.ttype == TT_ELSE || tok.ttype == TT_ELSIF) && depth == 1) {
-            depth--;
-          }
-          // A then could indicate a one line
-          // if - then construct, then we don't increment depth
-          if (tok.ttype == TT_THEN) {
-            getNextToken();
-            if (tok.ttype != TT_EOL) {
-              depth--;
-            }
-            tok.pushBack();
-          }
-        } while (depth > 0);
-        if (tok.ttype == TT_ELSE) {
-          getNextToken();
-          getNextToken();
-          // run else clause
-          while (tok.ttype != TT_ENDIF) {
-            parseStmt();
-            getNextToken();
-          }
-          getNextToken();
-        } else if (tok.ttype == TT_ELSIF) {
-          parseIf();
-        } else {
-          getNextToken();
-        }
+        break;
+      }
+    }
+    if (ttype == TT_ELSE) {
+      lineStart = tokPos == 0;
+      getNextToken();
+      orElse = lazyBody(lineStart);
+      if (orElse == null) {
+        orElse = parseBlock(TT_ENDIF, TT_ENDIF, TT_ENDIF, "can't find endif");
       }
     }
+    getNextToken();
+    return Optimizer.ifStmt(conds, bodies, orElse, line);
   }
 
   // Parse While statements
-  private void parseWhile () throws FSException {
-    int startLine = code.getCurLine();
-    getNextToken();
-    Integer val = (Integer) parseExpr();
+  private Stmt parseWhile () throws FSException {
+    int line = code.getCurLine();
+    boolean lineStart = tokPos == 0;
     getNextToken();
-    while (val != 0) {
-      while ((tok.ttype != TT_ENDWHILE) && (tok.ttype != TT_EOF)) {
-        parseStmt();
-        getNextToken();
-      }
-      // reset to start of while loop....
-      code.setCurLine(startLine);
-      resetTokens();
-      getNextToken(); // a 'while' you would imagine.
-      val = (Integer) parseExpr();
+    Expr cond = parseExpr();
+    Stmt body = lazyBody(lineStart);
+    if (body == null) {
       getNextToken();
+      body = parseBlock(TT_ENDWHILE, TT_ENDWHILE, TT_ENDWHILE, "can't find endwhile");
     }
-    // skip to endwhile
-    int depth = 1;
-    do {
-      getNextToken();
-      if (tok.ttype == TT_WHILE) {
-        depth++;
-      }
-      if (tok.ttype == TT_ENDWHILE) {
-        depth--;
-      }
-      if (tok.ttype == TT_EOF) {
-        parseError("can't find endwhile");
-      }
-    } while (depth > 0);
     getNextToken();
-
+    return Optimizer.whileStmt(cond, body, line);
   }
 
   // Parse Variable definition
-  private void parseVarDef () throws FSException {
-    Token type = tok.ttype;
-    if (tok.ttype != TT_DEFINT && tok.ttype != TT_DEFSTRING && tok.ttype != TT_DEFDOUBLE) {
-      parseError("Expected 'int','string' or 'double'");
-    }
+  private Stmt parseVarDef () throws FSException {
+    int line = code.getCurLine();
+    Token type = ttype;
+    if (ttype != TT_DEFINT && ttype != TT_DEFSTRING && ttype != TT_DEFDOUBLE) {
+      throw parseError("Expected 'int','string' or 'double'");
+    }
+    // Arrays and plain variables declared on one line make a VarDef each, in their order
+    Object initial = type == TT_DEFSTRING ? "" : type == TT_DEFDOUBLE ? (Object) 0.0 : (Object) 0;
+    Object arrayInitial = type == TT_DEFINT ? ScriptArray.Ints.NONE : ScriptArray.Strings.NONE;
+    List<Stmt> defs = new ArrayList<>();
+    List<Symbol> syms = new ArrayList<>();
+    List<Expr> inits = new ArrayList<>();
+    boolean arrays = false;
     do {
       getNextToken();
-      if (tok.ttype != TT_WORD) {
-        parseError("Expected variable name identifier,");
+      if (ttype != TT_WORD && ttype != TT_ARRAY) {
+        throw parseError("Expected variable name identifier,");
+      } else if (type == TT_DEFDOUBLE && ttype == TT_ARRAY) {
+        throw parseError("Arrays of double are not supported");
       }
-      String name = (String) tok.value;
-      switch (type) {
-        case TT_DEFINT: {
-          addVar(name, 0);
-          break;
-        }
-        case TT_DEFSTRING: {
-          addVar(name, "");
-          break;
-        }
+      if ((ttype == TT_ARRAY) != arrays && !syms.isEmpty()) {
+        defs.add(new Stmt.VarDef(arrays ? arrayInitial : initial, syms, inits, line));
+        syms = new ArrayList<>();
+        inits = new ArrayList<>();
       }
+      arrays = ttype == TT_ARRAY;
+      syms.add(symbols.intern((String) tval));
       getNextToken();
-      if (tok.ttype == TT_EQ) {
+      if (arrays) {
+        // such as a[10] or a[]
         getNextToken();
-        setVar(name, parseExpr());
-      } else if (tok.ttype != TT_COMMA && tok.ttype != TT_EOL) {
-        parseError("Expected ','");
+        Expr size = null;
+        if (ttype != TT_RBRACE) {
+          size = parseExpr();
+          if (ttype != TT_RBRACE) {
+            throw parseError("Expected ']'");
+          }
+        }
+        inits.add(new Expr.NewArray(type == TT_DEFINT, size, line));
+        getNextToken();
+        if (ttype != TT_COMMA && ttype != TT_EOL) {
+          throw parseError("Expected ','");
+        }
+      } else if (ttype == TT_EQ) {
+        getNextToken();
+        inits.add(parseExpr());
+      } else if (ttype != TT_COMMA && ttype != TT_EOL) {
+        throw parseError("Expected ','");
+      } else {
+        inits.add(null);
       }
-    } while (tok.ttype != TT_EOL);
+    } while (ttype != TT_EOL);
+    Stmt.VarDef def = new Stmt.VarDef(arrays ? arrayInitial : initial, syms, inits, line);
+    if (defs.isEmpty()) {
+      return def;
+    }
+    defs.add(def);
+    return new Stmt.Block(defs, line);
+  }
+
+  // Add a parsed statement to a block, the declarations of a line that make a block of their own one by one
+  private static void add (List<Stmt> stmts, Stmt stmt) {
+    if (stmt instanceof Stmt.Block && ((Stmt.Block) stmt).stmts.length > 0 && ((Stmt.Block) stmt).stmts[0] instanceof Stmt.VarDef) {
+      Collections.addAll(stmts, ((Stmt.Block) stmt).stmts);
+    } else if (stmt != null) {
+      stmts.add(stmt);
+    }
+  }
+
+  // Format a compile error message
+  private FSException parseError (String s) {
+    return error(ctx, s, code.getCurLine(), tval + ":" + ttype, null);
   }
 
-  // Format an error message and throw FSException
-  private void parseError (String s) throws FSException {
-    error = new String[5];
-    String tstr = tok.toString();
+  /*
+   * Format an error message into an FSException for the caller to throw, locals is null for the
+   * top level code.  The error block is left in ctx, if any, for FScript.getError().
+   */
+  FSException error (ExecutionContext ctx, String s, int lineNum, String tstr, Map<String, Object> locals) {
+    Map<String, Object> globals = ctx != null ? symbols.toMap(ctx.globals) : new HashMap<String, Object>();
+    if (locals == null) {
+      locals = globals;
+      globals = new HashMap<>();
+    }
+    String[] error = new String[6];
+    if (ctx != null) {
+      ctx.error = error;
+    }
     // Set up our error block
     error[0] = s;
-    error[1] = (new Integer(code.getCurLine())).toString();
-    error[2] = code.getCurrentLine();
+    error[1] = Integer.toString(lineNum);
+    error[2] = code.getLine(lineNum);
     error[3] = tstr;
-    error[4] = vars.toString();
-    error[5] = gVars.toString();
+    error[4] = locals.toString();
+    error[5] = globals.toString();
     // Build the display string
-    int lineNum = code.getCurLine();
     StringBuilder err = new StringBuilder(s);
     err.append("\n\t at line: ");
     err.append(lineNum + 1);
@@ -1029,93 +889,49 @@ class Parser {
     err.append(code.getLine(lineNum + 1));
     err.append("\n\t\t  ");
     err.append(code.getLine(lineNum + 2));
-    err.append("\n\t current token: ");
-    err.append(tstr);
-    if (vars.size() > 0) {
+    if (tstr != null) {
+      err.append("\n\t current token: ");
+      err.append(tstr);
+    }
+    if (locals.size() > 0) {
       err.append("\n\t Locals: ");
-      err.append(vars);
+      err.append(locals);
     }
-    if (gVars.size() > 0) {
+    if (globals.size() > 0) {
       err.append("\n\t Globals: ");
-      err.append(gVars);
+      err.append(globals);
     }
-    throw new FSException(err.toString());
-  }
-
-  // Get the error block
-  String[] getError () {
-    return error;
+    FSException ex = new FSException(err.toString());
+    ex.line = lineNum;
+    return ex;
   }
 
   // Misc token access routines
   private void getNextToken () {
-    if ((tok.ttype == TT_EOL) && (code.getCurLine() < maxLine)) {
+    if ((ttype == TT_EOL) && (code.getCurLine() < maxLine)) {
       code.setCurLine(code.getCurLine() + 1);
-      tok.setString(code.getCurrentLine());
-      tok.nextToken();
-    } else if (tok.ttype == TT_EOL) {
-      tok.ttype = TT_EOF; // the only place this gets set
+      setTokens();
+      nextToken();
+    } else if (ttype == TT_EOL) {
+      ttype = TT_EOF; // the only place this gets set
     } else {
-      tok.nextToken();
+      nextToken();
     }
   }
 
-  private void resetTokens () {
-    tok.setString(code.getCurrentLine());
-    tok.nextToken();
+  // Start walking the cached tokens of the current line
+  private void setTokens () {
+    tokens = code.getTokens(code.getCurLine());
+    tokPos = -1;
   }
 
-  // Add new variable and value to "vars" Map
-  private void addVar (String name, Object value) throws FSException {
-    if (vars.containsKey(name)) {
-      parseError("Already defined in this scope: " + name);
+  // Advance to the next token on the current line, stopping at the trailing TT_EOL
+  private void nextToken () {
+    if (tokPos < tokens.types.length - 1) {
+      tokPos++;
     }
-    vars.put(name, value);
-  }
-
-  // Get value of variable in "vars" Map
-  Object getVar (String name) {
-    if (vars.containsKey(name)) {
-      return vars.get(name);
-    } else {
-      return gVars.get(name);
-    }
-  }
-
-  // Set value of vaiable in "vars" Map, or "gVars" Map
-  void setVar (String name, Object val) throws FSException {
-    if (val == null) parseError("set variable " + name + " with null value");
-    if (vars.containsKey(name)) {
-      Object obj = vars.get(name);
-      assert val != null;
-      if (val.getClass() != obj.getClass()) {
-        parseError("Incompatible types");
-      }
-      vars.put(name, val);
-    } else if (gVars.containsKey(name)) {
-      Object obj = gVars.get(name);
-      assert val != null;
-      if (val.getClass() != obj.getClass()) {
-        parseError("Incompatible types");
-      }
-      gVars.put(name, val);
-    }
-  }
-
-  // Returns true if "vars" Map or "gVars" Map contains variable "name"
-  private boolean hasVar (String name) {
-    return vars.containsKey(name) || gVars.containsKey(name);
-  }
-
-  // Gets the 'return' value from the parser
-  Object getReturnValue () {
-    return retVal;
-  }
-
-  // Can be called from external functions to force an exit
-  void exit (Object ret) throws FSException {
-    retVal = ret;
-    throw new ExitException();
+    ttype = tokens.types[tokPos];
+    tval = tokens.values[tokPos];
   }
 
   // Checks line for correctly formed ( ) and "
@@ -1149,15 +965,12 @@ class Parser {
           }
         }
         if (inQuotes) {
-          parseError("Mismatched quotes");
+          throw parseError("Mismatched quotes");
         }
         if (brCount != 0) {
-          parseError("Mismatched brackets");
+          throw parseError("Mismatched brackets");
         }
       }
     }
   }
 }
-
-
-
@@ -0,0 +1,176 @@
+package murlen.util.fscriptME;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <b>Resolver - binds the locals of a compiled function to slots</b>
+ * <p>
+ * Called by Parser once a function body is compiled.  When every local is declared at the
+ * top level of the body, each name is declared once, and no name is used before its
+ * declaration runs, the locals can't change at runtime.  The body is then rewritten so
+ * parameters and locals are read and written by slot (Expr.Local, Stmt.LocalAssign,
+ * Stmt.LocalDef, and the slot of Expr.ArrayRef and Stmt.ArrayAssign) and the function runs with an Object[] instead of a HashMap.  Any other
+ * function is left as it is and looks its locals up by name.</p>
+ */
+final class Resolver {
+  private final Map<String, Integer>  slots = new HashMap<>();
+  private final Set<String>           declared = new HashSet<>();
+  private final List<Class<?>>        types = new ArrayList<>();
+
+  // Thrown when the locals can't be bound to slots
+  private static final class Unresolved extends RuntimeException {
+  }
+
+  private Resolver () {
+  }
+
+  /**
+   * Binds the locals of a function to slots if possible, setting fDef.localNames and
+   * fDef.localTypes and replacing fDef.body
+   *
+   * @param fDef the compiled function
+   */
+  static void resolve (Parser.FuncEntry fDef) {
+    Resolver res = new Resolver();
+    List<String> names = new ArrayList<>(fDef.paramNames);
+    List<Class<?>> types = res.types;
+    for (int ii = 0; ii < names.size(); ii++) {
+      types.add(Parser.FuncEntry.type(fDef.paramTypes.get(ii)));
+    }
+    for (Stmt stmt : fDef.body.stmts) {
+      if (stmt instanceof Stmt.VarDef) {
+        Stmt.VarDef def = (Stmt.VarDef) stmt;
+        for (Symbol sym : def.syms) {
+          names.add(sym.name);
+          types.add(def.initial.getClass());
+        }
+      }
+    }
+    for (String name : names) {
+      if (res.slots.put(name, res.slots.size()) != null) {
+        return;
+      }
+    }
+    res.declared.addAll(fDef.paramNames);
+    List<Stmt> body = new ArrayList<>();
+    try {
+      for (Stmt stmt : fDef.body.stmts) {
+        body.add(stmt instanceof Stmt.VarDef ? res.localDef((Stmt.VarDef) stmt) : res.stmt(stmt));
+      }
+    } catch (Unresolved ex) {
+      return;
+    }
+    fDef.namedBody = fDef.body;
+    fDef.body = new Stmt.Block(body, fDef.body.line);
+    fDef.localNames = names.toArray(new String[0]);
+    fDef.localTypes = types.toArray(new Class<?>[0]);
+  }
+
+  private Stmt localDef (Stmt.VarDef def) {
+    String[] names = new String[def.syms.length];
+    int[] defSlots = new int[names.length];
+    Expr[] inits = new Expr[names.length];
+    for (int ii = 0; ii < names.length; ii++) {
+      names[ii] = def.syms[ii].name;
+      defSlots[ii] = slots.get(names[ii]);
+      declared.add(names[ii]);
+      inits[ii] = def.inits[ii] != null ? expr(def.inits[ii]) : null;
+    }
+    return new Stmt.LocalDef(def.initial, names, defSlots, inits, def.line);
+  }
+
+  // Slot of a local, or -1 for names outside the function
+  private int slot (String name) {
+    Integer slot = slots.get(name);
+    if (slot == null) {
+      return -1;
+    } else if (!declared.contains(name)) {
+      // used before the declaration runs, so it still means a global here
+      throw new Unresolved();
+    }
+    return slot;
+  }
+
+  private Stmt stmt (Stmt stmt) {
+    if (stmt instanceof Stmt.Block) {
+      List<Stmt> stmts = new ArrayList<>();
+      for (Stmt child : ((Stmt.Block) stmt).stmts) {
+        stmts.add(stmt(child));
+      }
+      return new Stmt.Block(stmts, stmt.line);
+    } else if (stmt instanceof Stmt.ExprStmt) {
+      return new Stmt.ExprStmt(expr(((Stmt.ExprStmt) stmt).expr), stmt.line);
+    } else if (stmt instanceof Stmt.Assign) {
+      Stmt.Assign assign = (Stmt.Assign) stmt;
+      int slot = slot(assign.sym.name);
+      if (slot >= 0) {
+        return new Stmt.LocalAssign(assign.sym.name, slot, types.get(slot), expr(assign.expr), stmt.line);
+      }
+      return new Stmt.Assign(assign.sym, expr(assign.expr), stmt.line);
+    } else if (stmt instanceof Stmt.ArrayAssign) {
+      Stmt.ArrayAssign assign = (Stmt.ArrayAssign) stmt;
+      return new Stmt.ArrayAssign(assign.sym, slot(assign.sym.name), expr(assign.index), expr(assign.expr), stmt.line);
+    } else if (stmt instanceof Stmt.If) {
+      Stmt.If ifStmt = (Stmt.If) stmt;
+      List<Expr> conds = new ArrayList<>();
+      List<Stmt> bodies = new ArrayList<>();
+      for (int ii = 0; ii < ifStmt.conds.length; ii++) {
+        conds.add(expr(ifStmt.conds[ii]));
+        bodies.add(stmt(ifStmt.bodies[ii]));
+      }
+      return new Stmt.If(conds, bodies, ifStmt.orElse != null ? stmt(ifStmt.orElse) : null, stmt.line);
+    } else if (stmt instanceof Stmt.While) {
+      Stmt.While loop = (Stmt.While) stmt;
+      return new Stmt.While(expr(loop.cond), stmt(loop.body), stmt.line);
+    } else if (stmt instanceof Stmt.Return) {
+      return new Stmt.Return(expr(((Stmt.Return) stmt).expr), stmt.line);
+    } else if (stmt instanceof Stmt.TailCall) {
+      Stmt.TailCall tail = (Stmt.TailCall) stmt;
+      return new Stmt.TailCall((Expr.Call) expr(tail.call), tail.fDef, stmt.line);
+    } else if (stmt instanceof Stmt.Exit) {
+      return new Stmt.Exit(expr(((Stmt.Exit) stmt).expr), stmt.line);
+    }
+    // Including declarations that aren't at the top level of the body
+    throw new Unresolved();
+  }
+
+  private Expr expr (Expr expr) {
+    if (expr instanceof Expr.Const) {
+      return expr;
+    } else if (expr instanceof Expr.Var) {
+      Expr.Var var = (Expr.Var) expr;
+      int slot = slot(var.sym.name);
+      return slot >= 0 ? new Expr.Local(var.sym.name, slot, types.get(slot), expr.line) : expr;
+    } else if (expr instanceof Expr.ArrayRef) {
+      Expr.ArrayRef ref = (Expr.ArrayRef) expr;
+      return new Expr.ArrayRef(ref.sym, slot(ref.sym.name), expr(ref.index), expr.line);
+    } else if (expr instanceof Expr.NewArray) {
+      Expr.NewArray array = (Expr.NewArray) expr;
+      return new Expr.NewArray(array.ints, array.size != null ? expr(array.size) : null, expr.line);
+    } else if (expr instanceof Expr.Call) {
+      Expr.Call call = (Expr.Call) expr;
+      Expr[] args = Arrays.copyOf(call.args, call.args.length);
+      for (int ii = 0; ii < args.length; ii++) {
+        args[ii] = expr(args[ii]);
+      }
+      return new Expr.Call(call.sym, args, call.host, expr.line);
+    } else if (expr instanceof Expr.Negate) {
+      return new Expr.Negate(expr(((Expr.Negate) expr).expr), expr.line);
+    } else if (expr instanceof Expr.Not) {
+      return new Expr.Not(expr(((Expr.Not) expr).expr), expr.line);
+    } else if (expr instanceof Expr.Binary) {
+      Expr.Binary bin = (Expr.Binary) expr;
+      return new Expr.Binary(bin.op, expr(bin.left), expr(bin.right), expr.line);
+    } else if (expr instanceof Expr.Logical) {
+      Expr.Logical logical = (Expr.Logical) expr;
+      return new Expr.Logical(logical.op, expr(logical.left), expr(logical.right), expr.line);
+    }
+    throw new Unresolved();
+  }
+}
@@ -0,0 +1,167 @@
+package murlen.util.fscriptME;
+
+import java.util.Arrays;
+
+/**
+ * <b>ScriptArray - an array declared by a script</b>
+ * <p>
+ * Scripts declare arrays of ints or strings with a length, such as <code>int a[100]</code>,
+ * or empty, such as <code>string names[]</code>.  Elements start as 0 or "", reading an
+ * element outside the array fails, and assigning the element one past the end appends it.
+ * <code>len(a)</code> gives the length, len() of anything else is still passed to the host's
+ * FScript.callFunction().  Int arrays hold their elements in an int[], so scripts don't box
+ * them and compiled code indexes the array directly.</p>
+ * <p>
+ * Hosts see the arrays a script returns or keeps in its globals as ScriptArrays.</p>
+ */
+public abstract class ScriptArray {
+  int             size;                 // number of elements
+
+  ScriptArray (int size) {
+    this.size = size;
+  }
+
+  /**
+   * Returns the number of elements
+   */
+  public final int length () {
+    return size;
+  }
+
+  /**
+   * Returns an element
+   *
+   * @param index the index of the element
+   * @return the element, an Integer or a String
+   * @throws IndexOutOfBoundsException if index is outside the array
+   */
+  public final Object get (int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+    }
+    return element(index);
+  }
+
+  public String toString () {
+    StringBuilder buf = new StringBuilder("[");
+    for (int ii = 0; ii < size; ii++) {
+      buf.append(ii > 0 ? ", " : "").append(element(ii));
+    }
+    return buf.append(']').toString();
+  }
+
+  abstract Object element (int index);
+
+  // Element read by a script, checking the index
+  abstract Object load (int index, Frame frame, String name, int line) throws FSException;
+
+  // Element assigned by a script, checking the index and the value's type
+  abstract void store (int index, Object val, Frame frame, String name, int line) throws FSException;
+
+  // Index of an element read
+  final int check (int index, Frame frame, String name, int line) throws FSException {
+    if (index < 0 || index >= size) {
+      throw frame.error("Array index out of bounds: " + name + "[" + index + "]", line);
+    }
+    return index;
+  }
+
+  // Index of an element assigned, one past the end appends an element, returns the new capacity needed or 0
+  final int checkStore (int index, int capacity, Frame frame, String name, int line) throws FSException {
+    if (index < 0 || index > size) {
+      throw frame.error("Array index out of bounds: " + name + "[" + index + "]", line);
+    } else if (index == size) {
+      if (this == Ints.NONE || this == Strings.NONE) {
+        // Left by a declaration whose size failed to evaluate
+        throw frame.error("Array not created: " + name, line);
+      }
+      size++;
+      return size > capacity ? Math.max(8, capacity * 2) : 0;
+    }
+    return 0;
+  }
+
+  // Length of a new array, from the value of the size in its declaration
+  static int length (Object size, Frame frame, int line) throws FSException {
+    if (!(size instanceof Integer)) {
+      throw frame.error("Array size needs to be Integer", line);
+    } else if ((Integer) size < 0) {
+      throw frame.error("Negative array size: " + size, line);
+    }
+    return (Integer) size;
+  }
+
+  // Length of an array, for len()
+  static int len (Object array) {
+    return ((ScriptArray) array).size;
+  }
+
+  // Array of ints
+  static final class Ints extends ScriptArray {
+    static final Ints   NONE = new Ints(0);       // default value of an int array declaration, replaced right away
+    private int[]       data;
+
+    Ints (int size) {
+      super(size);
+      data = new int[size];
+    }
+
+    Object element (int index) {
+      return data[index];
+    }
+
+    int loadInt (int index, Frame frame, String name, int line) throws FSException {
+      return data[check(index, frame, name, line)];
+    }
+
+    void storeInt (int index, int val, Frame frame, String name, int line) throws FSException {
+      int grow = checkStore(index, data.length, frame, name, line);
+      if (grow > 0) {
+        data = Arrays.copyOf(data, grow);
+      }
+      data[index] = val;
+    }
+
+    Object load (int index, Frame frame, String name, int line) throws FSException {
+      return data[check(index, frame, name, line)];
+    }
+
+    void store (int index, Object val, Frame frame, String name, int line) throws FSException {
+      if (!(val instanceof Integer)) {
+        throw frame.error("Incompatible types", line);
+      }
+      storeInt(index, (Integer) val, frame, name, line);
+    }
+  }
+
+  // Array of strings
+  static final class Strings extends ScriptArray {
+    static final Strings NONE = new Strings(0);   // default value of a string array declaration, replaced right away
+    private String[]    data;
+
+    Strings (int size) {
+      super(size);
+      data = new String[size];
+      Arrays.fill(data, "");
+    }
+
+    Object element (int index) {
+      return data[index];
+    }
+
+    Object load (int index, Frame frame, String name, int line) throws FSException {
+      return data[check(index, frame, name, line)];
+    }
+
+    void store (int index, Object val, Frame frame, String name, int line) throws FSException {
+      if (!(val instanceof String)) {
+        throw frame.error("Incompatible types", line);
+      }
+      int grow = checkStore(index, data.length, frame, name, line);
+      if (grow > 0) {
+        data = Arrays.copyOf(data, grow);
+      }
+      data[index] = (String) val;
+    }
+  }
+}
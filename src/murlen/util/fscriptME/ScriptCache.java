@@ -0,0 +1,620 @@
+package murlen.util.fscriptME;
+
+import static murlen.util.fscriptME.LexAnn.Token.*;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <b>ScriptCache - compiled scripts saved to disk, see FScript.setCacheDir()</b>
+ * <p>
+ * A script is saved as the statement tree Parser compiled it to, functions already bound to
+ * slots by Resolver and constants already folded by Optimizer, so loading it again skips
+ * lexing and parsing.  The file name holds VERSION and the SHA-256 digest of the source text,
+ * so a changed script or a changed compiler doesn't pick up a stale file, and the file starts
+ * with the digest again, so a file is only used for the exact source it was saved for.
+ * Names and operators are stored by name, once each, and names are interned into the
+ * Symbols of the loading Parser.  The engine code is compiled from the loaded tree as
+ * usual, which costs little next to parsing.</p>
+ * <p>
+ * The cache is only an optimization: a file that is missing, unreadable or from another
+ * version or for other source is ignored, and a failure to save one is not reported.</p>
+ */
+final class ScriptCache {
+  static final int  VERSION = 4;                    // bump whenever the format or the compiled tree changes
+  private static final int  MAGIC = 0x46534321;    // "FSC!"
+
+  // Node tags
+  private static final int  NULL = 0, BLOCK = 1, EXPR_STMT = 2, ASSIGN = 3, LOCAL_ASSIGN = 4, ARRAY_ASSIGN = 5,
+                            VAR_DEF = 6, LOCAL_DEF = 7, LAZY = 8, IF = 9, WHILE = 10, FUNC_DEF = 11, RETURN = 12,
+                            TAIL_CALL = 13, EXIT = 14, CONST = 20, VAR = 21, LOCAL = 22, ARRAY_REF = 23, CALL = 24,
+                            NEGATE = 25, NOT = 26, BINARY = 27, LOGICAL = 28, NEW_ARRAY = 29;
+  // Types of function parameters and locals, by the index written for them
+  private static final List<LexAnn.Token> PARAM_TYPES = Arrays.asList(TT_DEFINT, TT_DEFSTRING, TT_DEFDOUBLE);
+  private static final List<Class<?>> LOCAL_TYPES = Arrays.asList(Integer.class, String.class, ScriptArray.Ints.class, ScriptArray.Strings.class, Double.class);
+
+  private ScriptCache () {
+  }
+
+  /**
+   * Returns the SHA-256 digest of a script's source text, which identifies its cache file
+   *
+   * @param code the script's lines
+   * @return     the digest
+   */
+  static byte[] digest (LineLoader code) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(code.getBytes());
+    } catch (NoSuchAlgorithmException ex) {
+      // Every JVM has SHA-256
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  /**
+   * Returns the file a script is cached in
+   *
+   * @param dir    the cache directory
+   * @param digest the digest of the script from digest()
+   * @return       the file, which may not exist yet
+   */
+  static Path file (Path dir, byte[] digest) {
+    StringBuilder name = new StringBuilder().append(VERSION).append('-');
+    for (byte bb : digest) {
+      name.append(String.format("%02x", bb & 0xFF));
+    }
+    return dir.resolve(name.append(".fsc").toString());
+  }
+
+  /**
+   * Loads a cached script
+   *
+   * @param file   the file from file()
+   * @param digest the digest of the script, which the file must have been saved for
+   * @param parser the parser to bind the script's names and lazy blocks to
+   * @return       the compiled top level code, or null if there is no usable file
+   */
+  static Stmt.Block load (Path file, byte[] digest, Parser parser) {
+    if (!Files.isRegularFile(file)) {
+      return null;
+    }
+    try {
+      ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file));
+      if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+        return null;
+      }
+      byte[] saved = new byte[digest.length];
+      in.get(saved);
+      if (!MessageDigest.isEqual(saved, digest)) {
+        return null;
+      }
+      return (Stmt.Block) new Reader(in, parser).stmt();
+    } catch (IOException | RuntimeException | StackOverflowError ex) {
+      // Including BufferUnderflowException for a truncated file, and nesting too deep to be real
+      return null;
+    }
+  }
+
+  /**
+   * Saves a compiled script, compiling its lazy blocks first so they load compiled too
+   *
+   * @param file    the file from file()
+   * @param digest  the digest of the script from digest()
+   * @param program the compiled top level code
+   */
+  static void store (Path file, byte[] digest, Stmt.Block program) {
+    try {
+      Files.createDirectories(file.getParent());
+      Path tmp = Files.createTempFile(file.getParent(), "fsc", ".tmp");
+      try {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+          out.writeInt(MAGIC);
+          out.writeInt(VERSION);
+          out.write(digest);
+          new Writer(out).stmt(program);
+        }
+        // Readers only ever see a complete file
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(tmp);
+      }
+    } catch (IOException ex) {
+      // Not cached, the script still runs
+    }
+  }
+
+  private static final class Writer {
+    private final DataOutputStream                      out;
+    private int                                         lastLine;     // line of the node written last
+    private final Map<String, Integer>                  strings = new HashMap<>();    // strings written so far, by index
+    private final Map<Parser.FuncEntry, Integer>        funcs = new IdentityHashMap<>();  // functions written so far, by index
+
+    Writer (DataOutputStream out) {
+      this.out = out;
+    }
+
+    // Zigzag varint, so small numbers of either sign take a byte
+    private void num (int val) throws IOException {
+      int bits = (val << 1) ^ (val >> 31);
+      while ((bits & ~0x7F) != 0) {
+        out.writeByte((bits & 0x7F) | 0x80);
+        bits >>>= 7;
+      }
+      out.writeByte(bits);
+    }
+
+    // Line of a node, as the difference to the line before, which is mostly 0 or 1
+    private void line (int line) throws IOException {
+      num(line - lastLine);
+      lastLine = line;
+    }
+
+    // A string is written in full the first time, after that as its index
+    private void string (String str) throws IOException {
+      if (str == null) {
+        num(-1);
+        return;
+      }
+      Integer idx = strings.get(str);
+      if (idx != null) {
+        num(idx);
+      } else {
+        num(strings.size());
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        num(bytes.length);
+        out.write(bytes);
+        strings.put(str, strings.size());
+      }
+    }
+
+    private void value (Object val) throws IOException {
+      if (val instanceof Integer) {
+        out.writeByte('I');
+        num((Integer) val);
+      } else if (val instanceof Double) {
+        out.writeByte('D');
+        out.writeDouble((Double) val);
+      } else if (val instanceof ScriptArray) {
+        // The default value of an array declaration
+        out.writeByte(val == ScriptArray.Ints.NONE ? 'A' : 'B');
+      } else {
+        out.writeByte('S');
+        string((String) val);
+      }
+    }
+
+    private void stmts (Stmt[] stmts) throws IOException {
+      num(stmts.length);
+      for (Stmt stmt : stmts) {
+        stmt(stmt);
+      }
+    }
+
+    private void exprs (Expr[] exprs) throws IOException {
+      num(exprs.length);
+      for (Expr expr : exprs) {
+        expr(expr);
+      }
+    }
+
+    // A function is written in full where it is first referenced, after that as its index
+    private void func (Parser.FuncEntry fDef) throws IOException {
+      Integer idx = funcs.get(fDef);
+      if (idx != null) {
+        num(idx);
+        return;
+      }
+      num(funcs.size());
+      funcs.put(fDef, funcs.size());
+      string(fDef.name);
+      num(fDef.startLine);
+      num(fDef.endLine);
+      num(fDef.paramNames.size());
+      for (int ii = 0; ii < fDef.paramNames.size(); ii++) {
+        string(fDef.paramNames.get(ii));
+        num(PARAM_TYPES.indexOf(fDef.paramTypes.get(ii)));
+      }
+      if (fDef.localNames != null) {
+        num(fDef.localNames.length);
+        for (int ii = 0; ii < fDef.localNames.length; ii++) {
+          string(fDef.localNames[ii]);
+          num(LOCAL_TYPES.indexOf(fDef.localTypes[ii]));
+        }
+      } else {
+        num(-1);
+      }
+      stmt(fDef.body);
+      stmt(fDef.namedBody);
+    }
+
+    void stmt (Stmt stmt) throws IOException {
+      if (stmt == null) {
+        out.writeByte(NULL);
+        return;
+      }
+      if (stmt instanceof Stmt.Lazy) {
+        Stmt.Lazy lazy = (Stmt.Lazy) stmt;
+        Stmt.Block body;
+        try {
+          body = lazy.body();
+        } catch (FSException ex) {
+          // Left to fail when it runs, as it would have
+          body = null;
+        }
+        out.writeByte(LAZY);
+        line(stmt.line);
+        num(lazy.to);
+        stmt(body);
+        return;
+      }
+      out.writeByte(tag(stmt));
+      line(stmt.line);
+      if (stmt instanceof Stmt.Block) {
+        stmts(((Stmt.Block) stmt).stmts);
+      } else if (stmt instanceof Stmt.ExprStmt) {
+        expr(((Stmt.ExprStmt) stmt).expr);
+      } else if (stmt instanceof Stmt.Assign) {
+        Stmt.Assign assign = (Stmt.Assign) stmt;
+        string(assign.sym.name);
+        expr(assign.expr);
+      } else if (stmt instanceof Stmt.LocalAssign) {
+        Stmt.LocalAssign assign = (Stmt.LocalAssign) stmt;
+        string(assign.name);
+        num(assign.slot);
+        num(LOCAL_TYPES.indexOf(assign.type));
+        expr(assign.expr);
+      } else if (stmt instanceof Stmt.ArrayAssign) {
+        Stmt.ArrayAssign assign = (Stmt.ArrayAssign) stmt;
+        string(assign.sym.name);
+        num(assign.slot);
+        expr(assign.index);
+        expr(assign.expr);
+      } else if (stmt instanceof Stmt.VarDef) {
+        Stmt.VarDef def = (Stmt.VarDef) stmt;
+        value(def.initial);
+        num(def.syms.length);
+        for (int ii = 0; ii < def.syms.length; ii++) {
+          string(def.syms[ii].name);
+          expr(def.inits[ii]);
+        }
+      } else if (stmt instanceof Stmt.LocalDef) {
+        Stmt.LocalDef def = (Stmt.LocalDef) stmt;
+        value(def.initial);
+        num(def.names.length);
+        for (int ii = 0; ii < def.names.length; ii++) {
+          string(def.names[ii]);
+          num(def.slots[ii]);
+          expr(def.inits[ii]);
+        }
+      } else if (stmt instanceof Stmt.If) {
+        Stmt.If ifStmt = (Stmt.If) stmt;
+        exprs(ifStmt.conds);
+        stmts(ifStmt.bodies);
+        stmt(ifStmt.orElse);
+      } else if (stmt instanceof Stmt.While) {
+        expr(((Stmt.While) stmt).cond);
+        stmt(((Stmt.While) stmt).body);
+      } else if (stmt instanceof Stmt.FuncDef) {
+        string(((Stmt.FuncDef) stmt).sym.name);
+        func(((Stmt.FuncDef) stmt).fDef);
+      } else if (stmt instanceof Stmt.Return) {
+        expr(((Stmt.Return) stmt).expr);
+      } else if (stmt instanceof Stmt.TailCall) {
+        expr(((Stmt.TailCall) stmt).call);
+        func(((Stmt.TailCall) stmt).fDef);
+      } else {
+        expr(((Stmt.Exit) stmt).expr);
+      }
+    }
+
+    private static int tag (Stmt stmt) {
+      if (stmt instanceof Stmt.Block)       return BLOCK;
+      if (stmt instanceof Stmt.ExprStmt)    return EXPR_STMT;
+      if (stmt instanceof Stmt.Assign)      return ASSIGN;
+      if (stmt instanceof Stmt.LocalAssign) return LOCAL_ASSIGN;
+      if (stmt instanceof Stmt.ArrayAssign) return ARRAY_ASSIGN;
+      if (stmt instanceof Stmt.VarDef)      return VAR_DEF;
+      if (stmt instanceof Stmt.LocalDef)    return LOCAL_DEF;
+      if (stmt instanceof Stmt.If)          return IF;
+      if (stmt instanceof Stmt.While)       return WHILE;
+      if (stmt instanceof Stmt.FuncDef)     return FUNC_DEF;
+      if (stmt instanceof Stmt.Return)      return RETURN;
+      if (stmt instanceof Stmt.TailCall)    return TAIL_CALL;
+      if (stmt instanceof Stmt.Exit)        return EXIT;
+      throw new IllegalStateException("can't cache " + stmt.getClass().getSimpleName());
+    }
+
+    void expr (Expr expr) throws IOException {
+      if (expr == null) {
+        out.writeByte(NULL);
+        return;
+      }
+      if (expr instanceof Expr.Const) {
+        out.writeByte(CONST);
+        line(expr.line);
+        value(((Expr.Const) expr).value);
+      } else if (expr instanceof Expr.Var) {
+        out.writeByte(VAR);
+        line(expr.line);
+        string(((Expr.Var) expr).sym.name);
+      } else if (expr instanceof Expr.Local) {
+        Expr.Local local = (Expr.Local) expr;
+        out.writeByte(LOCAL);
+        line(expr.line);
+        string(local.name);
+        num(local.slot);
+        num(LOCAL_TYPES.indexOf(local.type));
+      } else if (expr instanceof Expr.ArrayRef) {
+        out.writeByte(ARRAY_REF);
+        line(expr.line);
+        string(((Expr.ArrayRef) expr).sym.name);
+        num(((Expr.ArrayRef) expr).slot);
+        expr(((Expr.ArrayRef) expr).index);
+      } else if (expr instanceof Expr.NewArray) {
+        out.writeByte(NEW_ARRAY);
+        line(expr.line);
+        out.writeBoolean(((Expr.NewArray) expr).ints);
+        expr(((Expr.NewArray) expr).size);
+      } else if (expr instanceof Expr.Call) {
+        out.writeByte(CALL);
+        line(expr.line);
+        string(((Expr.Call) expr).sym.name);
+        exprs(((Expr.Call) expr).args);
+      } else if (expr instanceof Expr.Negate) {
+        out.writeByte(NEGATE);
+        line(expr.line);
+        expr(((Expr.Negate) expr).expr);
+      } else if (expr instanceof Expr.Not) {
+        out.writeByte(NOT);
+        line(expr.line);
+        expr(((Expr.Not) expr).expr);
+      } else if (expr instanceof Expr.Binary) {
+        Expr.Binary bin = (Expr.Binary) expr;
+        out.writeByte(BINARY);
+        line(expr.line);
+        string(bin.op.name());
+        expr(bin.left);
+        expr(bin.right);
+      } else if (expr instanceof Expr.Logical) {
+        Expr.Logical logical = (Expr.Logical) expr;
+        out.writeByte(LOGICAL);
+        line(expr.line);
+        string(logical.op.name());
+        expr(logical.left);
+        expr(logical.right);
+      } else {
+        throw new IllegalStateException("can't cache " + expr.getClass().getSimpleName());
+      }
+    }
+  }
+
+  private static final class Reader {
+    private final ByteBuffer              in;
+    private final Parser                  parser;
+    private final List<String>            strings = new ArrayList<>();
+    private final List<Parser.FuncEntry>  funcs = new ArrayList<>();
+    private int                           lastLine;
+
+    Reader (ByteBuffer in, Parser parser) {
+      this.in = in;
+      this.parser = parser;
+    }
+
+    private int num () throws IOException {
+      int bits = 0;
+      for (int shift = 0; ; shift += 7) {
+        int bb = in.get() & 0xFF;
+        bits |= (bb & 0x7F) << shift;
+        if ((bb & 0x80) == 0) {
+          return (bits >>> 1) ^ -(bits & 1);
+        }
+      }
+    }
+
+    // Number of items that follow, each of which takes at least a byte of what is left
+    private int count () throws IOException {
+      int count = num();
+      if (count < 0 || count > in.remaining()) {
+        throw new IOException("bad count " + count);
+      }
+      return count;
+    }
+
+    private int line () throws IOException {
+      return lastLine += num();
+    }
+
+    private boolean bool () {
+      return in.get() != 0;
+    }
+
+    private String string () throws IOException {
+      int idx = num();
+      if (idx < 0) {
+        return null;
+      } else if (idx == strings.size()) {
+        // Interned, so names share the String the Symbol holds
+        int len = count();
+        String str = new String(in.array(), in.position(), len, StandardCharsets.UTF_8);
+        in.position(in.position() + len);
+        Symbol sym = parser.symbols.lookup(str);
+        strings.add(sym != null ? sym.name : str);
+      }
+      return strings.get(idx);
+    }
+
+    private Symbol symbol () throws IOException {
+      return parser.symbols.intern(string());
+    }
+
+    private Object value () throws IOException {
+      switch (in.get()) {
+        case 'I': return num();
+        case 'D': return in.getDouble();
+        case 'A': return ScriptArray.Ints.NONE;
+        case 'B': return ScriptArray.Strings.NONE;
+        default:  return string();
+      }
+    }
+
+    private List<Stmt> stmts () throws IOException {
+      int count = count();
+      List<Stmt> stmts = new ArrayList<>(count);
+      for (int ii = 0; ii < count; ii++) {
+        stmts.add(stmt());
+      }
+      return stmts;
+    }
+
+    private List<Expr> exprs () throws IOException {
+      int count = count();
+      List<Expr> exprs = new ArrayList<>(count);
+      for (int ii = 0; ii < count; ii++) {
+        exprs.add(expr());
+      }
+      return exprs;
+    }
+
+    private Parser.FuncEntry func () throws IOException {
+      int idx = num();
+      if (idx < funcs.size()) {
+        return funcs.get(idx);
+      }
+      Parser.FuncEntry fDef = new Parser.FuncEntry();
+      funcs.add(fDef);
+      fDef.name = symbol().name;
+      fDef.startLine = num();
+      fDef.endLine = num();
+      int params = count();
+      for (int ii = 0; ii < params; ii++) {
+        fDef.paramNames.add(symbol().name);
+        fDef.paramTypes.add(PARAM_TYPES.get(num()));
+      }
+      int locals = num();
+      if (locals >= 0) {
+        if (locals > in.remaining()) {
+          throw new IOException("bad count " + locals);
+        }
+        fDef.localNames = new String[locals];
+        fDef.localTypes = new Class<?>[locals];
+        for (int ii = 0; ii < locals; ii++) {
+          fDef.localNames[ii] = string();
+          fDef.localTypes[ii] = LOCAL_TYPES.get(num());
+        }
+      }
+      fDef.body = (Stmt.Block) stmt();
+      fDef.namedBody = (Stmt.Block) stmt();
+      return fDef;
+    }
+
+    Stmt stmt () throws IOException {
+      int tag = in.get();
+      if (tag == NULL) {
+        return null;
+      }
+      int line = line();
+      switch (tag) {
+        case BLOCK:
+          return new Stmt.Block(stmts(), line);
+        case EXPR_STMT:
+          return new Stmt.ExprStmt(expr(), line);
+        case ASSIGN:
+          return new Stmt.Assign(symbol(), expr(), line);
+        case LOCAL_ASSIGN:
+          return new Stmt.LocalAssign(string(), num(), LOCAL_TYPES.get(num()), expr(), line);
+        case ARRAY_ASSIGN:
+          return new Stmt.ArrayAssign(symbol(), num(), expr(), expr(), line);
+        case VAR_DEF: {
+          Object initial = value();
+          int count = count();
+          List<Symbol> syms = new ArrayList<>(count);
+          List<Expr> inits = new ArrayList<>(count);
+          for (int ii = 0; ii < count; ii++) {
+            syms.add(symbol());
+            inits.add(expr());
+          }
+          return new Stmt.VarDef(initial, syms, inits, line);
+        }
+        case LOCAL_DEF: {
+          Object initial = value();
+          int count = count();
+          String[] names = new String[count];
+          int[] slots = new int[count];
+          Expr[] inits = new Expr[count];
+          for (int ii = 0; ii < count; ii++) {
+            names[ii] = string();
+            slots[ii] = num();
+            inits[ii] = expr();
+          }
+          return new Stmt.LocalDef(initial, names, slots, inits, line);
+        }
+        case LAZY:
+          return new Stmt.Lazy(parser, line, num(), (Stmt.Block) stmt());
+        case IF:
+          return new Stmt.If(exprs(), stmts(), stmt(), line);
+        case WHILE:
+          return new Stmt.While(expr(), stmt(), line);
+        case FUNC_DEF:
+          return new Stmt.FuncDef(symbol(), func(), line);
+        case RETURN:
+          return new Stmt.Return(expr(), line);
+        case TAIL_CALL:
+          return new Stmt.TailCall((Expr.Call) expr(), func(), line);
+        case EXIT:
+          return new Stmt.Exit(expr(), line);
+        default:
+          throw new IOException("bad statement tag " + tag);
+      }
+    }
+
+    Expr expr () throws IOException {
+      int tag = in.get();
+      if (tag == NULL) {
+        return null;
+      }
+      int line = line();
+      switch (tag) {
+        case CONST:
+          return new Expr.Const(value(), line);
+        case VAR:
+          return new Expr.Var(symbol(), line);
+        case LOCAL:
+          return new Expr.Local(string(), num(), LOCAL_TYPES.get(num()), line);
+        case ARRAY_REF:
+          return new Expr.ArrayRef(symbol(), num(), expr(), line);
+        case NEW_ARRAY:
+          return new Expr.NewArray(bool(), expr(), line);
+        case CALL: {
+          Symbol sym = symbol();
+          Expr[] args = exprs().toArray(new Expr[0]);
+          // Linked to the functions registered now, as compiling the call would
+          return new Expr.Call(sym, args, parser.functions.get(sym.name, args.length), line);
+        }
+        case NEGATE:
+          return new Expr.Negate(expr(), line);
+        case NOT:
+          return new Expr.Not(expr(), line);
+        case BINARY:
+          return new Expr.Binary(LexAnn.Token.valueOf(string()), expr(), expr(), line);
+        case LOGICAL:
+          return new Expr.Logical(LexAnn.Token.valueOf(string()), expr(), expr(), line);
+        default:
+          throw new IOException("bad expression tag " + tag);
+      }
+    }
+  }
+}
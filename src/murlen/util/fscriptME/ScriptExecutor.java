@@ -0,0 +1,242 @@
+package murlen.util.fscriptME;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <b>ScriptExecutor - runs compiled scripts concurrently</b>
+ * <p>
+ * Each submitted run gets an ExecutionContext of its own and completes a CompletableFuture
+ * with the script's return value, or with the FSException it failed with.  At most
+ * maxInFlight runs execute at once, and at most maxQueued more wait for their turn.
+ * Submitting beyond that doesn't block, the run's future fails with a
+ * RejectedExecutionException so callers can shed load or retry later.</p>
+ * <p>
+ * A run given a timeout that is still executing when it expires has its future fail with
+ * a TimeoutException, and its context is cancelled, so the script stops the next time it
+ * loops or calls a function.  Cancelling a future cancels the script the same way.</p>
+ * <pre>
+ *   ScriptExecutor executor = ScriptExecutor.newVirtualThreadExecutor(1000, 10000);
+ *   CompiledScript script = CompiledScript.compile(source);
+ *   executor.submit(script, new BasicIO(), inputs, 50, TimeUnit.MILLISECONDS)
+ *     .thenAccept(result -&gt; ...);
+ * </pre>
+ */
+public final class ScriptExecutor {
+  private final ExecutorService   executor;                 // runs the scripts
+  private final boolean           owned;                    // true if shutdown() shuts executor down
+  private final int               maxInFlight;              // runs executing at once
+  private final int               maxQueued;                // runs waiting to execute
+  private final Queue<Run>        queue = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger     queued = new AtomicInteger();   // runs in queue, or being added to it
+  private final AtomicInteger     running = new AtomicInteger();  // runs handed to executor
+  private final ScheduledThreadPoolExecutor timer;          // expires the timeouts
+  private volatile boolean        shutdown;                 // set by shutdown()
+
+  // A submitted run of a script
+  private final class Run implements Runnable {
+    final ExecutionContext          ctx;
+    final long                      timeout;      // in nanoseconds, or 0 for none
+    final CompletableFuture<Object> result = new CompletableFuture<>();
+
+    Run (ExecutionContext ctx, long timeout) {
+      this.ctx = ctx;
+      this.timeout = timeout;
+      // A future failed by a timeout or cancelled by the caller stops the script
+      result.whenComplete((val, ex) -> {
+        if (ex != null) {
+          ctx.cancel();
+        }
+      });
+    }
+
+    public void run () {
+      ScheduledFuture<?> expiry = null;
+      try {
+        if (!result.isDone()) {
+          if (timeout > 0) {
+            expiry = timer.schedule(() -> result.completeExceptionally(new TimeoutException("Script timed out")), timeout, TimeUnit.NANOSECONDS);
+          }
+          result.complete(ctx.run());
+        }
+      } catch (Throwable ex) {
+        result.completeExceptionally(ex);
+      } finally {
+        if (expiry != null) {
+          expiry.cancel(false);
+        }
+        running.decrementAndGet();
+        dispatch();
+      }
+    }
+  }
+
+  /**
+   * Runs scripts on an executor supplied by the caller, which shutdown() leaves running
+   *
+   * @param executor    runs the scripts, needs at least maxInFlight threads to keep that many running
+   * @param maxInFlight the most runs executing at once
+   * @param maxQueued   the most runs waiting to execute
+   */
+  public ScriptExecutor (ExecutorService executor, int maxInFlight, int maxQueued) {
+    this(executor, false, maxInFlight, maxQueued);
+  }
+
+  private ScriptExecutor (ExecutorService executor, boolean owned, int maxInFlight, int maxQueued) {
+    if (maxInFlight < 1 || maxQueued < 0) {
+      throw new IllegalArgumentException("maxInFlight must be at least 1 and maxQueued at least 0");
+    }
+    this.executor = executor;
+    this.owned = owned;
+    this.maxInFlight = maxInFlight;
+    this.maxQueued = maxQueued;
+    timer = new ScheduledThreadPoolExecutor(1, daemon("FScript timer"));
+    timer.setRemoveOnCancelPolicy(true);
+  }
+
+  /**
+   * Runs scripts on a pool of platform threads, one per run executing at once
+   *
+   * @param maxInFlight the most runs executing at once, the number of threads
+   * @param maxQueued   the most runs waiting to execute
+   * @return the new executor
+   */
+  public static ScriptExecutor newPlatformExecutor (int maxInFlight, int maxQueued) {
+    return new ScriptExecutor(Executors.newFixedThreadPool(maxInFlight, daemon("FScript")), true, maxInFlight, maxQueued);
+  }
+
+  /**
+   * Runs every script on a virtual thread of its own where the JVM supports them (Java 21+),
+   * otherwise on a pool of platform threads as newPlatformExecutor() does
+   *
+   * @param maxInFlight the most runs executing at once
+   * @param maxQueued   the most runs waiting to execute
+   * @return the new executor
+   */
+  public static ScriptExecutor newVirtualThreadExecutor (int maxInFlight, int maxQueued) {
+    try {
+      // Looked up reflectively, the library is built for Java 8
+      ExecutorService virtual = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      return new ScriptExecutor(virtual, true, maxInFlight, maxQueued);
+    } catch (ReflectiveOperationException ex) {
+      return newPlatformExecutor(maxInFlight, maxQueued);
+    }
+  }
+
+  private static ThreadFactory daemon (String name) {
+    AtomicInteger count = new AtomicInteger();
+    return task -> {
+      Thread thread = new Thread(task, name + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  /**
+   * Runs a script with no time limit
+   *
+   * @param script the script to run
+   * @param host   supplies the external variables and functions, may be shared by concurrent runs
+   * @return the script's return value, once it has run
+   */
+  public CompletableFuture<Object> submit (CompiledScript script, FScript host) {
+    return submit(script, host, null, 0, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Runs a script
+   *
+   * @param script  the script to run
+   * @param host    supplies the external variables and functions, may be shared by concurrent runs
+   * @param inputs  values the script reads as undeclared variables, see ExecutionContext.setInputs(), or null
+   * @param timeout how long the script may run once it starts, 0 for no limit
+   * @param unit    the unit of timeout
+   * @return the script's return value, once it has run
+   */
+  public CompletableFuture<Object> submit (CompiledScript script, FScript host, Map<String, Object> inputs,
+                                           long timeout, TimeUnit unit) {
+    ExecutionContext ctx = script.newContext(host);
+    ctx.setInputs(inputs);
+    Run run = new Run(ctx, unit.toNanos(timeout));
+    if (shutdown) {
+      run.result.completeExceptionally(new RejectedExecutionException("ScriptExecutor shut down"));
+      return run.result;
+    }
+    // Runs that can start right away pass through the queue too
+    if (queued.incrementAndGet() > maxQueued + maxInFlight - running.get()) {
+      queued.decrementAndGet();
+      run.result.completeExceptionally(new RejectedExecutionException("Too many scripts waiting to run"));
+      return run.result;
+    }
+    queue.add(run);
+    dispatch();
+    return run.result;
+  }
+
+  // Hands queued runs to the executor while fewer than maxInFlight are running
+  private void dispatch () {
+    while (!queue.isEmpty()) {
+      int count = running.get();
+      if (count >= maxInFlight) {
+        return;
+      }
+      if (running.compareAndSet(count, count + 1)) {
+        Run run = queue.poll();
+        if (run == null) {
+          running.decrementAndGet();
+          continue;
+        }
+        queued.decrementAndGet();
+        try {
+          executor.execute(run);
+        } catch (RejectedExecutionException ex) {
+          running.decrementAndGet();
+          run.result.completeExceptionally(ex);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the number of runs executing
+   */
+  public int getRunning () {
+    return running.get();
+  }
+
+  /**
+   * Returns the number of runs waiting to execute
+   */
+  public int getQueued () {
+    return queued.get();
+  }
+
+  /**
+   * Stops accepting runs and cancels those still waiting.  Runs already executing finish,
+   * and the executor is shut down once they have if this ScriptExecutor created it.
+   */
+  public void shutdown () {
+    shutdown = true;
+    Run run;
+    while ((run = queue.poll()) != null) {
+      queued.decrementAndGet();
+      run.result.completeExceptionally(new CancellationException("ScriptExecutor shut down"));
+    }
+    if (owned) {
+      executor.shutdown();
+    }
+    timer.shutdown();
+  }
+}
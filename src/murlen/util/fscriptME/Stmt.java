@@ -0,0 +1,359 @@
+package murlen.util.fscriptME;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <b>Stmt - a compiled statement node - built once by Parser</b>
+ * <p>
+ * Parser turns the loaded lines into a tree of statements and expressions
+ * a single time.  Running the script then executes the tree, so the bodies of
+ * loops and functions are never tokenized or parsed again.</p>
+ */
+abstract class Stmt {
+  final int line;
+
+  Stmt (int line) {
+    this.line = line;
+  }
+
+  /**
+   * Execute the statement
+   *
+   * @param frame the scope to execute the statement in
+   * @return true if a 'return' or 'exit' ran, so the enclosing code must stop too
+   */
+  abstract boolean exec (Frame frame) throws FSException;
+
+  // Evaluate an if or while condition
+  static boolean test (Expr cond, Frame frame, String msg, int line) throws FSException {
+    if (cond.isInt()) {
+      return cond.evalInt(frame) != 0;
+    }
+    Object val = cond.eval(frame);
+    if (!(val instanceof Integer)) {
+      throw frame.error(msg, line);
+    }
+    return (Integer) val != 0;
+  }
+
+  // Assign to a local slot, without boxing when the local is int or double and the value is known to fit
+  static void store (Frame frame, int slot, Class<?> type, Expr expr, int line) throws FSException {
+    if (type == Integer.class && expr.isInt()) {
+      frame.ints[slot] = expr.evalInt(frame);
+    } else if (type == Double.class && (expr.isDouble() || expr.isInt())) {
+      frame.doubles[slot] = expr.evalDouble(frame);
+    } else {
+      frame.setLocal(slot, expr.eval(frame), line);
+    }
+  }
+
+  // Sequence of statements
+  static final class Block extends Stmt {
+    final Stmt[]  stmts;
+
+    Block (List<Stmt> stmts, int line) {
+      super(line);
+      this.stmts = stmts.toArray(new Stmt[0]);
+    }
+
+    boolean exec (Frame frame) throws FSException {
+      for (Stmt stmt : stmts) {
+        if (stmt.exec(frame)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  // Expression evaluated for its side effects (function calls)
+  static final class ExprStmt extends Stmt {
+    final Expr  expr;
+
+    ExprStmt (Expr expr, int line) {
+      super(line);
+      this.expr = expr;
+    }
+
+    boolean exec (Frame frame) throws FSException {
+      expr.eval(frame);
+      return false;
+    }
+  }
+
+  // Assignment to a script variable, or to a host variable
+  static final class Assign extends Stmt {
+    final Symbol  sym;
+    final Expr    expr;
+
+    Assign (Symbol sym, Expr expr, int line) {
+      super(line);
+      this.sym = sym;
+      this.expr = expr;
+    }
+
+    boolean exec (Frame frame) throws FSException {
+      frame.setVar(sym, expr.eval(frame), line);
+      return false;
+    }
+  }
+
+  // Assignment to a function local bound to a slot by Resolver
+  static final class LocalAssign extends Stmt {
+    final String    name;
+    final int       slot;
+    final Class<?>  type;                 // class of the local's values
+    final Expr      expr;
+
+    LocalAssign (String name, int slot, Class<?> type, Expr expr, int line) {
+      super(line);
+      this.name = name;
+      this.slot = slot;
+      this.type = type;
+      this.expr = expr;
+    }
+
+    boolean exec (Frame frame) throws FSException {
+      store(frame, slot, type, expr, line);
+      return false;
+    }
+  }
+
+  // Assignment to an element of a script array, such as name[index] = value, or else of a host variable
+  static final class ArrayAssign extends Stmt {
+    final Symbol  sym;
+    final int     slot;                   // slot of a function local bound by Resolver, or -1
+    final Expr    index;
+    final Expr    expr;
+
+    ArrayAssign (Symbol sym, int slot, Expr index, Expr expr, int line) {
+      super(line);
+      this.sym = sym;
+      this.slot = slot;
+      this.index = index;
+      this.expr = expr;
+    }
+
+    boolean exec (Frame frame) throws FSException {
+      Object idx = index.eval(frame);
+      Object val = expr.eval(frame);
+      frame.setElement(slot >= 0 ? frame.slots[slot] : frame.lookup(sym), sym, idx, val, line);
+      return false;
+    }
+  }
+
+  // Declaration of one or more variables of the same type, with optional initializers
+  static final class VarDef extends Stmt {
+    final Object    initial;              // default value, which also gives the type
+    final Symbol[]  syms;
+    final Expr[]    inits;                // null entries for names without an initializer
+
+    VarDef (Object initial, List<Symbol> syms, List<Expr> inits, int line) {
+      super(line);
+      this.initial = initial;
+      this.syms = syms.toArray(new Symbol[0]);
+      this.inits = inits.toArray(new Expr[0]);
+    }
+
+    boolean exec (Frame frame) throws FSException {
+      for (int ii = 0; ii < syms.length; ii++) {
+        frame.addVar(syms[ii], initial, line);
+        if (inits[ii] != null) {
+          frame.setVar(syms[ii], inits[ii].eval(frame), line);
+        }
+      }
+      return false;
+    }
+  }
+
+  // Declaration of function locals bound to slots by Resolver
+  static final class LocalDef extends Stmt {
+    final Object    initial;              // default value, which also gives the type
+    final String[]  names;
+    final int[]     slots;
+    final Expr[]    inits;                // null entries for names without an initializer
+
+    LocalDef (Object initial, String[] names, int[] slots, Expr[] inits, int line) {
+      super(line);
+      this.initial = initial;
+      this.names = names;
+      this.slots = slots;
+      this.inits = inits;
+    }
+
+    boolean exec (Frame frame) throws FSException {
+      Class<?> type = initial.getClass();
+      for (int ii = 0; ii < slots.length; ii++) {
+        frame.slots[slots[ii]] = initial;
+        frame.ints[slots[ii]] = 0;
+        frame.doubles[slots[ii]] = 0;
+        if (inits[ii] != null) {
+          store(frame, slots[ii], type, inits[ii], line);
+        }
+      }
+      return false;
+    }
+  }
+
+  // Block of top level lines compiled the first time it runs, see LineLoader.blockEnd()
+  static final class Lazy extends Stmt {
+    private final Parser  parser;
+    final int             to;
+    private volatile Block body;
+
+    Lazy (Parser parser, int from, int to) {
+      this(parser, from, to, null);
+    }
+
+    // With the body already compiled, or null to compile it when it first runs
+    Lazy (Parser parser, int from, int to, Block body) {
+      super(from);
+      this.parser = parser;
+      this.to = to;
+      this.body = body;
+    }
+
+    Block body () throws FSException {
+      return body(null);
+    }
+
+    // Compiles the body the first time it is needed, by any of the contexts sharing the code
+    private Block body (ExecutionContext ctx) throws FSException {
+      Block block = body;
+      if (block == null) {
+        synchronized (parser) {
+          if ((block = body) == null) {
+            body = block = parser.compileBody(ctx, line, to);
+          }
+        }
+      }
+      return block;
+    }
+
+    boolean exec (Frame frame) throws FSException {
+      Block block = body(frame.ctx);
+      // The body may use symbols the code compiled before it didn't
+      frame.ctx.reserve();
+      return block.exec(frame);
+    }
+  }
+
+  // if / elseif / else chain
+  static final class If extends Stmt {
+    final Expr[]  conds;
+    final Stmt[]  bodies;
+    final Stmt    orElse;                 // null if there is no else clause
+
+    If (List<Expr> conds, List<Stmt> bodies, Stmt orElse, int line) {
+      super(line);
+      this.conds = conds.toArray(new Expr[0]);
+      this.bodies = bodies.toArray(new Stmt[0]);
+      this.orElse = orElse;
+    }
+
+    boolean exec (Frame frame) throws FSException {
+      for (int ii = 0; ii < conds.length; ii++) {
+        if (test(conds[ii], frame, "If condition needs to be Integer", conds[ii].line)) {
+          return bodies[ii].exec(frame);
+        }
+      }
+      return orElse != null && orElse.exec(frame);
+    }
+  }
+
+  // while loop
+  static final class While extends Stmt {
+    final Expr  cond;
+    final Stmt  body;
+
+    While (Expr cond, Stmt body, int line) {
+      super(line);
+      this.cond = cond;
+      this.body = body;
+    }
+
+    boolean exec (Frame frame) throws FSException {
+      while (test(cond, frame, "While condition needs to be Integer", line)) {
+        if (body.exec(frame)) {
+          return true;
+        }
+        frame.ctx.poll(frame, line);
+      }
+      return false;
+    }
+  }
+
+  // Function definition - the function becomes callable once this executes
+  static final class FuncDef extends Stmt {
+    final Symbol            sym;
+    final Parser.FuncEntry  fDef;
+
+    FuncDef (Symbol sym, Parser.FuncEntry fDef, int line) {
+      super(line);
+      this.sym = sym;
+      this.fDef = fDef;
+    }
+
+    boolean exec (Frame frame) {
+      frame.ctx.funcs[sym.id] = fDef;
+      return false;
+    }
+  }
+
+  // return statement
+  static final class Return extends Stmt {
+    final Expr  expr;
+
+    Return (Expr expr, int line) {
+      super(line);
+      this.expr = expr;
+    }
+
+    boolean exec (Frame frame) throws FSException {
+      frame.retVal = expr.eval(frame);
+      return true;
+    }
+  }
+
+  // 'return f(...)' inside function f, run by rerunning f in the same frame
+  static final class TailCall extends Stmt {
+    final Expr.Call         call;
+    final Parser.FuncEntry  fDef;           // the function containing the statement
+
+    TailCall (Expr.Call call, Parser.FuncEntry fDef, int line) {
+      super(line);
+      this.call = call;
+      this.fDef = fDef;
+    }
+
+    boolean exec (Frame frame) throws FSException {
+      if (frame.ctx.funcs[call.sym.id] != fDef) {
+        // The name was bound to another function since
+        frame.retVal = call.eval(frame);
+        return true;
+      }
+      List<Object> params = new ArrayList<>(call.args.length);
+      for (Expr arg : call.args) {
+        params.add(arg.eval(frame));
+      }
+      frame.tailArgs = params;
+      return true;
+    }
+  }
+
+  // exit statement
+  static final class Exit extends Stmt {
+    final Expr  expr;
+
+    Exit (Expr expr, int line) {
+      super(line);
+      this.expr = expr;
+    }
+
+    boolean exec (Frame frame) throws FSException {
+      frame.ctx.setExit(expr.eval(frame));
+      return true;
+    }
+  }
+}
@@ -0,0 +1,26 @@
+package murlen.util.fscriptME;
+
+/**
+ * <b>Symbol - an identifier interned by Symbols</b>
+ * <p>
+ * Parser turns every variable and function name into a Symbol when it compiles a
+ * reference to it, so running code finds a global or a function by the symbol's id
+ * instead of hashing its name.  There is only one Symbol, and one name String, per
+ * identifier in a Parser.</p>
+ */
+final class Symbol {
+  final String  name;
+  final int     id;                     // index in ExecutionContext.globals and ExecutionContext.funcs
+  final HostFunctions.Variable external;  // host variable the name was linked to when interned, or null
+  HostFunctions.Lookup lookup;          // host function last looked up by this name, see HostFunctions.get(Symbol, int)
+
+  Symbol (String name, int id, HostFunctions.Variable external) {
+    this.name = name;
+    this.id = id;
+    this.external = external;
+  }
+
+  public String toString () {
+    return name;
+  }
+}
@@ -0,0 +1,71 @@
+package murlen.util.fscriptME;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <b>Symbols - the identifiers of a script</b>
+ * <p>
+ * Parser interns every variable and function name it compiles a reference to, so running
+ * code reads and writes globals, and finds the function a name is bound to, by symbol id
+ * rather than by name.  The values live in each ExecutionContext, in arrays indexed by id.
+ * Ids are never reused, so compiled code stays valid across reset() and cont().  Contexts
+ * running on other threads may look names up while Parser interns new ones.  Each name is
+ * linked to the host variable of that name, if any, as it is interned.</p>
+ */
+final class Symbols {
+  private final HostFunctions         functions;      // defines the host variables names are linked to
+  private final Map<String, Symbol>   symbols = new ConcurrentHashMap<>();
+  private volatile Symbol[]           byId = new Symbol[16];
+  private volatile int                count;          // symbols interned so far
+
+  Symbols (HostFunctions functions) {
+    this.functions = functions;
+  }
+
+  /**
+   * Returns the symbol for a name, creating it the first time the name is seen
+   *
+   * @param name the variable or function name
+   * @return     the one Symbol for this name
+   */
+  synchronized Symbol intern (String name) {
+    Symbol sym = symbols.get(name);
+    if (sym == null) {
+      int id = count;
+      Symbol[] ids = byId;
+      if (id == ids.length) {
+        ids = Arrays.copyOf(ids, id * 2);
+      }
+      sym = ids[id] = new Symbol(name, id, functions.variable(name));
+      byId = ids;
+      symbols.put(name, sym);
+      count = id + 1;
+    }
+    return sym;
+  }
+
+  // Symbol for a name, or null if no code refers to it
+  Symbol lookup (String name) {
+    return symbols.get(name);
+  }
+
+  // Number of symbols, one more than the highest id
+  int size () {
+    return count;
+  }
+
+  // The declared globals of a context, for error reports
+  Map<String, Object> toMap (Object[] values) {
+    Symbol[] ids = byId;
+    Map<String, Object> map = new HashMap<>();
+    for (int ii = 0; ii < values.length && ii < ids.length; ii++) {
+      if (values[ii] != null) {
+        map.put(ids[ii].name, values[ii]);
+      }
+    }
+    return map;
+  }
+}
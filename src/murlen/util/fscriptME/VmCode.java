@@ -0,0 +1,334 @@
+package murlen.util.fscriptME;
+
+import static murlen.util.fscriptME.LexAnn.Token.*;
+
+import java.util.Arrays;
+
+/**
+ * <b>VmCode - a script compiled to a compact instruction stream - built by VmCompiler</b>
+ * <p>
+ * Used when FScript runs with Engine.VM.  The top level code and every function that
+ * could be compiled share one int[] of instructions, each an opcode followed by its
+ * operands, plus a constant pool for names, strings and function definitions.  Function
+ * locals live in an Object[] indexed by slot, and a few superinstructions cover the
+ * patterns scripts use most: incrementing a local by a constant, compare-and-branch, and
+ * calls to other functions in the same program.  Nothing is generated at runtime, so
+ * starting a script costs no more than the tree interpreter.</p>
+ */
+final class VmCode extends JitCode {
+  // Opcodes, followed by their operands
+  static final int  CONST = 0;      // k                     push consts[k]
+  static final int  LOAD = 1;       // slot                   push a local
+  static final int  STORE = 2;      // slot name line         pop into a local, checking or converting the type like Frame.setVar()
+  static final int  INIT = 3;       // slot k                 declare a local with initial value consts[k]
+  static final int  GLOAD = 4;      // sym line               push a global, or host variable
+  static final int  GSTORE = 5;     // sym line               pop into a global, or host variable
+  static final int  GDEF = 6;       // sym k line             declare a global
+  static final int  AGET = 7;       // sym line               pop index, push element of script array sym, or host array element
+  static final int  ASET = 8;       // sym line               pop value and index, set element of script array sym, or host array element
+  static final int  BIN = 9;        // op line               pop two, push the result of a binary operator
+  static final int  NEG = 10;       // line
+  static final int  NOT = 11;       // line
+  static final int  POP = 12;
+  static final int  JUMP = 13;      // target
+  static final int  JUMPF = 14;     // target msg line        pop a condition, jump if it is 0
+  static final int  CALL = 15;      // sym argc line          call a script or host function with the top argc values
+  static final int  RET = 16;       //                        return from a function
+  static final int  RETMAIN = 17;   //                        'return' in the top level code
+  static final int  EXIT = 18;
+  static final int  DEFUN = 19;     // sym k                  define function consts[k]
+  static final int  LINE = 20;      // line                   start of a top level statement
+  static final int  END = 21;
+  // Superinstructions
+  static final int  INC = 22;       // slot value             add a constant to an int local
+  static final int  CMPJF = 23;     // op target line         pop two, compare, jump if false
+  static final int  LCMPJF = 24;    // op slot value target   compare an int local with a constant, jump if false
+  static final int  CALLF = 25;     // sym k fn argc line     call function fn of this program if sym is still bound to consts[k]
+  static final int  TAILF = 26;     // sym k fn argc line     tail call of function fn to itself, restarts fn with new arguments if
+                                    //                        sym is still bound to consts[k], else calls it and returns the result
+  static final int  LOGICJ = 27;    // op target              if the value on the stack decides && or || (op), replace it with
+                                    //                        the result and jump
+  static final int  LOOP = 28;      // target line            jump back to the top of a loop, checking for ExecutionContext.cancel()
+  static final int  HCALL = 29;     // sym k argc line        call host function consts[k] unless sym is bound to a script function
+  static final int  LAGET = 30;     // slot sym line          pop index, push element of the array in a local
+  static final int  LASET = 31;     // slot sym line          pop value and index, set element of the array in a local
+  static final int  NEWARR = 32;    // ints line              pop size, push a new int array if ints is 1, else string array
+  // Binary operators, in the order of OPS
+  static final int  ADD = 0, SUB = 1, MUL = 2, DIV = 3, MOD = 4, AND = 5, OR = 6, EQ = 7, NE = 8, LT = 9, LE = 10, GT = 11, GE = 12;
+  static final LexAnn.Token[] OPS = {TT_PLUS, TT_MINUS, TT_MULT, TT_DIV, TT_MOD, TT_LAND, TT_LOR, TT_LEQ, TT_LNEQ, TT_LLS, TT_LLSE, TT_LGR, TT_LGRE};
+
+  private final int[]       code;
+  private final Object[]    consts;
+  private final int[]       starts;         // entry point of each function, 0 is the top level code
+  private final int[]       maxStack;       // operand stack size of each function
+  private final int[]       numLocals;      // local slots of each function, parameters first
+  private final Class<?>[][] paramTypes;    // parameter classes of each function, for direct calls
+
+  VmCode (int[] code, Object[] consts, int[] starts, int[] maxStack, int[] numLocals, Class<?>[][] paramTypes) {
+    this.code = code;
+    this.consts = consts;
+    this.starts = starts;
+    this.maxStack = maxStack;
+    this.numLocals = numLocals;
+    this.paramTypes = paramTypes;
+  }
+
+  Object call (int index, Frame frame, Object[] args) throws FSException {
+    Object[] locals = new Object[numLocals[index]];
+    if (args != null) {
+      System.arraycopy(args, 0, locals, 0, args.length);
+    }
+    return run(index, frame, locals);
+  }
+
+  // True if the top argc values on the stack match the parameter types of function fn
+  private boolean accepts (int fn, Object[] stack, int sp) {
+    Class<?>[] types = paramTypes[fn];
+    for (int ii = 0; ii < types.length; ii++) {
+      Object arg = stack[sp + ii];
+      if (arg == null || arg.getClass() != types[ii]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Compare two ints with one of the comparison operators
+  private static boolean compare (int op, int lv, int rv) {
+    switch (op) {
+      case EQ:  return lv == rv;
+      case NE:  return lv != rv;
+      case LT:  return lv < rv;
+      case LE:  return lv <= rv;
+      case GT:  return lv > rv;
+      default:  return lv >= rv;
+    }
+  }
+
+  private Object run (int fn, Frame frame, Object[] locals) throws FSException {
+    int[] code = this.code;
+    Object[] consts = this.consts;
+    Object[] stack = new Object[maxStack[fn]];
+    int sp = 0;
+    int pc = starts[fn];
+    while (true) {
+      switch (code[pc++]) {
+        case CONST:
+          stack[sp++] = consts[code[pc++]];
+          break;
+        case LOAD:
+          stack[sp++] = locals[code[pc++]];
+          break;
+        case STORE: {
+          Object val = stack[--sp];
+          int slot = code[pc];
+          if (val == null) {
+            throw frame.error("set variable " + consts[code[pc + 1]] + " with null value", code[pc + 2]);
+          } else if (val.getClass() != locals[slot].getClass()) {
+            val = frame.convert(val, locals[slot], code[pc + 2]);
+          }
+          locals[slot] = val;
+          pc += 3;
+          break;
+        }
+        case INIT:
+          locals[code[pc]] = consts[code[pc + 1]];
+          pc += 2;
+          break;
+        case GLOAD:
+          stack[sp++] = frame.getVar((Symbol) consts[code[pc]], code[pc + 1]);
+          pc += 2;
+          break;
+        case GSTORE:
+          frame.setVar((Symbol) consts[code[pc]], stack[--sp], code[pc + 1]);
+          pc += 2;
+          break;
+        case GDEF:
+          frame.addVar((Symbol) consts[code[pc]], consts[code[pc + 1]], code[pc + 2]);
+          pc += 3;
+          break;
+        case AGET: {
+          Object idx = stack[--sp];
+          stack[sp++] = getArray(frame, consts[code[pc]], idx, code[pc + 1]);
+          pc += 2;
+          break;
+        }
+        case ASET: {
+          Object val = stack[--sp];
+          Object idx = stack[--sp];
+          setArray(frame, consts[code[pc]], idx, val, code[pc + 1]);
+          pc += 2;
+          break;
+        }
+        case LAGET: {
+          Object idx = stack[sp - 1];
+          stack[sp - 1] = frame.getElement(locals[code[pc]], (Symbol) consts[code[pc + 1]], idx, code[pc + 2]);
+          pc += 3;
+          break;
+        }
+        case LASET: {
+          Object val = stack[--sp];
+          Object idx = stack[--sp];
+          frame.setElement(locals[code[pc]], (Symbol) consts[code[pc + 1]], idx, val, code[pc + 2]);
+          pc += 3;
+          break;
+        }
+        case NEWARR: {
+          int length = ScriptArray.length(stack[sp - 1], frame, code[pc + 1]);
+          stack[sp - 1] = code[pc] != 0 ? new ScriptArray.Ints(length) : new ScriptArray.Strings(length);
+          pc += 2;
+          break;
+        }
+        case BIN: {
+          Object rVal = stack[--sp];
+          Object lVal = stack[sp - 1];
+          int op = code[pc];
+          if (lVal instanceof Integer && rVal instanceof Integer && op != DIV && op != MOD) {
+            int lv = (Integer) lVal;
+            int rv = (Integer) rVal;
+            switch (op) {
+              case ADD: stack[sp - 1] = lv + rv; break;
+              case SUB: stack[sp - 1] = lv - rv; break;
+              case MUL: stack[sp - 1] = lv * rv; break;
+              case AND: stack[sp - 1] = lv != 0 && rv != 0 ? 1 : 0; break;
+              case OR:  stack[sp - 1] = lv != 0 || rv != 0 ? 1 : 0; break;
+              default:  stack[sp - 1] = compare(op, lv, rv) ? 1 : 0; break;
+            }
+          } else {
+            stack[sp - 1] = Expr.Binary.apply(OPS[op], lVal, rVal, frame, code[pc + 1]);
+          }
+          pc += 2;
+          break;
+        }
+        case NEG:
+          stack[sp - 1] = negate(stack[sp - 1], frame, code[pc++]);
+          break;
+        case NOT:
+          stack[sp - 1] = not(stack[sp - 1], frame, code[pc++]);
+          break;
+        case POP:
+          sp--;
+          break;
+        case JUMP:
+          pc = code[pc];
+          break;
+        case LOOP:
+          frame.ctx.poll(frame, code[pc + 1]);
+          pc = code[pc];
+          break;
+        case JUMPF:
+          if (cond(stack[--sp], frame, (String) consts[code[pc + 1]], code[pc + 2]) == 0) {
+            pc = code[pc];
+          } else {
+            pc += 3;
+          }
+          break;
+        case CALL: {
+          int argc = code[pc + 1];
+          sp -= argc;
+          stack[sp] = call(frame, consts[code[pc]], Arrays.copyOfRange(stack, sp, sp + argc), code[pc + 2]);
+          sp++;
+          pc += 3;
+          break;
+        }
+        case CALLF: {
+          Symbol sym = (Symbol) consts[code[pc]];
+          int callee = code[pc + 2];
+          int argc = code[pc + 3];
+          sp -= argc;
+          if (frame.ctx.funcs[sym.id] == consts[code[pc + 1]] && accepts(callee, stack, sp)) {
+            ExecutionContext ctx = frame.ctx;
+            ctx.enter(frame, code[pc + 4]);
+            Object[] args = new Object[numLocals[callee]];
+            System.arraycopy(stack, sp, args, 0, argc);
+            stack[sp] = run(callee, ctx.jitFrame, args);
+            // Not counted down if the call fails, ExecutionContext restores the depth then
+            ctx.depth--;
+          } else {
+            stack[sp] = call(frame, sym, Arrays.copyOfRange(stack, sp, sp + argc), code[pc + 4]);
+          }
+          sp++;
+          pc += 5;
+          break;
+        }
+        case HCALL: {
+          Symbol sym = (Symbol) consts[code[pc]];
+          int argc = code[pc + 2];
+          sp -= argc;
+          if (frame.ctx.funcs[sym.id] == null) {
+            stack[sp] = ((HostFunctions.Entry) consts[code[pc + 1]]).invoke(stack, sp, frame, code[pc + 3]);
+          } else {
+            stack[sp] = call(frame, sym, Arrays.copyOfRange(stack, sp, sp + argc), code[pc + 3]);
+          }
+          sp++;
+          pc += 4;
+          break;
+        }
+        case TAILF: {
+          Symbol sym = (Symbol) consts[code[pc]];
+          int argc = code[pc + 3];
+          sp -= argc;
+          if (frame.ctx.funcs[sym.id] == consts[code[pc + 1]] && accepts(code[pc + 2], stack, sp)) {
+            frame.ctx.poll(frame, code[pc + 4]);
+            System.arraycopy(stack, sp, locals, 0, argc);
+            pc = starts[code[pc + 2]];
+          } else {
+            return call(frame, sym, Arrays.copyOfRange(stack, sp, sp + argc), code[pc + 4]);
+          }
+          break;
+        }
+        case LOGICJ: {
+          Object lVal = stack[sp - 1];
+          int op = code[pc];
+          if (lVal instanceof Integer && ((Integer) lVal == 0) == (op == AND)) {
+            stack[sp - 1] = op == AND ? 0 : 1;
+            pc = code[pc + 1];
+          } else {
+            pc += 2;
+          }
+          break;
+        }
+        case RET:
+          return stack[--sp];
+        case RETMAIN:
+          frame.retVal = stack[--sp];
+          return RETURNED;
+        case EXIT:
+          frame.ctx.exit(stack[--sp]);
+          break;
+        case DEFUN:
+          define(frame, consts[code[pc]], consts[code[pc + 1]]);
+          pc += 2;
+          break;
+        case LINE:
+          frame.ctx.curLine = code[pc++];
+          break;
+        case END:
+          return null;
+        case INC: {
+          int slot = code[pc];
+          locals[slot] = (Integer) locals[slot] + code[pc + 1];
+          pc += 2;
+          break;
+        }
+        case CMPJF: {
+          Object rVal = stack[--sp];
+          Object lVal = stack[--sp];
+          boolean result;
+          if (lVal instanceof Integer && rVal instanceof Integer) {
+            result = compare(code[pc], (Integer) lVal, (Integer) rVal);
+          } else {
+            result = (Integer) Expr.Binary.apply(OPS[code[pc]], lVal, rVal, frame, code[pc + 2]) != 0;
+          }
+          pc = result ? pc + 3 : code[pc + 1];
+          break;
+        }
+        case LCMPJF:
+          pc = compare(code[pc], (Integer) locals[code[pc + 1]], code[pc + 2]) ? pc + 4 : code[pc + 3];
+          break;
+        default:
+          throw new IllegalStateException("bad opcode " + code[pc - 1]);
+      }
+    }
+  }
+}
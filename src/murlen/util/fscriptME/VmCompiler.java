@@ -0,0 +1,366 @@
+package murlen.util.fscriptME;
+
+import static murlen.util.fscriptME.LexAnn.Token.*;
+import static murlen.util.fscriptME.VmCode.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <b>VmCompiler - translates compiled scripts into VmCode instructions</b>
+ * <p>
+ * Works from the same statement tree as the interpreter and follows the same rules as
+ * JitCompiler: functions Resolver bound to slots keep their locals in an Object[] by the
+ * same slots, any other function is left to the tree interpreter, and globals are
+ * accessed by symbol id, see Symbols.</p>
+ */
+final class VmCompiler {
+  private final List<Func>          funcs;          // functions to compile, function index is position + 1
+  private final Map<String, Func>   byName = new HashMap<>();
+  private final List<Object>        consts = new ArrayList<>();
+  private int[]                     code = new int[256];
+  private int                       pc;
+  private int                       depth;          // operand stack depth
+  private int                       maxDepth;
+  private Class<?>[]                localTypes;     // type of each local slot of the function being compiled, null for top level code
+  private Func                      current;        // function being compiled, null for top level code
+
+  // Thrown for anything this compiler doesn't handle, which is then left to the interpreter
+  private static final class Unsupported extends RuntimeException {
+  }
+
+  // A function selected for compiling
+  private static final class Func {
+    final String            name;
+    final Parser.FuncEntry  fDef;
+    int                     index;
+
+    Func (String name, Parser.FuncEntry fDef) {
+      this.name = name;
+      this.fDef = fDef;
+    }
+  }
+
+  private VmCompiler (List<Func> funcs) {
+    this.funcs = funcs;
+    for (int ii = 0; ii < funcs.size(); ii++) {
+      Func func = funcs.get(ii);
+      func.index = ii + 1;
+      // Only call directly when the name can't mean another function defined in this block
+      byName.put(func.name, byName.containsKey(func.name) ? null : func);
+    }
+  }
+
+  /**
+   * Compiles a block of top level code and the functions defined in it.  Compiled functions
+   * are attached to their FuncEntry.
+   *
+   * @param block the compiled top level code
+   * @return      the compiled top level code, or null if it has to be interpreted
+   */
+  static VmCode compile (Stmt.Block block) {
+    List<Stmt.FuncDef> defs = new ArrayList<>();
+    JitCompiler.collectFuncs(block, defs);
+    List<Func> funcs = new ArrayList<>();
+    for (Stmt.FuncDef def : defs) {
+      if (def.fDef.localNames != null) {
+        funcs.add(new Func(def.sym.name, def.fDef));
+      }
+    }
+    boolean withMain = true;
+    while (true) {
+      VmCompiler vm = new VmCompiler(funcs);
+      try {
+        VmCode code = vm.build(withMain ? block : null);
+        for (Func func : funcs) {
+          func.fDef.jit = code;
+          func.fDef.jitIndex = func.index;
+        }
+        return withMain ? code : null;
+      } catch (Unsupported ex) {
+        // Leave whatever failed to the interpreter and try again without it
+        if (vm.current != null) {
+          funcs.remove(vm.current);
+        } else if (withMain) {
+          withMain = false;
+        } else {
+          return null;
+        }
+      }
+    }
+  }
+
+  private VmCode build (Stmt.Block main) {
+    int count = funcs.size() + 1;
+    int[] starts = new int[count];
+    int[] maxStack = new int[count];
+    int[] numLocals = new int[count];
+    Class<?>[][] paramTypes = new Class<?>[count][];
+    // top level code
+    paramTypes[0] = new Class<?>[0];
+    if (main != null) {
+      localTypes = null;
+      for (Stmt stmt : main.stmts) {
+        emit(LINE, 0, stmt.line);
+        genStmt(stmt);
+      }
+    }
+    emit(END, 0);
+    maxStack[0] = maxDepth;
+    // functions
+    for (Func func : funcs) {
+      current = func;
+      starts[func.index] = pc;
+      maxDepth = 0;
+      Parser.FuncEntry fDef = func.fDef;
+      localTypes = fDef.localTypes;
+      paramTypes[func.index] = Arrays.copyOf(localTypes, fDef.paramNames.size());
+      numLocals[func.index] = localTypes.length;
+      genStmt(fDef.body);
+      emit(END, 0);
+      maxStack[func.index] = maxDepth;
+    }
+    current = null;
+    return new VmCode(Arrays.copyOf(code, pc), consts.toArray(), starts, maxStack, numLocals, paramTypes);
+  }
+
+  // Append an instruction and its operands
+  private void emit (int opcode, int delta, int... operands) {
+    if (pc + operands.length + 1 > code.length) {
+      code = Arrays.copyOf(code, code.length * 2 + operands.length);
+    }
+    code[pc++] = opcode;
+    for (int operand : operands) {
+      code[pc++] = operand;
+    }
+    depth += delta;
+    maxDepth = Math.max(maxDepth, depth);
+  }
+
+  // Index of a value in the constant pool
+  private int constant (Object val) {
+    int idx = consts.indexOf(val);
+    if (idx < 0) {
+      idx = consts.size();
+      consts.add(val);
+    }
+    return idx;
+  }
+
+  // Set the target operand of a jump emitted earlier
+  private void patch (int operand, int target) {
+    code[operand] = target;
+  }
+
+  private static int op (LexAnn.Token token) {
+    int op = Arrays.asList(OPS).indexOf(token);
+    if (op < 0) {
+      throw new Unsupported();
+    }
+    return op;
+  }
+
+  private static boolean isCompare (int op) {
+    return op >= EQ;
+  }
+
+  // True if expr reads an int local
+  private boolean isIntLocal (Expr expr) {
+    return expr instanceof Expr.Local && localTypes[((Expr.Local) expr).slot] == Integer.class;
+  }
+
+  private static boolean isIntConst (Expr expr) {
+    return expr instanceof Expr.Const && ((Expr.Const) expr).value instanceof Integer;
+  }
+
+  private void genStmt (Stmt stmt) {
+    if (stmt instanceof Stmt.Lazy) {
+      try {
+        genStmt(((Stmt.Lazy) stmt).body());
+      } catch (FSException ex) {
+        // a body that doesn't compile is left to the interpreter
+        throw new Unsupported();
+      }
+    } else if (stmt instanceof Stmt.Block) {
+      for (Stmt child : ((Stmt.Block) stmt).stmts) {
+        genStmt(child);
+      }
+    } else if (stmt instanceof Stmt.ExprStmt) {
+      genExpr(((Stmt.ExprStmt) stmt).expr);
+      emit(POP, -1);
+    } else if (stmt instanceof Stmt.LocalAssign) {
+      Stmt.LocalAssign assign = (Stmt.LocalAssign) stmt;
+      genStore(assign.slot, assign.name, assign.expr, stmt.line);
+    } else if (stmt instanceof Stmt.Assign) {
+      Stmt.Assign assign = (Stmt.Assign) stmt;
+      genExpr(assign.expr);
+      emit(GSTORE, -1, constant(assign.sym), stmt.line);
+    } else if (stmt instanceof Stmt.ArrayAssign) {
+      Stmt.ArrayAssign assign = (Stmt.ArrayAssign) stmt;
+      genExpr(assign.index);
+      genExpr(assign.expr);
+      if (assign.slot >= 0) {
+        emit(LASET, -2, assign.slot, constant(assign.sym), stmt.line);
+      } else {
+        emit(ASET, -2, constant(assign.sym), stmt.line);
+      }
+    } else if (stmt instanceof Stmt.LocalDef) {
+      Stmt.LocalDef def = (Stmt.LocalDef) stmt;
+      for (int ii = 0; ii < def.slots.length; ii++) {
+        emit(INIT, 0, def.slots[ii], constant(def.initial));
+        if (def.inits[ii] != null) {
+          genStore(def.slots[ii], def.names[ii], def.inits[ii], stmt.line);
+        }
+      }
+    } else if (stmt instanceof Stmt.VarDef && localTypes == null) {
+      Stmt.VarDef def = (Stmt.VarDef) stmt;
+      for (int ii = 0; ii < def.syms.length; ii++) {
+        emit(GDEF, 0, constant(def.syms[ii]), constant(def.initial), stmt.line);
+        if (def.inits[ii] != null) {
+          genExpr(def.inits[ii]);
+          emit(GSTORE, -1, constant(def.syms[ii]), stmt.line);
+        }
+      }
+    } else if (stmt instanceof Stmt.If) {
+      Stmt.If ifStmt = (Stmt.If) stmt;
+      List<Integer> ends = new ArrayList<>();
+      for (int ii = 0; ii < ifStmt.conds.length; ii++) {
+        int next = genCond(ifStmt.conds[ii], "If condition needs to be Integer", ifStmt.conds[ii].line);
+        genStmt(ifStmt.bodies[ii]);
+        emit(JUMP, 0, 0);
+        ends.add(pc - 1);
+        patch(next, pc);
+      }
+      if (ifStmt.orElse != null) {
+        genStmt(ifStmt.orElse);
+      }
+      for (int end : ends) {
+        patch(end, pc);
+      }
+    } else if (stmt instanceof Stmt.While) {
+      Stmt.While loop = (Stmt.While) stmt;
+      int top = pc;
+      int end = genCond(loop.cond, "While condition needs to be Integer", stmt.line);
+      genStmt(loop.body);
+      emit(LOOP, 0, top, stmt.line);
+      patch(end, pc);
+    } else if (stmt instanceof Stmt.FuncDef && localTypes == null) {
+      Stmt.FuncDef def = (Stmt.FuncDef) stmt;
+      emit(DEFUN, 0, constant(def.sym), constant(def.fDef));
+    } else if (stmt instanceof Stmt.TailCall && localTypes != null) {
+      Expr.Call call = ((Stmt.TailCall) stmt).call;
+      for (Expr arg : call.args) {
+        genExpr(arg);
+      }
+      emit(TAILF, -call.args.length, constant(call.sym), constant(current.fDef), current.index, call.args.length, call.line);
+    } else if (stmt instanceof Stmt.Return) {
+      genExpr(((Stmt.Return) stmt).expr);
+      emit(localTypes != null ? RET : RETMAIN, -1);
+    } else if (stmt instanceof Stmt.Exit) {
+      genExpr(((Stmt.Exit) stmt).expr);
+      emit(EXIT, -1);
+    } else {
+      throw new Unsupported();
+    }
+  }
+
+  // Assign to a local slot
+  private void genStore (int slot, String name, Expr expr, int line) {
+    if (expr instanceof Expr.Binary) {
+      // local = local + const, or local - const
+      Expr.Binary bin = (Expr.Binary) expr;
+      if ((bin.op == TT_PLUS || bin.op == TT_MINUS) && isIntLocal(bin.left) && ((Expr.Local) bin.left).slot == slot
+          && isIntConst(bin.right)) {
+        int value = (Integer) ((Expr.Const) bin.right).value;
+        emit(INC, 0, slot, bin.op == TT_PLUS ? value : -value);
+        return;
+      }
+    }
+    genExpr(expr);
+    emit(STORE, -1, slot, constant(name), line);
+  }
+
+  // Compile a condition that jumps when false, returns the offset of the jump target operand
+  private int genCond (Expr expr, String msg, int line) {
+    if (expr instanceof Expr.Binary && isCompare(op(((Expr.Binary) expr).op))) {
+      Expr.Binary bin = (Expr.Binary) expr;
+      int op = op(bin.op);
+      if (isIntLocal(bin.left) && isIntConst(bin.right)) {
+        emit(LCMPJF, 0, op, ((Expr.Local) bin.left).slot, (Integer) ((Expr.Const) bin.right).value, 0);
+        return pc - 1;
+      }
+      genExpr(bin.left);
+      genExpr(bin.right);
+      emit(CMPJF, -2, op, 0, bin.line);
+      return pc - 2;
+    }
+    genExpr(expr);
+    emit(JUMPF, -1, 0, constant(msg), line);
+    return pc - 3;
+  }
+
+  private void genExpr (Expr expr) {
+    if (expr instanceof Expr.Const) {
+      emit(CONST, 1, constant(((Expr.Const) expr).value));
+    } else if (expr instanceof Expr.Local) {
+      emit(LOAD, 1, ((Expr.Local) expr).slot);
+    } else if (expr instanceof Expr.Var) {
+      Expr.Var var = (Expr.Var) expr;
+      emit(GLOAD, 1, constant(var.sym), expr.line);
+    } else if (expr instanceof Expr.ArrayRef) {
+      Expr.ArrayRef ref = (Expr.ArrayRef) expr;
+      genExpr(ref.index);
+      if (ref.slot >= 0) {
+        emit(LAGET, 0, ref.slot, constant(ref.sym), expr.line);
+      } else {
+        emit(AGET, 0, constant(ref.sym), expr.line);
+      }
+    } else if (expr instanceof Expr.NewArray) {
+      Expr.NewArray array = (Expr.NewArray) expr;
+      if (array.size != null) {
+        genExpr(array.size);
+      } else {
+        emit(CONST, 1, constant(0));
+      }
+      emit(NEWARR, 0, array.ints ? 1 : 0, expr.line);
+    } else if (expr instanceof Expr.Call) {
+      Expr.Call call = (Expr.Call) expr;
+      for (Expr arg : call.args) {
+        genExpr(arg);
+      }
+      int argc = call.args.length;
+      Func func = byName.get(call.sym.name);
+      if (func != null && func.fDef.paramNames.size() == argc) {
+        emit(CALLF, 1 - argc, constant(call.sym), constant(func.fDef), func.index, argc, call.line);
+      } else if (call.host != null) {
+        emit(HCALL, 1 - argc, constant(call.sym), constant(call.host), argc, call.line);
+      } else {
+        emit(CALL, 1 - argc, constant(call.sym), argc, call.line);
+      }
+    } else if (expr instanceof Expr.Negate) {
+      genExpr(((Expr.Negate) expr).expr);
+      emit(NEG, 0, expr.line);
+    } else if (expr instanceof Expr.Not) {
+      genExpr(((Expr.Not) expr).expr);
+      emit(NOT, 0, expr.line);
+    } else if (expr instanceof Expr.Binary) {
+      Expr.Binary bin = (Expr.Binary) expr;
+      genExpr(bin.left);
+      genExpr(bin.right);
+      emit(BIN, -1, op(bin.op), expr.line);
+    } else if (expr instanceof Expr.Logical) {
+      Expr.Logical logical = (Expr.Logical) expr;
+      genExpr(logical.left);
+      emit(LOGICJ, 0, op(logical.op), 0);
+      int decided = pc - 1;
+      genExpr(logical.right);
+      emit(BIN, -1, op(logical.op), expr.line);
+      patch(decided, pc);
+    } else {
+      throw new Unsupported();
+    }
+  }
+}